@@ -0,0 +1,228 @@
+package com.nick.atomsense;
+
+import android.content.SharedPreferences;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Finds the capture format for detection: the lowest rate that resolves a
+// pulse, NEEDED_SAMPLE_RATE, or the highest below it the phone can both
+// record and process in real time. A higher rate only costs CPU and battery.
+// probe() asks AudioRecord which rates and encodings it accepts, choose()
+// runs the detector on synthetic pulses at a candidate rate and drops it if
+// it would take more than maxLoad of real time. 16-bit is preferred, the
+// detector works on 16-bit samples and float capture is converted to them.
+public class AudioFormatNegotiator {
+
+    public static final int[] SAMPLE_RATES = {8000, 11025, 16000, 22050, 32000, 44100, 48000, 88200, 96000, 176400, 192000};
+    public static final int DEFAULT_SAMPLE_RATE = 8000;
+    // share of real time detection may use, the rest is headroom for the UI and GC
+    public static final double MAX_LOAD = 0.25;
+    // the narrowest pulses through an audio input are about 100 µs wide;
+    // 4 samples across them find the edge and the shape
+    public static final int NEEDED_SAMPLE_RATE = 40000;
+    private static final int BENCHMARK_BLOCK = 1024;
+
+    // SETTING_LATENCY ordinal to recorder buffer factor
+    public static final int[] BUFFER_FACTORS = {2, 4, 8};
+    public static final int DEFAULT_LATENCY = 1;
+
+    // formats AudioRecord accepts, by increasing sample rate
+    public static List<AudioInputFormat> probe(int channelConfig){
+        List<AudioInputFormat> formats = new ArrayList<>();
+        for(int sampleRate : SAMPLE_RATES){
+            int bytes = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            if(bytes > 0){
+                formats.add(new AudioInputFormat(sampleRate, AudioFormat.ENCODING_PCM_16BIT, bytes));
+            }
+            bytes = AudioRecord.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_FLOAT);
+            if(bytes > 0){
+                formats.add(new AudioInputFormat(sampleRate, AudioFormat.ENCODING_PCM_FLOAT, bytes));
+            }
+        }
+        return formats;
+    }
+
+    public static AudioInputFormat choose(List<AudioInputFormat> formats){
+        return choose(formats, MAX_LOAD);
+    }
+
+    // the target rate if it keeps up, else the highest lower one that does,
+    // 16-bit preferred at the same rate; the lowest rate if none does, null
+    // if there are no formats. Only the rates tried are benchmarked
+    public static AudioInputFormat choose(List<AudioInputFormat> formats, double maxLoad){
+        List<AudioInputFormat> candidates = new ArrayList<>();
+        for(AudioInputFormat format : sorted(formats)){
+            int last = candidates.size() - 1;
+            // one encoding per rate, the sorted order has 16-bit first
+            if(last < 0 || candidates.get(last).getSampleRate() != format.getSampleRate()){
+                candidates.add(format);
+            }
+        }
+        int target = targetRate(candidates);
+        for(AudioInputFormat format : candidates){
+            if(format.getSampleRate() <= target && measureLoad(format) <= maxLoad){
+                return format;
+            }
+        }
+        return candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+    }
+
+    // by decreasing sample rate, 16-bit before float
+    private static List<AudioInputFormat> sorted(List<AudioInputFormat> formats){
+        List<AudioInputFormat> candidates = new ArrayList<>(formats);
+        Collections.sort(candidates, new Comparator<AudioInputFormat>() {
+            @Override
+            public int compare(AudioInputFormat a, AudioInputFormat b) {
+                if(a.getSampleRate() != b.getSampleRate()){
+                    return b.getSampleRate() - a.getSampleRate();
+                }
+                return Boolean.compare(a.isFloat(), b.isFloat());
+            }
+        });
+        return candidates;
+    }
+
+    // the lowest offered rate of at least NEEDED_SAMPLE_RATE, else the highest
+    static int targetRate(List<AudioInputFormat> formats){
+        int target = 0;
+        int highest = 0;
+        for(AudioInputFormat format : formats){
+            int rate = format.getSampleRate();
+            highest = Math.max(highest, rate);
+            if(rate >= NEEDED_SAMPLE_RATE && (target == 0 || rate < target)){
+                target = rate;
+            }
+        }
+        return target != 0 ? target : highest;
+    }
+
+    // seconds of processing per second of audio for a busy source, once warmed up
+    public static double measureLoad(AudioInputFormat format){
+        measureLoad(format, 0.25);
+        return measureLoad(format, 1);
+    }
+
+    private static double measureLoad(AudioInputFormat format, double seconds){
+        int sampleRate = format.getSampleRate();
+        SyntheticPulseSource source = new SyntheticPulseSource(sampleRate, BENCHMARK_BLOCK, 1);
+        source.setCps(1000);
+        source.start();
+        short[] block = new short[BENCHMARK_BLOCK];
+        float[] floats = new float[BENCHMARK_BLOCK];
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 10000);
+        detector.setDeadTimeSamples(sampleRate / 10000);
+        final RateEstimator estimator = new RateEstimator();
+        final SampleClock clock = new SampleClock(sampleRate);
+        clock.start(0);
+        PulseSink sink = new PulseSink() {
+            @Override
+            public void onPulse(long sampleIndex, int offset) {
+                estimator.onPulse(clock.toNanos(sampleIndex));
+            }
+        };
+        long samples = (long) (sampleRate * seconds);
+        long busyNanos = 0;
+        for(long done = 0; done < samples; done += BENCHMARK_BLOCK){
+            source.read(block, 0, BENCHMARK_BLOCK);
+            if(format.isFloat()){
+                for(int i = 0; i < BENCHMARK_BLOCK; i++){
+                    floats[i] = block[i] / (float) Short.MAX_VALUE;
+                }
+            }
+            long start = System.nanoTime();
+            if(format.isFloat()){
+                AudioInputFormat.toPcm16(floats, block, 0, BENCHMARK_BLOCK);
+            }
+            detector.process(block, BENCHMARK_BLOCK, sink);
+            clock.advance(BENCHMARK_BLOCK);
+            estimator.publish(clock.nowNanos());
+            busyNanos += System.nanoTime() - start;
+        }
+        return busyNanos / (samples * (double) SampleClock.NANOS_PER_SECOND / sampleRate);
+    }
+
+    // the format from the settings, 16-bit preferred at a fixed rate;
+    // "auto" is negotiated once and remembered, which takes seconds, so not
+    // on the main thread
+    public static AudioInputFormat fromPreferences(SharedPreferences preferences, int channelConfig){
+        List<AudioInputFormat> formats = sorted(probe(channelConfig));
+        AudioInputFormat format = fromSettings(preferences, formats);
+        if(format != null){
+            return format;
+        }
+        AudioInputFormat chosen = choose(formats);
+        if(chosen == null){
+            return defaultFormat(channelConfig);
+        }
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt(SettingsActivity.SETTING_AUTO_SAMPLE_RATE, chosen.getSampleRate());
+        editor.putBoolean(SettingsActivity.SETTING_AUTO_FLOAT, chosen.isFloat());
+        editor.commit();
+        return chosen;
+    }
+
+    // as fromPreferences() but without a benchmark, for the measurement
+    // service: "auto" not negotiated yet is the target rate in 16-bit,
+    // untested, and left for SettingsActivity to negotiate
+    public static AudioInputFormat withoutBenchmark(SharedPreferences preferences, int channelConfig){
+        List<AudioInputFormat> formats = sorted(probe(channelConfig));
+        AudioInputFormat format = fromSettings(preferences, formats);
+        if(format == null){
+            format = untested(formats);
+        }
+        return format != null ? format : defaultFormat(channelConfig);
+    }
+
+    // the fixed rate or the remembered auto format, null if "auto" has to be
+    // negotiated; formats sorted
+    private static AudioInputFormat fromSettings(SharedPreferences preferences, List<AudioInputFormat> formats){
+        int sampleRate = preferences.getInt(SettingsActivity.SETTING_SAMPLE_RATE, 0);
+        if(sampleRate != 0){
+            for(AudioInputFormat format : formats){
+                if(format.getSampleRate() == sampleRate){
+                    return format;
+                }
+            }
+        }
+        int autoSampleRate = preferences.getInt(SettingsActivity.SETTING_AUTO_SAMPLE_RATE, 0);
+        boolean autoFloat = preferences.getBoolean(SettingsActivity.SETTING_AUTO_FLOAT, false);
+        for(AudioInputFormat format : formats){
+            // the first one of the rate is the preferred encoding; one remembered
+            // above the target or as float is negotiated again
+            if(format.getSampleRate() == autoSampleRate){
+                if(format.isFloat() == autoFloat && autoSampleRate <= targetRate(formats)){
+                    return format;
+                }
+                break;
+            }
+        }
+        return null;
+    }
+
+    // the preferred encoding at the target rate, null if there are no formats
+    static AudioInputFormat untested(List<AudioInputFormat> formats){
+        int target = targetRate(formats);
+        for(AudioInputFormat format : sorted(formats)){
+            if(format.getSampleRate() == target){
+                return format;
+            }
+        }
+        return null;
+    }
+
+    private static AudioInputFormat defaultFormat(int channelConfig){
+        return new AudioInputFormat(DEFAULT_SAMPLE_RATE, AudioFormat.ENCODING_PCM_16BIT,
+                AudioRecord.getMinBufferSize(DEFAULT_SAMPLE_RATE, channelConfig, AudioFormat.ENCODING_PCM_16BIT));
+    }
+
+    public static int bufferFactor(SharedPreferences preferences){
+        int latency = preferences.getInt(SettingsActivity.SETTING_LATENCY, DEFAULT_LATENCY);
+        return BUFFER_FACTORS[Math.max(0, Math.min(latency, BUFFER_FACTORS.length - 1))];
+    }
+}
@@ -0,0 +1,72 @@
+package com.nick.atomsense;
+
+import android.media.AudioFormat;
+
+import java.util.Locale;
+
+// A capture format the device accepts, as found by AudioFormatNegotiator:
+// sample rate and encoding, mono or stereo; the channel config is kept apart
+// and minBufferBytes is for the config it was probed with.
+public final class AudioInputFormat {
+
+    private final int sampleRate;
+    private final int encoding;
+    private final int minBufferBytes;
+
+    public AudioInputFormat(int sampleRate, int encoding, int minBufferBytes){
+        this.sampleRate = sampleRate;
+        this.encoding = encoding;
+        this.minBufferBytes = minBufferBytes;
+    }
+
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    // AudioFormat.ENCODING_PCM_16BIT or ENCODING_PCM_FLOAT
+    public int getEncoding(){
+        return encoding;
+    }
+
+    public boolean isFloat(){
+        return encoding == AudioFormat.ENCODING_PCM_FLOAT;
+    }
+
+    public int getBytesPerSample(){
+        return isFloat() ? 4 : 2;
+    }
+
+    public int getMinBufferBytes(){
+        return minBufferBytes;
+    }
+
+    public int getMinBufferSamples(){
+        return minBufferBytes / getBytesPerSample();
+    }
+
+    @Override
+    public String toString(){
+        return String.format(Locale.US, "%d Hz%s", sampleRate, isFloat() ? " float" : "");
+    }
+
+    // splits frames of interleaved stereo into the two channels
+    public static void deinterleave(short[] src, int frames, short[] left, short[] right){
+        for(int i = 0, j = 0; i < frames; i++, j += 2){
+            left[i] = src[j];
+            right[i] = src[j + 1];
+        }
+    }
+
+    // float capture is scaled to the 16-bit range the detector works on
+    public static void toPcm16(float[] src, short[] dst, int offset, int length){
+        for(int i = 0; i < length; i++){
+            float sample = src[i] * Short.MAX_VALUE;
+            if(sample > Short.MAX_VALUE){
+                sample = Short.MAX_VALUE;
+            } else if(sample < Short.MIN_VALUE){
+                sample = Short.MIN_VALUE;
+            }
+            dst[offset + i] = (short) sample;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.nick.atomsense;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Two-stage audio pipeline. The capture thread does nothing but read the
+// AudioSource into pre-allocated blocks and hand them over through a lock-free
+// queue; the processing thread runs detection and returns the blocks to the
+// free pool. If processing falls behind, capture keeps draining the source
+// into a spare block and counts the loss instead of stalling the recorder.
+public class AudioPipeline {
+
+    public interface BlockProcessor {
+        // startFrame is the index of data[0] in the captured stream, a jump
+        // against the previous block means samples were dropped
+        void process(short[] data, int length, long startFrame);
+    }
+
+    private static final class Block {
+        final short[] data;
+        int length;
+        long startFrame;
+
+        Block(int size){
+            data = new short[size];
+        }
+    }
+
+    // upper bound of the processing thread's sleep when it is not woken up
+    private static final long PARK_NANOS = 10000000L;
+
+    private final AudioSource source;
+    private final BlockProcessor processor;
+    private final SpscQueue<Block> freeBlocks;
+    private final SpscQueue<Block> filledBlocks;
+    private final Block spareBlock;
+
+    private volatile boolean running = false;
+    // set by the capture thread when it has handed over its last block; the
+    // processing thread only quits after that, with the queue empty
+    private volatile boolean captureDone = false;
+    private Thread captureThread;
+    private Thread processingThread;
+
+    // written by the capture thread only
+    private long framesCaptured = 0;
+    private volatile long overrunCount = 0;
+    private volatile long droppedSamples = 0;
+    private volatile long underrunCount = 0;
+
+    // blockCount must be a power of two
+    public AudioPipeline(AudioSource source, int blockSize, int blockCount, BlockProcessor processor){
+        this.source = source;
+        this.processor = processor;
+        freeBlocks = new SpscQueue<>(blockCount);
+        filledBlocks = new SpscQueue<>(blockCount);
+        for(int i = 0; i < blockCount; i++){
+            freeBlocks.offer(new Block(blockSize));
+        }
+        spareBlock = new Block(blockSize);
+    }
+
+    public void start(){
+        running = true;
+        captureDone = false;
+        processingThread = new Thread(new Runnable() {
+            public void run() {
+                onProcessingThreadStart();
+                runProcessing();
+            }
+        }, "AudioProcessing");
+        captureThread = new Thread(new Runnable() {
+            public void run() {
+                onCaptureThreadStart();
+                runCapture();
+            }
+        }, "AudioCapture");
+        processingThread.start();
+        captureThread.start();
+    }
+
+    // the source has to be stopped as well to unblock a pending read()
+    public void stop(){
+        running = false;
+        if(processingThread != null){
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    public boolean isRunning(){
+        return running;
+    }
+
+    public void join() throws InterruptedException {
+        if(captureThread != null){
+            captureThread.join();
+        }
+        if(processingThread != null){
+            processingThread.join();
+        }
+    }
+
+    // blocks the processing thread was too late to take
+    public long getOverrunCount(){
+        return overrunCount;
+    }
+
+    public long getDroppedSamples(){
+        return droppedSamples;
+    }
+
+    // reads which returned less data than requested
+    public long getUnderrunCount(){
+        return underrunCount;
+    }
+
+    // hooks to set thread priorities, called on the new thread
+    protected void onCaptureThreadStart(){
+    }
+
+    protected void onProcessingThreadStart(){
+    }
+
+    protected void onReadError(int code){
+    }
+
+    protected void onProcessingError(Exception e){
+    }
+
+    private void runCapture(){
+        try{
+            captureBlocks();
+        } finally {
+            running = false;
+            captureDone = true;
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    private void captureBlocks(){
+        while(running){
+            Block block = freeBlocks.poll();
+            boolean overrun = block == null;
+            if(overrun){
+                block = spareBlock;
+            }
+            int read = source.read(block.data, 0, block.data.length);
+            if(read < 0){
+                if(running){
+                    onReadError(read);
+                }
+                break;
+            }
+            if(read < block.data.length){
+                underrunCount++;
+            }
+            block.length = read;
+            block.startFrame = framesCaptured;
+            framesCaptured += read;
+            if(overrun){
+                overrunCount++;
+                droppedSamples += read;
+                continue;
+            }
+            // can not fail, there are never more blocks than the queue holds
+            filledBlocks.offer(block);
+            LockSupport.unpark(processingThread);
+        }
+    }
+
+    private void runProcessing(){
+        try{
+            while(true){
+                Block block = filledBlocks.poll();
+                if(block == null){
+                    // a read still blocked after stop() may return one more block
+                    if(captureDone && filledBlocks.size() == 0){
+                        break;
+                    }
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                    continue;
+                }
+                processor.process(block.data, block.length, block.startFrame);
+                freeBlocks.offer(block);
+            }
+        } catch (Exception e){
+            running = false;
+            onProcessingError(e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.nick.atomsense;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.util.Log;
+
+public class AudioRecordSource implements AudioSource {
+
+    private static final String TAG = "AudioRecordSource";
+    private final AudioRecord audioRecord;
+    private final int sampleRate;
+    private final int channelCount;
+    // in samples
+    private final int bufferSize;
+    // ENCODING_PCM_FLOAT is read here and converted to 16-bit
+    private final float[] floatBuffer;
+
+    // the recorder buffer is bufferFactor times the minimum, a larger one
+    // survives longer stalls at the cost of latency
+    public AudioRecordSource(int inputSource, int sampleRate, int channelConfig, int audioFormat, int bufferFactor){
+        int minInternalBufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                channelConfig, audioFormat);
+        int bytesPerSample = audioFormat == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+        this.bufferSize = minInternalBufferSize / bytesPerSample * bufferFactor;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+        this.floatBuffer = audioFormat == AudioFormat.ENCODING_PCM_FLOAT ? new float[bufferSize] : null;
+        this.audioRecord = new AudioRecord(inputSource,
+                sampleRate, channelConfig, audioFormat, minInternalBufferSize * bufferFactor);
+        if(audioRecord.getState() != AudioRecord.STATE_INITIALIZED){
+            Log.e(TAG, "audioRecord is not initialized, sampleRate: " + sampleRate);
+        }
+    }
+
+    @Override
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount(){
+        return channelCount;
+    }
+
+    @Override
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    @Override
+    public void start(){
+        audioRecord.startRecording();
+    }
+
+    @Override
+    public boolean isRecording(){
+        return audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public int read(short[] buf, int offset, int len){
+        if(floatBuffer == null){
+            return audioRecord.read(buf, offset, len);
+        }
+        int read = audioRecord.read(floatBuffer, 0, Math.min(len, floatBuffer.length), AudioRecord.READ_BLOCKING);
+        if(read > 0){
+            AudioInputFormat.toPcm16(floatBuffer, buf, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public void stop(){
+        audioRecord.stop();
+    }
+
+    @Override
+    public void release(){
+        audioRecord.release();
+    }
+}
@@ -1,48 +1,99 @@
 package com.nick.atomsense;
 
-import android.graphics.Color;
 import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import lecho.lib.hellocharts.model.*;
 import lecho.lib.hellocharts.view.LineChartView;
 
-import java.io.Serializable;
-import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
-public class AudioService implements Serializable {
+public class AudioService {
 
     private final String TAG = "AudioService";
-    private AudioRecord audioRecord;
+    private AudioSource audioSource;
     private int internalBufferSize;
-    private boolean isRun = false;
     private short triggerLevel = 0;
+    private boolean adaptiveTrigger = false;
+    private float triggerSigmas = DEFAULT_TRIGGER_SIGMAS;
+    public static final float DEFAULT_TRIGGER_SIGMAS = 6;
+    // re-arm this far below an adaptive level
+    private static final float TRIGGER_HYSTERESIS_SIGMAS = 2;
+    // the noise floor estimate forgets over 2 s
+    private static final int NOISE_TIME_CONSTANT_MILLIS = 2000;
+    private boolean dcBlock = false;
+    // well below the kHz content of a pulse
+    private static final double DC_BLOCK_CUTOFF_HZ = 10;
+    private int impulseWidth = 0;
     private int impulseWidthInSamples = 0;
-    private int sampleRate = 8000;
-    // 1000 ms = 1 s
-    private float timeResolution = 1000 / sampleRate;
-    // this is field represents how many samples contains in 1 ms
-    private int timeResolutionInSamples = sampleRate / 1000;
+    private int sampleRate = AudioFormatNegotiator.DEFAULT_SAMPLE_RATE;
     private int channelConfig = AudioFormat.CHANNEL_IN_MONO;
+    // 2 for a stereo input, its channels are detected separately and combined
+    private int channels = 1;
     private int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-    private float cps = 0f;
-    private ConcurrentLinkedQueue<Long> impulseData = new ConcurrentLinkedQueue();
+    private int bufferFactor = AudioFormatNegotiator.BUFFER_FACTORS[AudioFormatNegotiator.DEFAULT_LATENCY];
+    // 2^16 timestamps, 512 KB; older pulses are only kept in the total count
+    private static final int IMPULSE_DATA_CAPACITY = 1 << 16;
+    private PulseRingBuffer impulseData = new PulseRingBuffer(IMPULSE_DATA_CAPACITY);
+    private RateEstimator rateEstimator = new RateEstimator();
+    // pulse timestamps are elapsedRealtimeNanos() derived from the sample position
+    private SampleClock sampleClock = new SampleClock(sampleRate);
+    private final DoseIntegrator doseIntegrator = new DoseIntegrator();
+    private ThresholdPulseDetector pulseDetector = new ThresholdPulseDetector();
+    // the right channel of a stereo input, the left one is pulseDetector
+    private final ThresholdPulseDetector rightDetector = new ThresholdPulseDetector();
+    private int rightImpulseWidth = 0;
+    private int rightImpulseWidthInSamples = 0;
+    // rates of the left and right tube, the combined one is rateEstimator
+    private final RateEstimator[] channelRates = {new RateEstimator(), new RateEstimator()};
+    private final ChannelCombiner channelCombiner = new ChannelCombiner();
+    // the deinterleaved block
+    private short[][] channelBlocks = new short[2][0];
+    // rate updates for the UI, at most 4 per second
+    private static final long RATE_UPDATE_INTERVAL_NANOS = 250000000L;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final RatePublisher ratePublisher = new RatePublisher(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            uiHandler.post(command);
+        }
+    }, RATE_UPDATE_INTERVAL_NANOS);
+    private DeadTimeCorrection.Model deadTimeModel = DeadTimeCorrection.Model.NONE;
+    private double tubeDeadTimeSeconds = 0;
+    // 16 blocks of a quarter recorder buffer each give 4 recorder buffers of slack
+    private static final int PIPELINE_BLOCKS = 16;
+    private AudioPipeline pipeline;
+    private volatile PulseSink pulseSink;
+    // block being processed, for sinks which look at the samples around a pulse
+    private short[] currentBlock;
+    private int currentBlockLength;
+    private ScopeRenderer scopeRenderer;
+    // pulse shape spectra, kept across runs until cleared
+    private final PulseShapeAnalyzer pulseShapes = new PulseShapeAnalyzer();
+    private SpectrumRenderer spectrumRenderer;
+    private long nextFrame = 0;
+    // survey mode: the sample clock counts recorded time only, offNanos
+    // takes it to elapsed time, set again at each resume(), and the frames
+    // after resume() continue from frameBase
+    private long frameBase = 0;
+    private volatile long offNanos = 0;
+    private volatile boolean paused = false;
+    // since startRecording(), on the sample clock
+    private volatile long recordedNanos = 0;
+    // pulses counted since startRecording(), not cleared with the averages
+    private volatile long pulseCount = 0;
+    // pulses are also appended to the log when one is set
+    private PulseLog pulseLog;
+    private volatile long sessionStartMillis = 0;
 
     public void init() {
         try{
-            if (audioRecord == null){
-                int minInternalBufferSize = AudioRecord.getMinBufferSize(sampleRate,
-                        channelConfig, audioFormat);
-                internalBufferSize = minInternalBufferSize * 4;
-
-                audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
-                        sampleRate, channelConfig, audioFormat, internalBufferSize);
-            }
-            if (audioRecord == null){
-                Log.e(TAG, "init(): audioRecord is null");
-                return;
+            if (audioSource == null){
+                setAudioSource(new AudioRecordSource(MediaRecorder.AudioSource.DEFAULT,
+                        sampleRate, channelConfig, audioFormat, bufferFactor));
             }
         } catch (Exception e){
             Log.e(TAG, "in startRecord()");
@@ -51,161 +102,546 @@ public class AudioService implements Serializable {
 
     }
 
+    // microphone format, e.g. from AudioFormatNegotiator; replaces a microphone
+    // opened by init(), not while running
+    public void setInputFormat(AudioInputFormat format, int channelConfig, int bufferFactor){
+        this.audioFormat = format.getEncoding();
+        this.channelConfig = channelConfig;
+        this.bufferFactor = bufferFactor;
+        if (audioSource != null){
+            audioSource.release();
+        }
+        setAudioSource(new AudioRecordSource(MediaRecorder.AudioSource.DEFAULT,
+                format.getSampleRate(), channelConfig, audioFormat, bufferFactor));
+    }
+
+    // replaces the microphone, e.g. with a SyntheticPulseSource or PcmFileSource;
+    // must be called before init() and before any of the run modes
+    public void setAudioSource(AudioSource source){
+        audioSource = source;
+        internalBufferSize = source.getBufferSize();
+        sampleRate = source.getSampleRate();
+        channels = source.getChannelCount();
+        channelBlocks = new short[2][channels > 1 ? blockSize() / channels : 0];
+        sampleClock = new SampleClock(sampleRate);
+        setImpulseWidth(impulseWidth);
+        setRightImpulseWidth(rightImpulseWidth);
+        setAdaptiveTrigger(adaptiveTrigger, triggerSigmas);
+        setDcBlock(dcBlock);
+        // rise time and width bins are samples of the old rate
+        pulseShapes.requestClear();
+    }
+
     private void startRecording(){
-        if (audioRecord != null && audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING){
-            audioRecord.startRecording();
-            isRun = true;
+        if (!audioSource.isRecording()){
+            audioSource.start();
+        }
+        long anchorNanos = SystemClock.elapsedRealtimeNanos();
+        sampleClock.start(anchorNanos);
+        sessionStartMillis = System.currentTimeMillis();
+        if (pulseLog != null){
+            pulseLog.startSession(anchorNanos, sessionStartMillis);
         }
+        pulseDetector.reset();
+        rightDetector.reset();
+        channelCombiner.reset();
+        pulseShapes.skip();
+        doseIntegrator.restart();
+        nextFrame = 0;
+        frameBase = 0;
+        offNanos = 0;
+        recordedNanos = 0;
+        pulseCount = 0;
+        paused = false;
     }
 
     public void runSettingsMode(LineChartView chart) throws Exception{
-        Line impulseWaveLine = new Line(new LinkedList<>()).setColor(Color.BLACK).setCubic(false);
-        Line levelTriggerLine = new Line(new LinkedList<>()).setColor(Color.RED).setCubic(false);
-        LineChartData linesData = new LineChartData();
-
-        chart.setInteractive(true);
-
-        impulseWaveLine.setPointRadius(0);
-        impulseWaveLine.setStrokeWidth(1);
-
-        levelTriggerLine.setPointRadius(0);
-        levelTriggerLine.setStrokeWidth(1);
-
-        List<Line> lines = new LinkedList();
-        lines.add(impulseWaveLine);
-        lines.add(levelTriggerLine);
-        linesData.setLines(lines);
-        impulseWaveLine.setHasLabels(true);
-
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    startRecording();
-                    short[] audioData = new short[internalBufferSize];
-                    List<Long> cpsRate = new LinkedList();
-                    while(isRun){
-                        audioRecord.read(audioData, 0, internalBufferSize);
-                        for(int i = 0; i < audioData.length; i++) {
-                            short audioLevel = audioData[i];
-                            if(audioLevel > triggerLevel){
-                                List<PointValue> values = new LinkedList();
-                                List<PointValue> trigger = new LinkedList();
-                                // extract impulse audiodata
-                                // with impulseWidthInSamples offset from left and right side
-                                int impulseStartIndex = i - impulseWidthInSamples;
-                                if(impulseStartIndex < 0){
-                                    impulseStartIndex = 0;
-                                }
-                                int impulseEndIndex =
-                                        (impulseStartIndex + impulseWidthInSamples * 2);
-                                if(impulseEndIndex > audioData.length){
-                                    impulseEndIndex = audioData.length;
-                                }
-                                int xAxisCounter = 0;
-                                for(int k = impulseStartIndex; k < impulseEndIndex; k++){
-
-                                    PointValue p = new PointValue(xAxisCounter, audioData[k]);
-                                    p.setLabel("");
-                                    values.add(p);
-                                    PointValue t = new PointValue(xAxisCounter, triggerLevel);
-                                    t.setLabel("");
-                                    trigger.add(t);
-
-                                    xAxisCounter ++;
-                                }
-                                impulseWaveLine.setValues(values);
-                                levelTriggerLine.setValues(trigger);
-                                chart.setLineChartData(linesData); // update the chart view
-
-                                cpsRate.add(System.currentTimeMillis());
-                            }
-                            i = i + impulseWidthInSamples;
-                            if (i > audioData.length){
-                                break;
-                            }
-                        }
-                        int totalCounts = cpsRate.size();
-                        if (totalCounts > 2){
-                            float remainMilSeconds = (float) (cpsRate.get(totalCounts - 1) - cpsRate.get(0));
-                            //remainMilSeconds
-                            float remainSeconds = remainMilSeconds / 1000;
-                            cps = totalCounts / remainSeconds;
-                        }
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "in readTheData", e);
+        if(scopeRenderer != null){
+            scopeRenderer.stop();
+        }
+        if(spectrumRenderer != null){
+            spectrumRenderer.stop();
+            spectrumRenderer = null;
+        }
+        final ScopeRenderer scope = new ScopeRenderer(chart);
+        scopeRenderer = scope;
+        scope.start();
+
+        runDetection(new PulseSink() {
+            @Override
+            public void onPulse(long sampleIndex, int offset) {
+                // extract impulse audiodata
+                // with impulseWidthInSamples offset from left and right side
+                int impulseStartIndex = offset - impulseWidthInSamples;
+                if(impulseStartIndex < 0){
+                    impulseStartIndex = 0;
                 }
+                int impulseEndIndex =
+                        (impulseStartIndex + impulseWidthInSamples * 2);
+                if(impulseEndIndex > currentBlockLength){
+                    impulseEndIndex = currentBlockLength;
+                }
+                scope.capture(currentBlock, impulseStartIndex, impulseEndIndex - impulseStartIndex,
+                        pulseDetector.getTriggerLevel());
+            }
+        });
+    }
+
+
+    // histograms of pulse amplitude, rise time or width instead of the scope,
+    // see PulseShapeAnalyzer for the kinds
+    public void runSpectrumMode(LineChartView chart, int kind){
+        if(scopeRenderer != null){
+            scopeRenderer.stop();
+            scopeRenderer = null;
+        }
+        if(spectrumRenderer != null){
+            spectrumRenderer.stop();
+        }
+        spectrumRenderer = new SpectrumRenderer(chart);
+        setSpectrumKind(kind);
+        spectrumRenderer.start();
+
+        runDetection(new PulseSink() {
+            @Override
+            public void onPulse(long sampleIndex, int offset) {
+                pulseShapes.analyze(currentBlock, offset, currentBlockLength, pulseDetector.getTriggerLevel());
             }
-        }).start();
+        });
+    }
+
+    // amplitudes in sample units, times in µs
+    public void setSpectrumKind(int kind){
+        if(spectrumRenderer != null){
+            spectrumRenderer.setHistogram(pulseShapes.getHistogram(kind),
+                    kind == PulseShapeAnalyzer.AMPLITUDE ? 1 : 1000000.0 / sampleRate);
+        }
+    }
+
+    public void clearSpectrum(){
+        pulseShapes.requestClear();
+    }
+
+    public PulseShapeAnalyzer getPulseShapes(){
+        return pulseShapes;
     }
 
     public void runMeasureMode(){
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    startRecording();
-                    short[] audioData = new short[internalBufferSize];
-                    int impulseWidthOffset = 0;
-                    while(isRun){
-                        audioRecord.read(audioData, 0, internalBufferSize);
-                        // scip whole portion of samples if impulse width too long
-                        if(impulseWidthOffset >= audioData.length){
-                            impulseWidthOffset = impulseWidthOffset - audioData.length;
-                            continue;
-                        }
-                        for(int i = 0; i < audioData.length;) {
-                            if(impulseWidthOffset > 0){
-                                i = impulseWidthOffset;
-                                impulseWidthOffset = 0;
-                            }
-                            short audioLevel = audioData[i];
-                            i++;
-                            if(audioLevel > triggerLevel){
-                                impulseData.add(System.currentTimeMillis());
-                                // skip other samples by length of impulse width
-                                // impulseWidthOffset it is a rest part of the offset
-                                i = i + impulseWidthInSamples;
-                                impulseWidthOffset = i - audioData.length;
-                                if(impulseWidthOffset > 0){
-                                    break;
-                                } else {
-                                    impulseWidthOffset = 0;
-                                }
-                            }
-                        }
+        runDetection(new PulseSink() {
+            @Override
+            public void onPulse(long sampleIndex, int offset) {
+            }
+        });
+    }
+
+    // all modes run the same detector, they differ only in what is done with
+    // a pulse besides counting it; with stereo input the sink gets the pulses
+    // of the left channel
+    private void runDetection(PulseSink sink){
+        pulseSink = sink;
+        if(pipeline != null && pipeline.isRunning()){
+            return;
+        }
+        // one that ended on a read error may still be processing
+        joinPipeline();
+        startRecording();
+        startPipeline();
+    }
+
+    private void startPipeline(){
+        pipeline = new AudioPipeline(audioSource, blockSize(), PIPELINE_BLOCKS,
+                new AudioPipeline.BlockProcessor() {
+                    @Override
+                    public void process(short[] data, int length, long startSample) {
+                        processBlock(data, length, startSample);
                     }
-                } catch (Exception e) {
-                    Log.e(TAG, "in readTheData", e);
-                }
+                }) {
+            @Override
+            protected void onCaptureThreadStart() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            }
+
+            @Override
+            protected void onProcessingThreadStart() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            }
+
+            @Override
+            protected void onReadError(int code) {
+                Log.e(TAG, "audioSource.read() failed: " + code);
             }
-        }).start();
+
+            @Override
+            protected void onProcessingError(Exception e) {
+                Log.e(TAG, "in processBlock", e);
+            }
+        };
+        pipeline.start();
+    }
+
+    // a quarter of the recorder buffer, whole frames
+    private int blockSize(){
+        return Math.max(internalBufferSize / 4 / channels, 1) * channels;
+    }
+
+    // survey mode: stops recording without ending the session, the pulse
+    // log stays open; blocks until the processing thread is done
+    public void pause(){
+        if(pipeline == null || !pipeline.isRunning()){
+            return;
+        }
+        pipeline.stop();
+        audioSource.stop();
+        joinPipeline();
+        paused = true;
+    }
+
+    // records on from the sample after the pause, as if there was none;
+    // the dose of the pause is measuredCps times its length
+    public void resume(double measuredCps){
+        if(!paused){
+            return;
+        }
+        paused = false;
+        if (!audioSource.isRecording()){
+            audioSource.start();
+        }
+        // the next sample is taken as now: the pause is all time since the
+        // last processed sample, with the tail lost at the stop and the
+        // recorder's stop and start latency, so the clock of the logged
+        // pulses does not fall behind with each window
+        long recordedEnd = sampleClock.nowNanos();
+        long oldOffNanos = offNanos;
+        long newOffNanos = Math.max(oldOffNanos, SystemClock.elapsedRealtimeNanos() - recordedEnd);
+        if(pulseLog != null){
+            pulseLog.addGap(recordedEnd + oldOffNanos, recordedEnd + newOffNanos);
+        }
+        offNanos = newOffNanos;
+        // the processing thread is stopped
+        doseIntegrator.extrapolate((newOffNanos - oldOffNanos) / (double) SampleClock.NANOS_PER_SECOND, measuredCps);
+        frameBase = nextFrame;
+        pulseDetector.skip(0);
+        rightDetector.skip(0);
+        pulseShapes.skip();
+        // a pulse waiting for its partner would meet one from after the pause
+        channelCombiner.reset();
+        startPipeline();
+    }
+
+    public boolean isPaused(){
+        return paused;
+    }
+
+    public long getPulseCount(){
+        return pulseCount;
+    }
+
+    // time recorded since the start, without the pauses
+    public long getRecordedNanos(){
+        return recordedNanos;
+    }
+
+    // processing thread; data holds interleaved frames of all channels
+    private void processBlock(short[] data, int length, long startSample){
+        long startFrame = frameBase + startSample / channels;
+        int frames = length / channels;
+        if(startFrame > nextFrame){
+            // the capture thread had to drop blocks
+            long dropped = startFrame - nextFrame;
+            pulseDetector.skip(dropped);
+            rightDetector.skip(dropped);
+            sampleClock.advance(dropped);
+            pulseShapes.skip();
+        }
+        if(channels == 1){
+            currentBlock = data;
+            currentBlockLength = length;
+            pulseDetector.process(data, length, monoSink);
+        } else {
+            processStereo(data, frames, startFrame + frames);
+        }
+        // pulses at the end of the block are measured with the next one
+        pulseShapes.endBlock(currentBlock, currentBlockLength);
+        sampleClock.advance(frames);
+        nextFrame = startFrame + frames;
+        long now = sampleClock.nowNanos();
+        recordedNanos = now - sampleClock.toNanos(0);
+        rateEstimator.publish(now);
+        if(channels > 1){
+            channelRates[0].publish(now);
+            channelRates[1].publish(now);
+        }
+        RateSnapshot snapshot = rateEstimator.getSnapshot();
+        // alarms go off in the block that crosses a threshold
+        doseIntegrator.update(now, snapshot.getShortWindowCount(), snapshot.getShortWindowSeconds());
+        ratePublisher.publish(snapshot, now);
+        if(pulseLog != null){
+            pulseLog.commit();
+        }
+    }
+
+    // one pass splits the frames, then each channel's detector runs on its
+    // own contiguous copy, which is still in cache and keeps the detector's
+    // sequential scan; the combiner merges what both found up to endFrame
+    private void processStereo(short[] data, int frames, long endFrame){
+        short[] left = channelBlocks[0];
+        short[] right = channelBlocks[1];
+        AudioInputFormat.deinterleave(data, frames, left, right);
+        currentBlock = left;
+        currentBlockLength = frames;
+        pulseDetector.process(left, frames, leftSink);
+        rightDetector.process(right, frames, rightSink);
+        channelCombiner.flush(endFrame, combinedSink);
+    }
+
+    private final PulseSink monoSink = new PulseSink() {
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            onImpulse(sampleIndex);
+            pulseSink.onPulse(sampleIndex, offset);
+        }
+    };
+
+    private final PulseSink leftSink = new PulseSink() {
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            channelRates[0].onPulse(sampleClock.toNanos(sampleIndex));
+            channelCombiner.add(0, sampleIndex);
+            pulseSink.onPulse(sampleIndex, offset);
+        }
+    };
+
+    private final PulseSink rightSink = new PulseSink() {
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            channelRates[1].onPulse(sampleClock.toNanos(sampleIndex));
+            channelCombiner.add(1, sampleIndex);
+        }
+    };
+
+    private final PulseSink combinedSink = new PulseSink() {
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            onImpulse(sampleIndex);
+        }
+    };
+
+    private void onImpulse(long sampleIndex){
+        long timestamp = sampleClock.toNanos(sampleIndex);
+        impulseData.add(timestamp);
+        pulseCount++;
+        rateEstimator.onPulse(timestamp);
+        doseIntegrator.onPulse(timestamp);
+        if(pulseLog != null){
+            // the log keeps wall clock time
+            pulseLog.append(timestamp + offNanos);
+        }
     }
 
     public void stop(){
-        isRun = false;
-        if (audioRecord != null){
-            audioRecord.stop();
+        paused = false;
+        if (scopeRenderer != null){
+            scopeRenderer.stop();
+            scopeRenderer = null;
+        }
+        if (spectrumRenderer != null){
+            spectrumRenderer.stop();
+            spectrumRenderer = null;
+        }
+        if (pipeline != null){
+            pipeline.stop();
+        }
+        if (audioSource != null){
+            audioSource.stop();
+        }
+        // the processing thread drains its queued blocks into the detector,
+        // the estimators and the log; it must be done before they are reset
+        // by the next run or the log is sealed
+        joinPipeline();
+        if (pulseLog != null){
+            try{
+                pulseLog.close();
+            } catch (InterruptedException e){
+                Log.e(TAG, "in stop:" + e);
+            }
+        }
+    }
+
+    private void joinPipeline(){
+        if (pipeline == null){
+            return;
+        }
+        try{
+            pipeline.join();
+        } catch (InterruptedException e){
+            Log.e(TAG, "in joinPipeline:" + e);
+        }
+    }
+
+    // stops and lets go of the microphone, init() opens it again
+    public void release(){
+        stop();
+        if (audioSource != null){
+            audioSource.release();
+            audioSource = null;
         }
     }
 
     public void setTriggerLevel(int level){
         triggerLevel = (short) ((Short.MAX_VALUE * level) / 100);
+        pulseDetector.setTriggerLevel(triggerLevel);
+    }
+
+    // follows the noise floor, sigmas above it, instead of the fixed level
+    public void setAdaptiveTrigger(boolean adaptive, float sigmas){
+        adaptiveTrigger = adaptive;
+        triggerSigmas = sigmas;
+        int timeConstant = (int) ((long) sampleRate * NOISE_TIME_CONSTANT_MILLIS / 1000);
+        pulseDetector.setAdaptive(adaptive, sigmas, TRIGGER_HYSTERESIS_SIGMAS, timeConstant);
+        rightDetector.setAdaptive(adaptive, sigmas, TRIGGER_HYSTERESIS_SIGMAS, timeConstant);
+    }
+
+    public void setPolarity(ThresholdPulseDetector.Polarity polarity){
+        pulseDetector.setPolarity(polarity);
+        rightDetector.setPolarity(polarity);
+    }
+
+    // removes a DC bias of the input before the trigger
+    public void setDcBlock(boolean enabled){
+        dcBlock = enabled;
+        float pole = (float) Math.exp(-2 * Math.PI * DC_BLOCK_CUTOFF_HZ / sampleRate);
+        pulseDetector.setDcBlock(enabled, pole);
+        rightDetector.setDcBlock(enabled, pole);
+    }
+
+    // % of full scale, as setTriggerLevel() takes it; the chosen one when adaptive
+    public float getTriggerLevelPercent(){
+        return pulseDetector.getTriggerLevel() * 100f / Short.MAX_VALUE;
     }
 
     public void setImpulseWidth(Integer width) {
-        // width is
-        impulseWidthInSamples = width * timeResolutionInSamples;
+        // width is in ms
+        impulseWidth = width;
+        impulseWidthInSamples = (int) Math.round(width * (double) sampleRate / 1000);
+        pulseDetector.setDeadTimeSamples(impulseWidthInSamples);
+        updateDeadTimeCorrection();
+    }
+
+    // trigger level (% of full scale, fixed mode) of the right channel of a
+    // stereo input; the other detection settings are shared
+    public void setRightTriggerLevel(int level){
+        rightDetector.setTriggerLevel((short) ((Short.MAX_VALUE * level) / 100));
+    }
+
+    // ms
+    public void setRightImpulseWidth(int width){
+        rightImpulseWidth = width;
+        rightImpulseWidthInSamples = (int) Math.round(width * (double) sampleRate / 1000);
+        rightDetector.setDeadTimeSamples(rightImpulseWidthInSamples);
+        updateDeadTimeCorrection();
+    }
+
+    // how the pulses of a stereo input are counted, the window is in samples
+    public void setChannelMode(ChannelCombiner.Mode mode, int windowSamples){
+        channelCombiner.setMode(mode);
+        channelCombiner.setWindowSamples(windowSamples);
+        updateDeadTimeCorrection();
+    }
+
+    public int getChannelCount(){
+        return channels;
+    }
+
+    // rates of the left (0) and right (1) channel of a stereo input
+    public RateSnapshot getChannelRateSnapshot(int channel){
+        return channelRates[channel].getSnapshot();
+    }
+
+    public void setDeadTimeCorrection(DeadTimeCorrection.Model model, double tubeDeadTimeSeconds){
+        deadTimeModel = model;
+        this.tubeDeadTimeSeconds = tubeDeadTimeSeconds;
+        updateDeadTimeCorrection();
+    }
+
+    // the impulse width acts as a non-paralyzable dead time on its own,
+    // the longer of it and the tube's dead time dominates
+    private void updateDeadTimeCorrection(){
+        DeadTimeCorrection left = channelDeadTime(impulseWidthInSamples);
+        DeadTimeCorrection right = channelDeadTime(rightImpulseWidthInSamples);
+        DeadTimeCorrection combined = left;
+        if(channels > 1 && channelCombiner.getMode() == ChannelCombiner.Mode.SUM){
+            // two tubes losing n/2·τ each lose as much as one with τ/2
+            combined = new DeadTimeCorrection(deadTimeModel,
+                    (left.getDeadTimeSeconds() + right.getDeadTimeSeconds()) / 4);
+        }
+        rateEstimator.setDeadTimeCorrection(combined);
+        doseIntegrator.setDeadTimeCorrection(combined);
+        channelRates[0].setDeadTimeCorrection(left);
+        channelRates[1].setDeadTimeCorrection(right);
+    }
+
+    private DeadTimeCorrection channelDeadTime(int widthInSamples){
+        double impulseWidthSeconds = (widthInSamples + 1) / (double) sampleRate;
+        return new DeadTimeCorrection(deadTimeModel, Math.max(tubeDeadTimeSeconds, impulseWidthSeconds));
+    }
+
+    public int getSampleRate(){
+        return sampleRate;
     }
 
     public float getCps(){
-        return cps;
+        return rateEstimator.getSnapshot().getCps();
+    }
+
+    // blocks dropped because processing fell behind capture
+    public long getOverrunCount(){
+        return pipeline != null ? pipeline.getOverrunCount() : 0;
+    }
+
+    public long getDroppedSamples(){
+        return pipeline != null ? pipeline.getDroppedSamples() : 0;
+    }
+
+    public long getUnderrunCount(){
+        return pipeline != null ? pipeline.getUnderrunCount() : 0;
+    }
+
+    // must be set before one of the run modes, the log must be open
+    public void setPulseLog(PulseLog log){
+        pulseLog = log;
+    }
+
+    public PulseLog getPulseLog(){
+        return pulseLog;
+    }
+
+    // wall clock time the current recording started
+    public long getSessionStartMillis(){
+        return sessionStartMillis;
+    }
+
+    public PulseRingBuffer getImpulseData(){
+        return impulseData;
+    }
+
+    // called on the UI thread when the rate changed, null to stop
+    public void setRateListener(RatePublisher.Listener listener){
+        ratePublisher.setListener(listener);
+    }
+
+    // dose and alarms, calibrated and given thresholds by the caller
+    public DoseIntegrator getDoseIntegrator(){
+        return doseIntegrator;
     }
 
-    public LinkedList<Long> getImpulseData(){
-        return new LinkedList(impulseData);
+    public RateSnapshot getRateSnapshot(){
+        return rateEstimator.getSnapshot();
     }
 
     public void clearImpulseData(){
         impulseData.clear();
+        rateEstimator.reset();
+        channelRates[0].reset();
+        channelRates[1].reset();
     }
 }
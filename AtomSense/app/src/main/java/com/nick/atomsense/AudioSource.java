@@ -0,0 +1,27 @@
+package com.nick.atomsense;
+
+// Where AudioService gets its 16-bit PCM from, mono or interleaved stereo. Implemented by the
+// microphone (AudioRecordSource) and, for headless testing on a plain JVM,
+// by SyntheticPulseSource and PcmFileSource.
+public interface AudioSource {
+
+    int getSampleRate();
+
+    // 1 or 2; sizes and counts below are in samples of all channels
+    int getChannelCount();
+
+    // preferred number of samples per read()
+    int getBufferSize();
+
+    void start();
+
+    boolean isRecording();
+
+    // blocks like AudioRecord.read(), returns the number of samples read
+    // or a negative value on error or end of stream
+    int read(short[] buf, int offset, int len);
+
+    void stop();
+
+    void release();
+}
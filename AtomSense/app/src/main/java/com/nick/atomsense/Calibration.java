@@ -0,0 +1,190 @@
+package com.nick.atomsense;
+
+import android.content.SharedPreferences;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Conversion of a dead time corrected count rate n to a dose rate in µR/h,
+// with the reference points it was fitted to (see CalibrationFitter).
+//   POLYNOMIAL  a·n² + b·n + c, the factors A, B, C of the settings
+//   DEAD_TIME   k·n / (1 - n·τ) + background, for a tube that loses more
+//               counts than the rate correction accounts for
+// Immutable. Lookups go through a CalibrationTable.
+// Saved as: version, model, the coefficients, then the points as cps and
+// µR/h pairs.
+public final class Calibration {
+
+    public enum Model {
+        POLYNOMIAL,
+        DEAD_TIME
+    }
+
+    public static final String FILE_NAME = "calibration";
+    private static final int FORMAT_VERSION = 1;
+    // a, b, c or k, τ, background
+    static final int COEFFICIENTS = 3;
+    private static final double[] NO_POINTS = {};
+
+    public static final Calibration NONE = polynomial(0, 0, 0);
+
+    private final Model model;
+    private final double[] coefficients;
+    private final double[] pointCps;
+    private final double[] pointRates;
+
+    public Calibration(Model model, double[] coefficients, double[] pointCps, double[] pointRates){
+        if(coefficients.length != COEFFICIENTS || pointCps.length != pointRates.length){
+            throw new IllegalArgumentException("bad calibration");
+        }
+        this.model = model;
+        this.coefficients = coefficients.clone();
+        this.pointCps = pointCps.clone();
+        this.pointRates = pointRates.clone();
+    }
+
+    public static Calibration polynomial(double a, double b, double c){
+        return new Calibration(Model.POLYNOMIAL, new double[]{a, b, c}, NO_POINTS, NO_POINTS);
+    }
+
+    // the same model fitted to other points is up to CalibrationFitter
+    public Calibration withPoints(double[] pointCps, double[] pointRates){
+        return new Calibration(model, coefficients, pointCps, pointRates);
+    }
+
+    public double evaluate(double cps){
+        switch (model){
+            case DEAD_TIME: {
+                double live = 1 - cps * coefficients[1];
+                if(live <= 0){
+                    return Double.POSITIVE_INFINITY;
+                }
+                return coefficients[0] * cps / live + coefficients[2];
+            }
+            default:
+                return (coefficients[0] * cps + coefficients[1]) * cps + coefficients[2];
+        }
+    }
+
+    public boolean isCalibrated(){
+        return coefficients[0] != 0 || coefficients[1] != 0 || coefficients[2] != 0;
+    }
+
+    // where DEAD_TIME goes to infinity, infinite for POLYNOMIAL
+    public double getPoleCps(){
+        if(model == Model.DEAD_TIME && coefficients[1] > 0){
+            return 1 / coefficients[1];
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    public Model getModel(){
+        return model;
+    }
+
+    public double getCoefficient(int index){
+        return coefficients[index];
+    }
+
+    public int getPointCount(){
+        return pointCps.length;
+    }
+
+    public double getPointCps(int index){
+        return pointCps[index];
+    }
+
+    public double getPointRate(int index){
+        return pointRates[index];
+    }
+
+    public double getMaxPointCps(){
+        double max = 0;
+        for(double cps : pointCps){
+            max = Math.max(max, cps);
+        }
+        return max;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(model.ordinal());
+        for(double coefficient : coefficients){
+            out.writeDouble(coefficient);
+        }
+        out.writeInt(pointCps.length);
+        for(int i = 0; i < pointCps.length; i++){
+            out.writeDouble(pointCps[i]);
+            out.writeDouble(pointRates[i]);
+        }
+    }
+
+    public static Calibration readFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if(version != FORMAT_VERSION){
+            throw new IOException("unsupported calibration version " + version);
+        }
+        int modelIndex = in.readInt();
+        if(modelIndex < 0 || modelIndex >= Model.values().length){
+            throw new IOException("corrupt calibration");
+        }
+        double[] coefficients = new double[COEFFICIENTS];
+        for(int i = 0; i < COEFFICIENTS; i++){
+            coefficients[i] = in.readDouble();
+        }
+        int points = in.readInt();
+        if(points < 0 || points > 1000){
+            throw new IOException("corrupt calibration");
+        }
+        double[] pointCps = new double[points];
+        double[] pointRates = new double[points];
+        for(int i = 0; i < points; i++){
+            pointCps[i] = in.readDouble();
+            pointRates[i] = in.readDouble();
+        }
+        return new Calibration(Model.values()[modelIndex], coefficients, pointCps, pointRates);
+    }
+
+    // through a temporary file, a crash leaves the previous one
+    public void save(File directory) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try{
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            writeTo(out);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if(!temp.renameTo(file)){
+            throw new IOException("can not replace " + file);
+        }
+    }
+
+    // the saved calibration, or the factors A, B, C of older settings
+    public static Calibration load(File directory, SharedPreferences preferences) throws IOException {
+        File file = new File(directory, FILE_NAME);
+        if(!file.exists()){
+            return polynomial(
+                    preferences.getFloat(SettingsActivity.SETTING_FACTOR_A, 0),
+                    preferences.getFloat(SettingsActivity.SETTING_FACTOR_B, 0),
+                    preferences.getFloat(SettingsActivity.SETTING_FACTOR_C, 0));
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try{
+            return readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.nick.atomsense;
+
+// Least squares fit of a Calibration to reference points: the corrected
+// count rate measured at a known dose rate, in µR/h.
+//   POLYNOMIAL  points at one rate give b·n, at two a line b·n + c, at
+//               three or more the quadratic, through the normal equations
+//   DEAD_TIME   linear in k and the background for a fixed τ, so τ is found
+//               by a golden section search on the residual over
+//               [0, 0.95 / highest rate), with k and the background solved
+//               at each step; points at fewer than three rates fit τ = 0
+// Milliseconds of work, still to be called off the UI thread.
+public class CalibrationFitter {
+
+    private static final int GOLDEN_ITERATIONS = 100;
+    private static final double GOLDEN_RATIO = (Math.sqrt(5) - 1) / 2;
+
+    public static Calibration fit(Calibration.Model model, double[] cps, double[] rates){
+        if(cps.length == 0 || cps.length != rates.length){
+            throw new IllegalArgumentException("no reference points");
+        }
+        for(double value : cps){
+            if(!(value > 0)){
+                throw new IllegalArgumentException("reference rate must be above 0 CPS");
+            }
+        }
+        double[] coefficients = model == Calibration.Model.DEAD_TIME
+                ? fitDeadTime(cps, rates) : fitPolynomial(cps, rates);
+        return new Calibration(model, coefficients, cps, rates);
+    }
+
+    static double[] fitPolynomial(double[] cps, double[] rates){
+        int n = cps.length;
+        int distinct = distinctRates(cps);
+        if(distinct == 1){
+            return new double[]{0, fitLine(cps, rates)[0], 0};
+        }
+        if(distinct == 2){
+            double[] line = fitLine(cps, rates);
+            return new double[]{0, line[0], line[1]};
+        }
+        // normal equations of a·x² + b·x + c, sums of x^k and y·x^k
+        double[] powers = new double[5];
+        double[] moments = new double[3];
+        for(int i = 0; i < n; i++){
+            double power = 1;
+            for(int k = 0; k < 5; k++){
+                powers[k] += power;
+                if(k < 3){
+                    moments[k] += rates[i] * power;
+                }
+                power *= cps[i];
+            }
+        }
+        // rows for c, b, a
+        double[][] matrix = {
+                {powers[0], powers[1], powers[2], moments[0]},
+                {powers[1], powers[2], powers[3], moments[1]},
+                {powers[2], powers[3], powers[4], moments[2]}
+        };
+        double[] solution = solve(matrix);
+        if(solution == null){
+            double[] line = fitLine(cps, rates);
+            return new double[]{0, line[0], line[1]};
+        }
+        return new double[]{solution[2], solution[1], solution[0]};
+    }
+
+    static double[] fitDeadTime(double[] cps, double[] rates){
+        int distinct = distinctRates(cps);
+        if(distinct < 3){
+            double[] line = fitLine(cps, rates);
+            return new double[]{line[0], 0, line[1]};
+        }
+        double maxCps = 0;
+        for(double value : cps){
+            maxCps = Math.max(maxCps, value);
+        }
+        double low = 0;
+        double high = 0.95 / maxCps;
+        double x1 = high - GOLDEN_RATIO * (high - low);
+        double x2 = low + GOLDEN_RATIO * (high - low);
+        double r1 = deadTimeResidual(cps, rates, x1);
+        double r2 = deadTimeResidual(cps, rates, x2);
+        for(int i = 0; i < GOLDEN_ITERATIONS; i++){
+            if(r1 <= r2){
+                high = x2;
+                x2 = x1;
+                r2 = r1;
+                x1 = high - GOLDEN_RATIO * (high - low);
+                r1 = deadTimeResidual(cps, rates, x1);
+            } else {
+                low = x1;
+                x1 = x2;
+                r1 = r2;
+                x2 = low + GOLDEN_RATIO * (high - low);
+                r2 = deadTimeResidual(cps, rates, x2);
+            }
+        }
+        double tau = (low + high) / 2;
+        // the search never quite reaches the ends of the range
+        if(deadTimeResidual(cps, rates, 0) <= deadTimeResidual(cps, rates, tau)){
+            tau = 0;
+        }
+        double[] line = fitLine(lived(cps, tau), rates);
+        return new double[]{line[0], tau, line[1]};
+    }
+
+    private static double deadTimeResidual(double[] cps, double[] rates, double tau){
+        double[] x = lived(cps, tau);
+        double[] line = fitLine(x, rates);
+        double sum = 0;
+        for(int i = 0; i < x.length; i++){
+            double error = line[0] * x[i] + line[1] - rates[i];
+            sum += error * error;
+        }
+        return sum;
+    }
+
+    // n / (1 - n·τ)
+    private static double[] lived(double[] cps, double tau){
+        double[] x = new double[cps.length];
+        for(int i = 0; i < cps.length; i++){
+            x[i] = cps[i] / (1 - cps[i] * tau);
+        }
+        return x;
+    }
+
+    private static int distinctRates(double[] cps){
+        int distinct = 0;
+        for(int i = 0; i < cps.length && distinct < 3; i++){
+            boolean seen = false;
+            for(int j = 0; j < i; j++){
+                seen |= cps[j] == cps[i];
+            }
+            if(!seen){
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    // slope and intercept; through the origin when all x are equal
+    static double[] fitLine(double[] x, double[] y){
+        int n = x.length;
+        double meanX = 0;
+        double meanY = 0;
+        for(int i = 0; i < n; i++){
+            meanX += x[i];
+            meanY += y[i];
+        }
+        meanX /= n;
+        meanY /= n;
+        double sxx = 0;
+        double sxy = 0;
+        for(int i = 0; i < n; i++){
+            sxx += (x[i] - meanX) * (x[i] - meanX);
+            sxy += (x[i] - meanX) * (y[i] - meanY);
+        }
+        if(sxx <= 1e-12 * meanX * meanX){
+            return new double[]{meanY / meanX, 0};
+        }
+        double slope = sxy / sxx;
+        return new double[]{slope, meanY - slope * meanX};
+    }
+
+    // Gaussian elimination with partial pivoting of an augmented matrix,
+    // null when it is singular
+    private static double[] solve(double[][] matrix){
+        int n = matrix.length;
+        for(int column = 0; column < n; column++){
+            int pivot = column;
+            for(int row = column + 1; row < n; row++){
+                if(Math.abs(matrix[row][column]) > Math.abs(matrix[pivot][column])){
+                    pivot = row;
+                }
+            }
+            if(matrix[pivot][column] == 0){
+                return null;
+            }
+            double[] swap = matrix[column];
+            matrix[column] = matrix[pivot];
+            matrix[pivot] = swap;
+            for(int row = column + 1; row < n; row++){
+                double factor = matrix[row][column] / matrix[column][column];
+                for(int k = column; k <= n; k++){
+                    matrix[row][k] -= factor * matrix[column][k];
+                }
+            }
+        }
+        double[] solution = new double[n];
+        for(int row = n - 1; row >= 0; row--){
+            double sum = matrix[row][n];
+            for(int k = row + 1; k < n; k++){
+                sum -= matrix[row][k] * solution[k];
+            }
+            solution[row] = sum / matrix[row][row];
+        }
+        return solution;
+    }
+}
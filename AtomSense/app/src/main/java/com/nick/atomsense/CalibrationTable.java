@@ -0,0 +1,55 @@
+package com.nick.atomsense;
+
+// A Calibration sampled at TABLE_SIZE + 1 evenly spaced rates from 0 to
+// maxCps and linearly interpolated, so a display update or a dose interval
+// costs two loads and a multiply-add instead of the model. Above maxCps,
+// and for the steep part of a DEAD_TIME model, the model is evaluated.
+// Building it takes a few thousand evaluations; do that off the UI thread.
+// Immutable.
+public final class CalibrationTable {
+
+    static final int TABLE_SIZE = 1024;
+    // the table covers twice the highest reference point, at least this
+    static final double MIN_TABLE_CPS = 100;
+
+    public static final CalibrationTable NONE = new CalibrationTable(Calibration.NONE);
+
+    private final Calibration calibration;
+    private final double maxCps;
+    private final double scale;
+    private final double[] values = new double[TABLE_SIZE + 1];
+
+    public CalibrationTable(Calibration calibration){
+        this.calibration = calibration;
+        // interpolation is poor close to the pole, half way to it is flat enough
+        maxCps = Math.min(Math.max(MIN_TABLE_CPS, 2 * calibration.getMaxPointCps()),
+                calibration.getPoleCps() / 2);
+        scale = TABLE_SIZE / maxCps;
+        for(int i = 0; i <= TABLE_SIZE; i++){
+            values[i] = calibration.evaluate(i / scale);
+        }
+    }
+
+    // µR/h for a corrected count rate
+    public double toDoseRate(double cps){
+        double position = cps * scale;
+        if(!(position >= 0 && position < TABLE_SIZE)){
+            return calibration.evaluate(cps);
+        }
+        int index = (int) position;
+        double fraction = position - index;
+        return values[index] + (values[index + 1] - values[index]) * fraction;
+    }
+
+    public boolean isCalibrated(){
+        return calibration.isCalibrated();
+    }
+
+    public Calibration getCalibration(){
+        return calibration;
+    }
+
+    public double getMaxCps(){
+        return maxCps;
+    }
+}
@@ -0,0 +1,153 @@
+package com.nick.atomsense;
+
+import java.util.Arrays;
+
+// Turns the pulses of the two stereo channels into one stream, in time order.
+//   SUM               every pulse of either tube
+//   COINCIDENCE       a left and a right pulse at most windowSamples apart,
+//                     as one pulse at the later of the two
+//   ANTICOINCIDENCE   left pulses without a right one (a guard tube) within
+//                     windowSamples before or after
+// Both detectors add the pulses of a block, then flush() passes on what is
+// decided. A pulse near the end of the block waits for the next one, since
+// its partner or veto may come in there, so output lags by up to the window.
+// Processing thread only; O(pulses) per block, allocates only to grow.
+public class ChannelCombiner {
+
+    public enum Mode {
+        SUM,
+        COINCIDENCE,
+        ANTICOINCIDENCE
+    }
+
+    private static final int LEFT = 0;
+    private static final int RIGHT = 1;
+
+    private volatile Mode mode = Mode.SUM;
+    private volatile int windowSamples = 0;
+    // sample indices of undecided pulses per channel, ascending
+    private final long[][] pending = {new long[64], new long[64]};
+    private final int[] pendingCount = new int[2];
+
+    public void setMode(Mode mode){
+        this.mode = mode;
+    }
+
+    public Mode getMode(){
+        return mode;
+    }
+
+    public void setWindowSamples(int windowSamples){
+        this.windowSamples = Math.max(0, windowSamples);
+    }
+
+    public void add(int channel, long sampleIndex){
+        long[] pulses = pending[channel];
+        int count = pendingCount[channel];
+        if(count == pulses.length){
+            pulses = Arrays.copyOf(pulses, count * 2);
+            pending[channel] = pulses;
+        }
+        pulses[count] = sampleIndex;
+        pendingCount[channel] = count + 1;
+    }
+
+    // all pulses before endSample were added; the offset passed to the sink
+    // is -1, the pulse may be in an earlier block
+    public void flush(long endSample, PulseSink sink){
+        switch (mode){
+            case COINCIDENCE:
+                flushCoincidence(endSample, sink);
+                break;
+            case ANTICOINCIDENCE:
+                flushAnticoincidence(endSample, sink);
+                break;
+            default:
+                flushSum(sink);
+        }
+    }
+
+    public void reset(){
+        pendingCount[LEFT] = 0;
+        pendingCount[RIGHT] = 0;
+    }
+
+    private void flushSum(PulseSink sink){
+        long[] left = pending[LEFT];
+        long[] right = pending[RIGHT];
+        int leftCount = pendingCount[LEFT];
+        int rightCount = pendingCount[RIGHT];
+        int i = 0;
+        int j = 0;
+        while(i < leftCount || j < rightCount){
+            if(j >= rightCount || (i < leftCount && left[i] <= right[j])){
+                sink.onPulse(left[i++], -1);
+            } else {
+                sink.onPulse(right[j++], -1);
+            }
+        }
+        reset();
+    }
+
+    private void flushCoincidence(long endSample, PulseSink sink){
+        long[] left = pending[LEFT];
+        long[] right = pending[RIGHT];
+        int leftCount = pendingCount[LEFT];
+        int rightCount = pendingCount[RIGHT];
+        int window = windowSamples;
+        int i = 0;
+        int j = 0;
+        while(i < leftCount && j < rightCount){
+            if(Math.abs(left[i] - right[j]) <= window){
+                sink.onPulse(Math.max(left[i], right[j]), -1);
+                i++;
+                j++;
+            } else if(left[i] < right[j]){
+                // later right pulses are further away
+                i++;
+            } else {
+                j++;
+            }
+        }
+        // the rest of one side can still meet a pulse of the next block
+        retainFrom(LEFT, i, endSample - window);
+        retainFrom(RIGHT, j, endSample - window);
+    }
+
+    private void flushAnticoincidence(long endSample, PulseSink sink){
+        long[] left = pending[LEFT];
+        long[] right = pending[RIGHT];
+        int leftCount = pendingCount[LEFT];
+        int rightCount = pendingCount[RIGHT];
+        int window = windowSamples;
+        int i = 0;
+        int j = 0;
+        for(; i < leftCount; i++){
+            long pulse = left[i];
+            if(pulse + window >= endSample){
+                // a veto can still come in the next block
+                break;
+            }
+            while(j < rightCount && right[j] < pulse - window){
+                j++;
+            }
+            if(j >= rightCount || right[j] > pulse + window){
+                sink.onPulse(pulse, -1);
+            }
+        }
+        long oldest = i < leftCount ? Math.min(left[i], endSample) : endSample;
+        retainFrom(LEFT, i, Long.MIN_VALUE);
+        retainFrom(RIGHT, j, oldest - window);
+    }
+
+    // keeps the pulses from index on which are at or after minSample
+    private void retainFrom(int channel, int index, long minSample){
+        long[] pulses = pending[channel];
+        int count = pendingCount[channel];
+        while(index < count && pulses[index] < minSample){
+            index++;
+        }
+        System.arraycopy(pulses, index, pulses, 0, count - index);
+        pendingCount[channel] = count - index;
+    }
+}
@@ -0,0 +1,90 @@
+package com.nick.atomsense;
+
+// Converts a measured count rate into the true event rate for a counter
+// with dead time tau.
+//   non-paralyzable: m = n / (1 + n * tau)
+//   paralyzable:     m = n * exp(-n * tau)
+// Close to the maximum observable rate the inversion is meaningless (and for
+// the paralyzable model ambiguous), there the rate is reported as saturated.
+public class DeadTimeCorrection {
+
+    public enum Model {
+        NONE,
+        NON_PARALYZABLE,
+        PARALYZABLE
+    }
+
+    public static final DeadTimeCorrection NONE = new DeadTimeCorrection(Model.NONE, 0);
+
+    // share of the maximum observable rate above which the counter is saturated
+    static final double SATURATION_FRACTION = 0.9;
+    private static final double INVERSE_E = Math.exp(-1);
+
+    private final Model model;
+    private final double deadTimeSeconds;
+
+    public DeadTimeCorrection(Model model, double deadTimeSeconds){
+        if(deadTimeSeconds < 0){
+            throw new IllegalArgumentException("deadTimeSeconds must not be negative: " + deadTimeSeconds);
+        }
+        this.model = model;
+        this.deadTimeSeconds = deadTimeSeconds;
+    }
+
+    public Model getModel(){
+        return model;
+    }
+
+    public double getDeadTimeSeconds(){
+        return deadTimeSeconds;
+    }
+
+    // highest rate the counter can report, infinite without dead time;
+    // with Model.NONE the rate is not corrected but saturation is still detected
+    public double getMaxMeasurableCps(){
+        if(deadTimeSeconds == 0){
+            return Double.POSITIVE_INFINITY;
+        }
+        if(model == Model.PARALYZABLE){
+            return INVERSE_E / deadTimeSeconds;
+        }
+        return 1 / deadTimeSeconds;
+    }
+
+    public boolean isSaturated(double measuredCps){
+        return measuredCps >= SATURATION_FRACTION * getMaxMeasurableCps();
+    }
+
+    public double correct(double measuredCps){
+        if(measuredCps <= 0 || deadTimeSeconds == 0){
+            return Math.max(0, measuredCps);
+        }
+        switch (model){
+            case NON_PARALYZABLE: {
+                double live = 1 - measuredCps * deadTimeSeconds;
+                return live > 0 ? measuredCps / live : Double.POSITIVE_INFINITY;
+            }
+            case PARALYZABLE:
+                return solveParalyzable(measuredCps * deadTimeSeconds) / deadTimeSeconds;
+            default:
+                return measuredCps;
+        }
+    }
+
+    // x * exp(-x) = y on the branch x <= 1, by Newton's method
+    private static double solveParalyzable(double y){
+        if(y >= INVERSE_E){
+            return 1;
+        }
+        double x = y;
+        for(int i = 0; i < 50; i++){
+            double e = Math.exp(-x);
+            double step = (x * e - y) / ((1 - x) * e);
+            x -= step;
+            if(Math.abs(step) < 1e-12 * x){
+                break;
+            }
+        }
+        return Math.min(x, 1);
+    }
+}
@@ -0,0 +1,215 @@
+package com.nick.atomsense;
+
+// Accumulated dose and the rate and dose alarms, on the processing thread.
+// Pulses are counted in 1 s intervals of the sample clock, the seconds of the
+// rollup index; a closed interval adds its dead time corrected rate, through
+// the calibration table, times its length. The open interval is
+// estimated from the short window rate, so the dose alarm goes off in the
+// block that crosses its threshold instead of up to a second later. The rate
+// alarm compares the same short window rate on every block. Both wait until
+// the window holds a second or CUSUM_MIN_COUNT pulses: at the start of a
+// session it is only as long as the time since the first pulse, and one
+// pulse just before a block ends would read as hundreds of CPS.
+//
+// Calibrated, rates are µR/h and the dose µR. Without a calibration rates are
+// CPS and the dose is a count.
+// onPulse() and update() are O(1) and allocate nothing; the rest can be
+// called from any thread.
+public class DoseIntegrator {
+
+    public static final int RATE_ALARM = 0;
+    public static final int DOSE_ALARM = 1;
+
+    public interface Listener {
+        // processing thread, must return quickly
+        void onAlarm(int kind, boolean active);
+    }
+
+    private static final long INTERVAL_NANOS = SampleClock.NANOS_PER_SECOND;
+    // the rate alarm clears below 90 % of its threshold, so noise around it
+    // does not toggle it on every block
+    private static final double RATE_ALARM_HYSTERESIS = 0.9;
+    // the short window is trusted from this long on, or from CUSUM_MIN_COUNT pulses
+    private static final float MIN_WINDOW_SECONDS = 1;
+
+    private volatile CalibrationTable calibration = CalibrationTable.NONE;
+    // seconds per rate unit and time, 3600 for µR/h
+    private volatile double secondsPerUnit = 1;
+    private volatile DeadTimeCorrection deadTimeCorrection = DeadTimeCorrection.NONE;
+    // 0 is off
+    private volatile double rateThreshold = 0;
+    private volatile double doseThreshold = 0;
+    private volatile Listener listener;
+
+    // processing thread only
+    private long intervalStart = -1;
+    private long lastTime = 0;
+    private int intervalCount = 0;
+    private double closedDose = 0;
+    private boolean rateAlarm = false;
+    private boolean doseAlarm = false;
+
+    private volatile boolean restartRequested = false;
+    private volatile boolean resetRequested = false;
+    private volatile double initialDose = 0;
+    private volatile double dose = 0;
+    private volatile double rate = 0;
+
+    public void setCalibration(CalibrationTable calibration){
+        this.calibration = calibration;
+        secondsPerUnit = calibration.isCalibrated() ? 3600 : 1;
+    }
+
+    public boolean isCalibrated(){
+        return calibration.isCalibrated();
+    }
+
+    public void setDeadTimeCorrection(DeadTimeCorrection deadTimeCorrection){
+        this.deadTimeCorrection = deadTimeCorrection;
+    }
+
+    public DeadTimeCorrection getDeadTimeCorrection(){
+        return deadTimeCorrection;
+    }
+
+    // rate in µR/h (CPS) and dose in µR (counts), 0 turns an alarm off
+    public void setThresholds(double rateThreshold, double doseThreshold){
+        this.rateThreshold = rateThreshold;
+        this.doseThreshold = doseThreshold;
+    }
+
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    // dose to continue from, e.g. the one saved at the last stop
+    public void setDose(double dose){
+        initialDose = dose;
+        this.dose = dose;
+        resetRequested = true;
+    }
+
+    public void resetDose(){
+        setDose(0);
+    }
+
+    // the sample clock starts over; the open interval of the previous
+    // session is added for the time it was open
+    public void restart(){
+        restartRequested = true;
+    }
+
+    // adds seconds at a measured rate, for time nothing was recorded; the
+    // rate should come from a long window, the short one is too noisy to
+    // stand for minutes. Only while the processing thread is stopped
+    public void extrapolate(double seconds, double measuredCps){
+        double added = toRate(corrected(measuredCps)) * seconds / secondsPerUnit;
+        closedDose += added;
+        dose += added;
+    }
+
+    // processing thread, timestamp of a pulse
+    public void onPulse(long timestamp){
+        applyRequests(timestamp);
+        advanceTo(timestamp);
+        intervalCount++;
+    }
+
+    // processing thread, once per block; the short window as measured,
+    // corrected here
+    public void update(long now, int shortWindowCount, float shortWindowSeconds){
+        applyRequests(now);
+        advanceTo(now);
+        boolean settled = shortWindowSeconds >= MIN_WINDOW_SECONDS
+                || shortWindowCount >= RateEstimator.CUSUM_MIN_COUNT;
+        // until the window settles only the closed intervals count
+        double total = closedDose;
+        double current = 0;
+        if(settled){
+            current = toRate(corrected(shortWindowCount / (double) shortWindowSeconds));
+            rate = current;
+            double elapsedSeconds = (now - intervalStart) / (double) SampleClock.NANOS_PER_SECOND;
+            total += current * elapsedSeconds / secondsPerUnit;
+        }
+        dose = total;
+
+        double rateLimit = rateThreshold;
+        if(settled && !rateAlarm && rateLimit > 0 && current >= rateLimit){
+            rateAlarm = true;
+            notifyAlarm(RATE_ALARM, true);
+        } else if(settled && rateAlarm && (rateLimit <= 0 || current < rateLimit * RATE_ALARM_HYSTERESIS)){
+            rateAlarm = false;
+            notifyAlarm(RATE_ALARM, false);
+        }
+        // stays on until the dose is reset or the threshold raised
+        double doseLimit = doseThreshold;
+        boolean doseOver = doseLimit > 0 && total >= doseLimit;
+        if(doseOver != doseAlarm){
+            doseAlarm = doseOver;
+            notifyAlarm(DOSE_ALARM, doseOver);
+        }
+    }
+
+    private void applyRequests(long now){
+        if(restartRequested){
+            restartRequested = false;
+            if(intervalStart >= 0){
+                closeInterval((lastTime - intervalStart) / (double) SampleClock.NANOS_PER_SECOND);
+            }
+            intervalStart = -1;
+        }
+        if(resetRequested){
+            resetRequested = false;
+            closedDose = initialDose;
+            intervalStart = -1;
+        }
+        if(intervalStart < 0){
+            intervalStart = now;
+            intervalCount = 0;
+        }
+        lastTime = now;
+    }
+
+    private void advanceTo(long now){
+        while(now >= intervalStart + INTERVAL_NANOS){
+            closeInterval(1);
+            intervalStart += INTERVAL_NANOS;
+        }
+    }
+
+    private void closeInterval(double seconds){
+        if(seconds > 0){
+            double cps = corrected(intervalCount / seconds);
+            closedDose += toRate(cps) * seconds / secondsPerUnit;
+        }
+        intervalCount = 0;
+    }
+
+    // a saturated counter has no finite true rate, it adds what it measured
+    private double corrected(double measuredCps){
+        double cps = deadTimeCorrection.correct(measuredCps);
+        return Double.isInfinite(cps) ? measuredCps : cps;
+    }
+
+    private double toRate(double cps){
+        CalibrationTable table = calibration;
+        return table.isCalibrated() ? table.toDoseRate(cps) : cps;
+    }
+
+    private void notifyAlarm(int kind, boolean active){
+        Listener current = listener;
+        if(current != null){
+            current.onAlarm(kind, active);
+        }
+    }
+
+    // µR (counts) up to the last update, the open interval estimated
+    public double getDose(){
+        return dose;
+    }
+
+    // µR/h (CPS) of the last update
+    public double getRate(){
+        return rate;
+    }
+}
@@ -0,0 +1,108 @@
+package com.nick.atomsense;
+
+// Survey mode policy: after each window of recording it decides how long
+// to sleep before the next one. The on-time is spread so that every period
+// collects the counts for targetError, 1 / targetError² of them, at the
+// survey rate: a low rate needs more of the period, a high one less.
+// The survey rate is the counts over the on-time of the windows so far,
+// halved now and then so it follows a slow drift. A window that counts
+// RISE_SIGMAS standard deviations above it is a rise, and windows follow
+// back to back (0 sleep) until one is back at the survey rate, or for a
+// period, after which the raised rate becomes the survey rate.
+// Main thread only; O(1) per window.
+public class DutyCycle {
+
+    // about one false rise in 30000 windows of a steady rate
+    static final double RISE_SIGMAS = 4;
+    // counts of the survey rate before a window is tested against it
+    static final long MIN_SURVEY_COUNT = 10;
+
+    private final long windowNanos;
+    private final long periodNanos;
+    private final double targetCount;
+
+    private double surveyCount = 0;
+    private double surveyNanos = 0;
+    private boolean rising = false;
+    // the windows since the rise
+    private double risingCount = 0;
+    private double risingNanos = 0;
+
+    // a window of recording per period at least, errors in percent
+    public DutyCycle(long windowNanos, long periodNanos, double targetErrorPercent){
+        if(windowNanos <= 0 || periodNanos < windowNanos || !(targetErrorPercent > 0)){
+            throw new IllegalArgumentException("bad survey settings");
+        }
+        this.windowNanos = windowNanos;
+        this.periodNanos = periodNanos;
+        double error = targetErrorPercent / 100;
+        targetCount = 1 / (error * error);
+    }
+
+    // counts of a window and the time it recorded, returns the time to
+    // sleep before the next one, 0 to go on recording
+    public long onWindow(long count, long onNanos){
+        if(onNanos <= 0){
+            return 0;
+        }
+        if(surveyCount >= MIN_SURVEY_COUNT){
+            double expected = surveyCount * onNanos / surveyNanos;
+            boolean above = count - expected > RISE_SIGMAS * Math.sqrt(Math.max(expected, 1));
+            if(above && !rising){
+                rising = true;
+                risingCount = 0;
+                risingNanos = 0;
+            }
+            if(above){
+                risingCount += count;
+                risingNanos += onNanos;
+                if(risingNanos < periodNanos){
+                    return 0;
+                }
+                // it stayed up
+                surveyCount = 0;
+                surveyNanos = 0;
+                count = (long) risingCount;
+                onNanos = (long) risingNanos;
+            }
+            rising = false;
+        }
+        surveyCount += count;
+        surveyNanos += onNanos;
+        if(surveyCount > 4 * targetCount){
+            surveyCount /= 2;
+            surveyNanos /= 2;
+        }
+        return sleepNanos();
+    }
+
+    private long sleepNanos(){
+        if(surveyCount < MIN_SURVEY_COUNT){
+            // too few counts to know the rate, it is low
+            return 0;
+        }
+        double rate = surveyCount / surveyNanos;
+        double duty = Math.min(1, targetCount / rate / periodNanos);
+        // at least one window per period
+        double sleep = Math.min(windowNanos / duty - windowNanos, periodNanos - windowNanos);
+        // a short sleep saves less than restarting the recorder costs
+        return sleep < windowNanos ? 0 : (long) sleep;
+    }
+
+    // a window was above the survey rate, recording goes on
+    public boolean isRising(){
+        return rising;
+    }
+
+    // counts per second the survey settled on, 0 before it has enough
+    public double getSurveyCps(){
+        if(surveyCount < MIN_SURVEY_COUNT){
+            return 0;
+        }
+        return surveyCount / surveyNanos * SampleClock.NANOS_PER_SECOND;
+    }
+
+    public long getWindowNanos(){
+        return windowNanos;
+    }
+}
@@ -0,0 +1,114 @@
+package com.nick.atomsense;
+
+import java.util.Arrays;
+
+// Counts of values in equal bins over [min, min + bins * binWidth); values
+// outside go to underflow / overflow. One thread adds, others copy: the bins
+// are plain ints and the volatile total is written after each one, so a
+// reader which reads the total first sees at least that many counts.
+// A requested clear is carried out by the writer, readers see it as empty
+// from the request on.
+// Nothing is allocated after construction.
+public class Histogram {
+
+    private final int[] counts;
+    private final double min;
+    private final double binWidth;
+    private long underflow = 0;
+    private long overflow = 0;
+    private volatile long total = 0;
+    // set by a reader, carried out by the writer on its next add()
+    private volatile boolean clearRequested = false;
+    // times cleared, a reader which saw the same total may have missed a clear
+    private volatile int clears = 0;
+
+    public Histogram(int bins, double min, double binWidth){
+        if(bins <= 0 || binWidth <= 0){
+            throw new IllegalArgumentException("bins and bin width must be positive");
+        }
+        this.counts = new int[bins];
+        this.min = min;
+        this.binWidth = binWidth;
+    }
+
+    // writer thread
+    public void add(double value){
+        if(clearRequested){
+            clear();
+            clearRequested = false;
+        }
+        double position = (value - min) / binWidth;
+        if(position < 0){
+            underflow++;
+        } else if(position >= counts.length){
+            overflow++;
+        } else {
+            counts[(int) position]++;
+        }
+        total = total + 1;
+    }
+
+    // writer thread, or any thread while nothing adds
+    public void clear(){
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = 0;
+        }
+        underflow = 0;
+        overflow = 0;
+        total = 0;
+        clears = clears + 1;
+    }
+
+    // any thread; the writer clears with the next value added
+    public void requestClear(){
+        clearRequested = true;
+    }
+
+    // any thread; copies the bins into dst (at least getBins() long) and
+    // returns the total they were read at
+    public long copyTo(int[] dst){
+        if(clearRequested){
+            Arrays.fill(dst, 0, counts.length, 0);
+            return 0;
+        }
+        long seen = total;
+        System.arraycopy(counts, 0, dst, 0, counts.length);
+        return seen;
+    }
+
+    public long getTotal(){
+        return clearRequested ? 0 : total;
+    }
+
+    public long getUnderflow(){
+        return clearRequested ? 0 : underflow;
+    }
+
+    public long getOverflow(){
+        return clearRequested ? 0 : overflow;
+    }
+
+    public int getCount(int bin){
+        return clearRequested ? 0 : counts[bin];
+    }
+
+    public int getClears(){
+        return clears;
+    }
+
+    public int getBins(){
+        return counts.length;
+    }
+
+    public double getMin(){
+        return min;
+    }
+
+    public double getBinWidth(){
+        return binWidth;
+    }
+
+    public double getBinCenter(int bin){
+        return min + (bin + 0.5) * binWidth;
+    }
+}
@@ -1,39 +1,55 @@
 package com.nick.atomsense;
 
 import android.content.*;
-import android.media.AudioManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
+import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class MeasureActivity extends AppCompatActivity {
 
     private static final String TAG = "MeasureActivity";
-    private Thread measuringThread;
     private SharedPreferences preferences;
-    private AudioService audioService = new AudioService();
-    private AudioManager am;
-    private BroadcastReceiver receiver;
-
-    private boolean btEnabled = false;
+    // counting runs in the service, this only shows it while visible
+    private MeasurementService measurementService;
+    private ServiceConnection connection;
+    private final RatePublisher.Listener rateListener = new RatePublisher.Listener() {
+        @Override
+        public void onRate(RateSnapshot snapshot) {
+            showRate(snapshot);
+        }
+    };
+    // what the labels show, see showRate()
+    private long shownRate = Long.MIN_VALUE;
+    private long shownError = Long.MIN_VALUE;
+    private long shownDose = Long.MIN_VALUE;
+    private long shownOnTime = Long.MIN_VALUE;
+    private long shownCpu = Long.MIN_VALUE;
 
     private Button menuBtn;
     private TextView rateLabel;
     private TextView rateLabelDimension;
     private TextView errorLabel;
+    private TextView doseLabel;
+    private TextView doseLabelDimension;
+    // survey mode only: the share of time recorded and CPU time per hour
+    private TextView surveyLabel;
     private Button restartBtn;
+    private Button exportBtn;
 
-    private Integer triggerLevel;
-    private Integer impulseWidth;
-
-    private Float factorA;
-    private Float factorB;
-    private Float factorC;
+    private boolean calibrated;
 
     private static String DIMENSION_CPS = "CPS";
     private static String DIMENSION_CPM = "CPM";
@@ -51,13 +67,9 @@ public class MeasureActivity extends AppCompatActivity {
             // init preferences
             preferences = PreferenceManager.getDefaultSharedPreferences(this);
 
-            btEnabled = preferences.getBoolean(SettingsActivity.SETTING_BT_ENABLE, false);
-
-            factorA = preferences.getFloat(SettingsActivity.SETTING_FACTOR_A, 0);
-            factorB = preferences.getFloat(SettingsActivity.SETTING_FACTOR_B, 0);
-            factorC = preferences.getFloat(SettingsActivity.SETTING_FACTOR_C, 0);
+            calibrated = SettingsActivity.isCalibrated(preferences);
 
-            if (factorA == 0 && factorB == 0 && factorC == 0){
+            if (!calibrated){
                 dimensionStack.add(DIMENSION_CPM);
                 dimensionStack.add(DIMENSION_CPS);
 
@@ -70,29 +82,8 @@ public class MeasureActivity extends AppCompatActivity {
                 currentDimension = DIMENSION_ML_R;
             }
 
-            triggerLevel = preferences.getInt(SettingsActivity.SETTING_TRIGGER_LEVEL, -1);
-            triggerLevel = triggerLevel == -1 ? null : triggerLevel;
-            impulseWidth = preferences.getInt(SettingsActivity.SETTING_IMPULSE_WIDTH, -1);
-            impulseWidth = impulseWidth == -1 ? null : impulseWidth;
-
-            // init audio interface
-            am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-            audioService.init();
-            audioService.setTriggerLevel(triggerLevel);
-            audioService.setImpulseWidth(impulseWidth);
-
-            if(btEnabled){
-                receiver = new BroadcastReceiver() {
-                    @Override
-                    public void onReceive(Context context, Intent intent) {
-
-                    }
-                };
-                registerReceiver(receiver, new IntentFilter("android.media.SCO_AUDIO_STATE_CHANGED"));
-            }
-
             initControls();
-            startMeasure();
+            startMeasurementService();
         } catch (Exception e){
             Log.e(TAG, "in onCreate:" + e);
             throw e;
@@ -104,32 +95,52 @@ public class MeasureActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        try{
+            connection = new ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName name, IBinder service) {
+                    measurementService = ((MeasurementService.LocalBinder) service).getService();
+                    measurementService.setRateListener(rateListener);
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName name) {
+                    measurementService = null;
+                }
+            };
+            bindService(new Intent(this, MeasurementService.class), connection, Context.BIND_AUTO_CREATE);
+        } catch (Exception e){
+            Log.e(TAG, "in onStart:" + e);
+        }
+    }
+
+    // counting goes on in the service, only the display stops
     @Override
     protected void onStop() {
         super.onStop();
         try{
-            audioService.stop();
-            if(am.isBluetoothScoOn()){
-                am.stopBluetoothSco();
+            if(measurementService != null){
+                measurementService.setRateListener(null);
             }
-            if(measuringThread != null){
-                measuringThread.interrupt();
-                measuringThread = null;
+            if(connection != null){
+                unbindService(connection);
+                connection = null;
             }
+            measurementService = null;
         } catch (Exception e){
             Log.e(TAG, "in onStop:" + e);
         }
     }
 
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        try{
-            if(receiver != null){
-                unregisterReceiver(receiver);
-            }
-        } catch (Exception e){
-            Log.e(TAG, "in onDestroy:" + e);
+    private void startMeasurementService(){
+        Intent intent = new Intent(this, MeasurementService.class);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            startForegroundService(intent);
+        } else {
+            startService(intent);
         }
     }
 
@@ -142,6 +153,8 @@ public class MeasureActivity extends AppCompatActivity {
                     SharedPreferences.Editor editor = preferences.edit();
                     editor.putBoolean(SettingsActivity.SETTING_MENU_MODE, true);
                     editor.commit();
+                    // settings need the microphone, counting ends here
+                    stopService(new Intent(MeasureActivity.this, MeasurementService.class));
                     MeasureActivity.super.onBackPressed();
                 }
             });
@@ -156,16 +169,52 @@ public class MeasureActivity extends AppCompatActivity {
                     currentDimension = dimensionStack.remove(0);
                     dimensionStack.add(currentDimension);
                     rateLabelDimension.setText(currentDimension);
+                    MeasurementService service = measurementService;
+                    RateSnapshot snapshot = service != null ? service.getRateSnapshot() : null;
+                    if(snapshot != null){
+                        shownRate = Long.MIN_VALUE;
+                        showRate(snapshot);
+                    }
                 }
             });
 
             errorLabel = (TextView)findViewById(R.id. errorLabelId);
 
+            doseLabel = (TextView)findViewById(R.id.doseLabelId);
+            doseLabelDimension = (TextView)findViewById(R.id.doseLabelDimensionId);
+            doseLabelDimension.setText(calibrated ? "µR" : "counts");
+            // a long press, so the total is not lost by accident
+            doseLabel.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View view){
+                    MeasurementService service = measurementService;
+                    if(service != null){
+                        service.resetDose();
+                        shownDose = Long.MIN_VALUE;
+                        Toast.makeText(MeasureActivity.this, "Dose reset", Toast.LENGTH_SHORT).show();
+                    }
+                    return true;
+                }
+            });
+
+            surveyLabel = (TextView)findViewById(R.id.surveyLabelId);
+
             restartBtn = (Button)findViewById(R.id.btnRestartId);
             restartBtn.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view){
-                    audioService.clearImpulseData();
+                    MeasurementService service = measurementService;
+                    if(service != null){
+                        service.clearImpulseData();
+                    }
+                }
+            });
+
+            exportBtn = (Button)findViewById(R.id.btnExportId);
+            exportBtn.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view){
+                    exportSession();
                 }
             });
 
@@ -174,65 +223,105 @@ public class MeasureActivity extends AppCompatActivity {
         }
     }
 
-    private void startMeasure(){
-        measuringThread = new Thread(new Runnable() {
+    // writes the current session as per minute rates and raw pulses to the app's external files
+    private void exportSession(){
+        MeasurementService service = measurementService;
+        if(service == null || service.getPulseLog() == null){
+            Toast.makeText(this, "No pulse log to export", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final PulseLog log = service.getPulseLog();
+        final CalibrationTable calibration = service.getCalibration();
+        final DeadTimeCorrection deadTimeCorrection = service.getDeadTimeCorrection();
+        final long from = service.getSessionStartMillis();
+        final long to = System.currentTimeMillis();
+        final File dir = getExternalFilesDir(null);
+        exportBtn.setEnabled(false);
+        new Thread(new Runnable() {
             public void run() {
-                try {
-                    if(btEnabled){
-                        am.startBluetoothSco();
-                    }
-                    audioService.runMeasureMode();
-                    while(!Thread.currentThread().isInterrupted()) {
-                        List<Long> impulseData = audioService.getImpulseData();
-                        if (impulseData.size() < 2) {
-                            // avoid error in bellow in case if too low counts
-                            impulseData.add(1l);
-                            impulseData.add(2l);
-                        }
-
-                        Integer totalCounts = impulseData.size();
-                        double errVal = (1.96 / Math.sqrt(totalCounts)) * 100;
-                        String error = errVal >= 100 ? "99" : String.format("%.1f", errVal);
-
-                        String rate = "--";
-                        float remainMilSeconds = (float) (impulseData.get(totalCounts - 1) - impulseData.get(0));
-                        //remainMilSeconds
-                        float remainSeconds = remainMilSeconds / 1000;
-                        float cps = totalCounts / remainSeconds;
-
-                        if(cps > 1999) {
-                            rate = "∞";
-                        } else if (DIMENSION_ML_R.equals(currentDimension)){
-                            double mkR = factorA * Math.pow(cps, 2) + factorB * cps + factorC;
-                            rate = String.format("%.2f", mkR);
-                        } else if (DIMENSION_CPS.equals(currentDimension)){
-                            rate = String.format("%.2f", cps);
-                        } else if (DIMENSION_CPM.equals(currentDimension)){
-                            rate = String.format("%.1f", (cps * 60));
-                        }
-
-                        String rateText = rate;
-                        String errText = error;
-
-                        runOnUiThread(new Runnable() {
-                            public void run() {
-                                rateLabel.setText(rateText);
-                                errorLabel.setText(errText);
-                            }
-                        });
-                        Thread.sleep(500);
-                    }
-                } catch (InterruptedException e){
-                    // thread was interrupted
-                } catch (Exception e) {
-                    Log.e(TAG, "in updateCps");
-                    e.printStackTrace();
+                String message;
+                try{
+                    String name = "atomsense-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(from));
+                    SessionExporter exporter = new SessionExporter(log.getDirectory(), log.getRollupIndex(),
+                            calibration, deadTimeCorrection);
+                    exportFile(exporter, new File(dir, name + "-minutes.csv"),
+                            SessionExporter.Content.RATES, from, to);
+                    exportFile(exporter, new File(dir, name + "-pulses.csv"),
+                            SessionExporter.Content.PULSES, from, to);
+                    message = "Exported to " + dir;
+                } catch (IOException e){
+                    Log.e(TAG, "in exportSession:" + e);
+                    message = "Export failed: " + e.getMessage();
                 }
+                String text = message;
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        exportBtn.setEnabled(true);
+                        Toast.makeText(MeasureActivity.this, text, Toast.LENGTH_LONG).show();
+                    }
+                });
             }
-        });
-        measuringThread.start();
+        }, "Export").start();
     }
 
+    private static void exportFile(SessionExporter exporter, File file, SessionExporter.Content content,
+                                   long from, long to) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try{
+            FileChannel channel = stream.getChannel();
+            exporter.export(channel, SessionExporter.Format.CSV, content, RollupIndex.MINUTES, from, to);
+        } finally {
+            stream.close();
+        }
+    }
 
-
+    // UI thread; the labels are only set when their text would change
+    private void showRate(RateSnapshot snapshot){
+        float cps = snapshot.getAdaptiveCorrectedCps();
+        MeasurementService service = measurementService;
+        // the displayed digits as a number
+        long rate;
+        if(snapshot.isSaturated()){
+            rate = Long.MAX_VALUE;
+        } else if (DIMENSION_ML_R.equals(currentDimension)){
+            CalibrationTable calibration = service != null ? service.getCalibration() : CalibrationTable.NONE;
+            rate = Math.round(calibration.toDoseRate(cps) * 100);
+        } else if (DIMENSION_CPM.equals(currentDimension)){
+            rate = Math.round(cps * 60 * 10);
+        } else {
+            rate = Math.round(cps * 100.0);
+        }
+        if(rate != shownRate){
+            shownRate = rate;
+            if(snapshot.isSaturated()){
+                rateLabel.setText("∞");
+            } else if (DIMENSION_CPM.equals(currentDimension)){
+                rateLabel.setText(String.format("%.1f", rate / 10.0));
+            } else {
+                rateLabel.setText(String.format("%.2f", rate / 100.0));
+            }
+        }
+        double errVal = snapshot.getAdaptiveErrorPercent();
+        long error = errVal >= 100 ? 990 : Math.round(errVal * 10);
+        if(error != shownError){
+            shownError = error;
+            errorLabel.setText(error == 990 ? "99" : String.format("%.1f", error / 10.0));
+        }
+        if(service != null){
+            long dose = Math.round(service.getDose() * 100);
+            if(dose != shownDose){
+                shownDose = dose;
+                doseLabel.setText(String.format("%.2f", dose / 100.0));
+            }
+            if(service.isSurvey()){
+                long onTime = Math.round(service.getOnTimeFraction() * 100);
+                long cpu = Math.round(service.getCpuSecondsPerHour());
+                if(onTime != shownOnTime || cpu != shownCpu){
+                    shownOnTime = onTime;
+                    shownCpu = cpu;
+                    surveyLabel.setText("Survey: on " + onTime + " %, CPU " + cpu + " s/h");
+                }
+            }
+        }
+    }
 }
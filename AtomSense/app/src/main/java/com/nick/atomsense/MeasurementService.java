@@ -0,0 +1,528 @@
+package com.nick.atomsense;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
+import android.media.ToneGenerator;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+// Counting as a foreground service, so it goes on with the screen off or
+// another app in front. The service owns the capture and processing
+// pipeline and the pulse log; activities bind to it only to read snapshots
+// and to send the few commands below. Started with startForegroundService(),
+// ended with stopService().
+public class MeasurementService extends Service {
+
+    private static final String TAG = "MeasurementService";
+    private static final String CHANNEL_ID = "measurement";
+    private static final int NOTIFICATION_ID = 1;
+    private static final String ALARM_CHANNEL_ID = "alarm";
+    private static final int ALARM_NOTIFICATION_ID = 2;
+    private static final long[] ALARM_VIBRATION = {0, 500, 200, 500, 200, 500};
+    private static final int ALARM_TONE_MILLIS = 3000;
+    // the dose is saved this often while counting, and at the end
+    private static final long DOSE_SAVE_INTERVAL_MILLIS = 60000;
+    // sent by SurveyWakeReceiver when the alarm that ends a survey sleep goes off
+    static final String ACTION_SURVEY_WAKE = "com.nick.atomsense.SURVEY_WAKE";
+
+    public class LocalBinder extends Binder {
+        public MeasurementService getService(){
+            return MeasurementService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private AudioService audioService;
+    private PowerManager.WakeLock wakeLock;
+    private AudioManager am;
+    private boolean btEnabled = false;
+    private volatile boolean measuring = false;
+    // kept for a pipeline started after the activity bound
+    private RatePublisher.Listener rateListener;
+    private volatile CalibrationTable calibration = CalibrationTable.NONE;
+    // the saved dose is only written back once it was read
+    private volatile boolean doseLoaded = false;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private ToneGenerator toneGenerator;
+    private final boolean[] alarms = new boolean[2];
+
+    // survey mode, null while recording all the time; the recorder runs a
+    // window, then the wake lock is let go until an alarm wakes the service
+    private DutyCycle dutyCycle;
+    private PendingIntent surveyWake;
+    private long windowStartCount;
+    private long windowStartNanos;
+    // what measuring costs: elapsed time and the process' CPU time since the start
+    private long startNanos;
+    private long startCpuMillis;
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            endSurveyWindow();
+        }
+    };
+
+    private final Runnable saveDose = new Runnable() {
+        @Override
+        public void run() {
+            saveDose();
+            handler.postDelayed(this, DOSE_SAVE_INTERVAL_MILLIS);
+        }
+    };
+
+    // processing thread, the alarm itself is raised on the main thread
+    private final DoseIntegrator.Listener alarmListener = new DoseIntegrator.Listener() {
+        @Override
+        public void onAlarm(final int kind, final boolean active) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAlarmChanged(kind, active);
+                }
+            });
+        }
+    };
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        try{
+            if(!measuring){
+                startForeground(NOTIFICATION_ID, buildNotification());
+                startMeasure();
+            } else if(intent != null && ACTION_SURVEY_WAKE.equals(intent.getAction())){
+                resumeSurvey();
+            }
+        } catch (Exception e){
+            Log.e(TAG, "in onStartCommand:" + e);
+            stopSelf();
+        }
+        // restarted with the saved settings if the system had to kill it
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        try{
+            measuring = false;
+            handler.removeCallbacks(saveDose);
+            handler.removeCallbacks(endWindow);
+            if(surveyWake != null){
+                AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+                alarmManager.cancel(surveyWake);
+            }
+            if(audioService != null){
+                audioService.release();
+                saveDose();
+                audioService = null;
+            }
+            if(toneGenerator != null){
+                toneGenerator.release();
+            }
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.cancel(ALARM_NOTIFICATION_ID);
+            if(btEnabled && am.isBluetoothScoOn()){
+                am.stopBluetoothSco();
+            }
+            if(wakeLock != null && wakeLock.isHeld()){
+                wakeLock.release();
+            }
+        } catch (Exception e){
+            Log.e(TAG, "in onDestroy:" + e);
+        }
+    }
+
+    private void startMeasure(){
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        btEnabled = preferences.getBoolean(SettingsActivity.SETTING_BT_ENABLE, false);
+        am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+
+        audioService = new AudioService();
+        audioService.setRateListener(rateListener);
+        configure(audioService, preferences);
+        loadCalibration(audioService.getDoseIntegrator(), preferences);
+        audioService.getDoseIntegrator().setListener(alarmListener);
+        openPulseLog(audioService);
+
+        // the CPU has to keep running for the recorder with the screen off
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "AtomSense:measure");
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire();
+
+        if(btEnabled){
+            am.startBluetoothSco();
+        }
+        startNanos = SystemClock.elapsedRealtimeNanos();
+        startCpuMillis = Process.getElapsedCpuTime();
+        audioService.runMeasureMode();
+        measuring = true;
+        handler.postDelayed(saveDose, DOSE_SAVE_INTERVAL_MILLIS);
+        startSurvey(preferences);
+    }
+
+    private void startSurvey(SharedPreferences preferences){
+        if(!preferences.getBoolean(SettingsActivity.SETTING_SURVEY, false)){
+            return;
+        }
+        try{
+            dutyCycle = new DutyCycle(
+                    preferences.getInt(SettingsActivity.SETTING_SURVEY_WINDOW, 30) * SampleClock.NANOS_PER_SECOND,
+                    preferences.getInt(SettingsActivity.SETTING_SURVEY_PERIOD, 10) * 60 * SampleClock.NANOS_PER_SECOND,
+                    preferences.getFloat(SettingsActivity.SETTING_SURVEY_ERROR, 10));
+        } catch (IllegalArgumentException e){
+            Log.e(TAG, "in startSurvey:" + e);
+            return;
+        }
+        Intent intent = new Intent(this, SurveyWakeReceiver.class);
+        surveyWake = PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        beginSurveyWindow();
+    }
+
+    private void beginSurveyWindow(){
+        windowStartCount = audioService.getPulseCount();
+        windowStartNanos = audioService.getRecordedNanos();
+        handler.postDelayed(endWindow, dutyCycle.getWindowNanos() / 1000000);
+    }
+
+    // main thread; goes on recording while the rate is up or the rate alarm
+    // is on, otherwise sleeps as long as the duty cycle says
+    private void endSurveyWindow(){
+        if(!measuring || audioService == null){
+            return;
+        }
+        long count = audioService.getPulseCount() - windowStartCount;
+        long onNanos = audioService.getRecordedNanos() - windowStartNanos;
+        long sleepNanos = dutyCycle.onWindow(count, onNanos);
+        if(alarms[DoseIntegrator.RATE_ALARM]){
+            sleepNanos = 0;
+        }
+        Log.i(TAG, String.format(Locale.US, "survey: %d counts in %.1f s, sleep %d s, on %.1f %%, CPU %.1f s/h",
+                count, onNanos / 1e9, sleepNanos / SampleClock.NANOS_PER_SECOND,
+                getOnTimeFraction() * 100, getCpuSecondsPerHour()));
+        if(sleepNanos == 0){
+            beginSurveyWindow();
+            return;
+        }
+        audioService.pause();
+        saveDose();
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        // exact and allowed while idle, or Doze would hold the next window back
+        // until its maintenance window
+        alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + sleepNanos / 1000000, surveyWake);
+        if(wakeLock.isHeld()){
+            wakeLock.release();
+        }
+    }
+
+    private void resumeSurvey(){
+        if(dutyCycle == null || !audioService.isPaused()){
+            return;
+        }
+        wakeLock.acquire();
+        // the survey rate is over all windows, the adaptive one until it has enough
+        double cps = dutyCycle.getSurveyCps();
+        if(cps == 0){
+            cps = audioService.getRateSnapshot().getAdaptiveCps();
+        }
+        audioService.resume(cps);
+        beginSurveyWindow();
+    }
+
+    // the table is built off the main thread; until it is set the dose
+    // integrator counts uncalibrated, and the saved dose replaces that
+    private void loadCalibration(final DoseIntegrator doseIntegrator, final SharedPreferences preferences){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CalibrationTable table = CalibrationTable.NONE;
+                try{
+                    table = new CalibrationTable(Calibration.load(getFilesDir(), preferences));
+                } catch (Exception e){
+                    Log.e(TAG, "in loadCalibration:" + e);
+                }
+                calibration = table;
+                configureDose(doseIntegrator, table, preferences);
+                doseLoaded = true;
+            }
+        }, "Calibration").start();
+    }
+
+    // calibration, alarm thresholds and the dose saved at the last stop; a
+    // dose saved in the other unit (calibrated or not) is not continued
+    static void configureDose(DoseIntegrator doseIntegrator, CalibrationTable calibration, SharedPreferences preferences){
+        doseIntegrator.setCalibration(calibration);
+        doseIntegrator.setThresholds(
+                preferences.getFloat(SettingsActivity.SETTING_RATE_ALARM, 0),
+                preferences.getFloat(SettingsActivity.SETTING_DOSE_ALARM, 0));
+        boolean calibrated = preferences.getBoolean(SettingsActivity.SETTING_DOSE_CALIBRATED, false);
+        if(calibrated == doseIntegrator.isCalibrated()){
+            doseIntegrator.setDose(Double.longBitsToDouble(preferences.getLong(SettingsActivity.SETTING_DOSE, 0)));
+        }
+    }
+
+    // main thread; the double's bits, a float would round a large total
+    private void saveDose(){
+        if(audioService == null || !doseLoaded){
+            return;
+        }
+        DoseIntegrator doseIntegrator = audioService.getDoseIntegrator();
+        PreferenceManager.getDefaultSharedPreferences(this).edit()
+                .putLong(SettingsActivity.SETTING_DOSE, Double.doubleToLongBits(doseIntegrator.getDose()))
+                .putBoolean(SettingsActivity.SETTING_DOSE_CALIBRATED, doseIntegrator.isCalibrated())
+                .apply();
+    }
+
+    // main thread; sounds and vibrates when an alarm goes on, the
+    // notification stays while any alarm is on
+    private void onAlarmChanged(int kind, boolean active){
+        try{
+            alarms[kind] = active;
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            if(!alarms[DoseIntegrator.RATE_ALARM] && !alarms[DoseIntegrator.DOSE_ALARM]){
+                manager.cancel(ALARM_NOTIFICATION_ID);
+                return;
+            }
+            if(!active){
+                return;
+            }
+            if(toneGenerator == null){
+                toneGenerator = new ToneGenerator(AudioManager.STREAM_ALARM, 100);
+            }
+            toneGenerator.startTone(ToneGenerator.TONE_CDMA_EMERGENCY_RINGBACK, ALARM_TONE_MILLIS);
+            Vibrator vibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+            if(vibrator != null && vibrator.hasVibrator()){
+                if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+                    vibrator.vibrate(VibrationEffect.createWaveform(ALARM_VIBRATION, -1));
+                } else {
+                    vibrator.vibrate(ALARM_VIBRATION, -1);
+                }
+            }
+            manager.notify(ALARM_NOTIFICATION_ID, buildAlarmNotification(kind));
+        } catch (Exception e){
+            Log.e(TAG, "in onAlarmChanged:" + e);
+        }
+    }
+
+    // detection settings as saved by SettingsActivity; main thread, the
+    // format is the one SettingsActivity negotiated, nothing is benchmarked
+    static void configure(AudioService audioService, SharedPreferences preferences){
+        int triggerLevel = preferences.getInt(SettingsActivity.SETTING_TRIGGER_LEVEL, 20);
+        int impulseWidth = preferences.getInt(SettingsActivity.SETTING_IMPULSE_WIDTH, 10);
+        DeadTimeCorrection.Model deadTimeModel = DeadTimeCorrection.Model.values()[
+                preferences.getInt(SettingsActivity.SETTING_DEAD_TIME_MODEL, 0)];
+        // µs
+        float deadTime = preferences.getFloat(SettingsActivity.SETTING_DEAD_TIME, 0);
+
+        int channelConfig = SettingsActivity.channelConfig(preferences);
+        audioService.setInputFormat(
+                AudioFormatNegotiator.withoutBenchmark(preferences, channelConfig),
+                channelConfig, AudioFormatNegotiator.bufferFactor(preferences));
+        audioService.init();
+        audioService.setTriggerLevel(triggerLevel);
+        audioService.setAdaptiveTrigger(
+                preferences.getBoolean(SettingsActivity.SETTING_ADAPTIVE_TRIGGER, false),
+                preferences.getFloat(SettingsActivity.SETTING_TRIGGER_SIGMAS, AudioService.DEFAULT_TRIGGER_SIGMAS));
+        audioService.setImpulseWidth(impulseWidth);
+        audioService.setPolarity(ThresholdPulseDetector.Polarity.values()[
+                preferences.getInt(SettingsActivity.SETTING_POLARITY, 0)]);
+        audioService.setDcBlock(preferences.getBoolean(SettingsActivity.SETTING_DC_BLOCK, false));
+        audioService.setDeadTimeCorrection(deadTimeModel, deadTime / 1000000.0);
+        configureChannels(audioService,
+                preferences.getInt(SettingsActivity.SETTING_CHANNEL_MODE, 0),
+                preferences.getInt(SettingsActivity.SETTING_RIGHT_TRIGGER_LEVEL, 20),
+                preferences.getInt(SettingsActivity.SETTING_RIGHT_IMPULSE_WIDTH, 10),
+                preferences.getInt(SettingsActivity.SETTING_COINCIDENCE_WINDOW, 10));
+    }
+
+    // channelMode 0 is mono, otherwise ChannelCombiner.Mode ordinal + 1
+    static void configureChannels(AudioService audioService, int channelMode,
+                                  int rightTriggerLevel, int rightImpulseWidth, int window){
+        audioService.setRightTriggerLevel(rightTriggerLevel);
+        audioService.setRightImpulseWidth(rightImpulseWidth);
+        ChannelCombiner.Mode mode = channelMode > 0
+                ? ChannelCombiner.Mode.values()[channelMode - 1] : ChannelCombiner.Mode.SUM;
+        audioService.setChannelMode(mode, window);
+    }
+
+    // keeps every pulse on disk, measuring goes on without it if it can not be opened
+    private void openPulseLog(AudioService audioService){
+        PulseLog pulseLog = new PulseLog(new File(getFilesDir(), "pulses")) {
+            @Override
+            protected void onWriterThreadStart() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+
+            @Override
+            protected void onWriteError(IOException e) {
+                Log.e(TAG, "in pulseLog:" + e);
+            }
+        };
+        try{
+            pulseLog.open();
+            audioService.setPulseLog(pulseLog);
+        } catch (IOException e){
+            Log.e(TAG, "in openPulseLog:" + e);
+        }
+    }
+
+    // a fixed text, updating it would wake the UI for nothing
+    private Notification buildNotification(){
+        Intent intent = new Intent(this, MeasureActivity.class);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification.Builder builder;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Measurement",
+                    NotificationManager.IMPORTANCE_LOW);
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(channel);
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        return builder.setContentTitle(getString(R.string.app_name))
+                .setContentText("Counting")
+                .setSmallIcon(R.mipmap.ic_atomsense_logo)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .build();
+    }
+
+    private Notification buildAlarmNotification(int kind){
+        Intent intent = new Intent(this, MeasureActivity.class);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        Notification.Builder builder;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O){
+            NotificationChannel channel = new NotificationChannel(ALARM_CHANNEL_ID, "Alarms",
+                    NotificationManager.IMPORTANCE_HIGH);
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(channel);
+            builder = new Notification.Builder(this, ALARM_CHANNEL_ID);
+        } else {
+            builder = new Notification.Builder(this).setPriority(Notification.PRIORITY_HIGH);
+        }
+        return builder.setContentTitle(getString(R.string.app_name))
+                .setContentText(kind == DoseIntegrator.RATE_ALARM ? "Rate alarm" : "Dose alarm")
+                .setSmallIcon(R.mipmap.ic_atomsense_logo)
+                .setContentIntent(contentIntent)
+                .setCategory(Notification.CATEGORY_ALARM)
+                .build();
+    }
+
+    public boolean isMeasuring(){
+        return measuring;
+    }
+
+    // UI thread, null to stop; called with changed rates, a few times per second
+    public void setRateListener(RatePublisher.Listener listener){
+        rateListener = listener;
+        if(audioService != null){
+            audioService.setRateListener(listener);
+        }
+    }
+
+    public RateSnapshot getRateSnapshot(){
+        return audioService != null ? audioService.getRateSnapshot() : null;
+    }
+
+    public long getDroppedSamples(){
+        return audioService != null ? audioService.getDroppedSamples() : 0;
+    }
+
+    public PulseLog getPulseLog(){
+        return audioService != null ? audioService.getPulseLog() : null;
+    }
+
+    public long getSessionStartMillis(){
+        return audioService != null ? audioService.getSessionStartMillis() : 0;
+    }
+
+    // µR, or counts without a calibration
+    public double getDose(){
+        return audioService != null ? audioService.getDoseIntegrator().getDose() : 0;
+    }
+
+    // µR/h for the display, NONE until loaded
+    public CalibrationTable getCalibration(){
+        return calibration;
+    }
+
+    // what the calibration table is applied after
+    public DeadTimeCorrection getDeadTimeCorrection(){
+        return audioService != null ? audioService.getDoseIntegrator().getDeadTimeCorrection() : DeadTimeCorrection.NONE;
+    }
+
+    public boolean isDoseCalibrated(){
+        return audioService != null && audioService.getDoseIntegrator().isCalibrated();
+    }
+
+    public boolean isSurvey(){
+        return dutyCycle != null;
+    }
+
+    // share of the time since the start that was recorded
+    public double getOnTimeFraction(){
+        long elapsed = SystemClock.elapsedRealtimeNanos() - startNanos;
+        if(audioService == null || elapsed <= 0){
+            return 0;
+        }
+        return Math.min(1, audioService.getRecordedNanos() / (double) elapsed);
+    }
+
+    // CPU time of the whole process, its UI included, per hour since the start
+    public double getCpuSecondsPerHour(){
+        double hours = (SystemClock.elapsedRealtimeNanos() - startNanos) / (3600.0 * SampleClock.NANOS_PER_SECOND);
+        if(hours <= 0){
+            return 0;
+        }
+        return (Process.getElapsedCpuTime() - startCpuMillis) / 1000.0 / hours;
+    }
+
+    public boolean isAlarmOn(){
+        return alarms[DoseIntegrator.RATE_ALARM] || alarms[DoseIntegrator.DOSE_ALARM];
+    }
+
+    // main thread
+    public void resetDose(){
+        if(audioService != null){
+            audioService.getDoseIntegrator().resetDose();
+            saveDose();
+        }
+    }
+
+    // starts a new average, the log keeps everything
+    public void clearImpulseData(){
+        if(audioService != null){
+            audioService.clearImpulseData();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.nick.atomsense;
+
+import java.io.*;
+
+// Replays 16-bit little-endian mono PCM, either headerless (raw) or from a
+// WAV file. read() returns -1 at the end of the stream.
+public class PcmFileSource implements AudioSource {
+
+    private final InputStream in;
+    private final int sampleRate;
+    private final int bufferSize;
+    private byte[] bytes = new byte[0];
+    private boolean recording = false;
+
+    public PcmFileSource(InputStream in, int sampleRate, int bufferSize){
+        this.in = in;
+        this.sampleRate = sampleRate;
+        this.bufferSize = bufferSize;
+    }
+
+    // reads the WAV header and leaves the stream at the first sample
+    public static PcmFileSource fromWav(InputStream in, int bufferSize) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if(readTag(data) != 0x46464952 /* RIFF */){
+            throw new IOException("not a RIFF file");
+        }
+        readIntLE(data);
+        if(readTag(data) != 0x45564157 /* WAVE */){
+            throw new IOException("not a WAVE file");
+        }
+        int sampleRate = 0;
+        while(true){
+            int tag = readTag(data);
+            int size = readIntLE(data);
+            if(tag == 0x20746d66 /* fmt  */){
+                int format = readShortLE(data);
+                int channels = readShortLE(data);
+                sampleRate = readIntLE(data);
+                readIntLE(data);
+                readShortLE(data);
+                int bitsPerSample = readShortLE(data);
+                if(format != 1 || channels != 1 || bitsPerSample != 16){
+                    throw new IOException("only 16-bit mono PCM is supported, format: " + format
+                            + ", channels: " + channels + ", bits: " + bitsPerSample);
+                }
+                skipFully(data, size - 16 + (size & 1));
+            } else if(tag == 0x61746164 /* data */){
+                if(sampleRate == 0){
+                    throw new IOException("data chunk before fmt chunk");
+                }
+                return new PcmFileSource(data, sampleRate, bufferSize);
+            } else {
+                skipFully(data, size + (size & 1));
+            }
+        }
+    }
+
+    @Override
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount(){
+        return 1;
+    }
+
+    @Override
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    @Override
+    public void start(){
+        recording = true;
+    }
+
+    @Override
+    public boolean isRecording(){
+        return recording;
+    }
+
+    @Override
+    public int read(short[] buf, int offset, int len){
+        if(!recording){
+            return -1;
+        }
+        if(bytes.length < len * 2){
+            bytes = new byte[len * 2];
+        }
+        try{
+            int filled = 0;
+            while(filled < len * 2){
+                int count = in.read(bytes, filled, len * 2 - filled);
+                if(count < 0){
+                    break;
+                }
+                filled += count;
+            }
+            int samples = filled / 2;
+            if(samples == 0){
+                return -1;
+            }
+            for(int i = 0; i < samples; i++){
+                buf[offset + i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+            }
+            return samples;
+        } catch (IOException e){
+            return -1;
+        }
+    }
+
+    @Override
+    public void stop(){
+        recording = false;
+    }
+
+    @Override
+    public void release(){
+        recording = false;
+        try{
+            in.close();
+        } catch (IOException e){
+            // nothing to do
+        }
+    }
+
+    private static int readTag(DataInputStream in) throws IOException {
+        return readIntLE(in);
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readShortLE(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while(count > 0){
+            int skipped = in.skipBytes(count);
+            if(skipped <= 0){
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+}
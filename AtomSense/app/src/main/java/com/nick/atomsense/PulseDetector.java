@@ -0,0 +1,16 @@
+package com.nick.atomsense;
+
+// Pulse detection engine. Implementations must not allocate in process()
+// and must not depend on Android, so they can run on a plain JVM.
+public interface PulseDetector {
+
+    // scans the first len samples of buf, state (e.g. dead time) is carried over
+    // to the next call, so consecutive buffers are treated as one stream
+    void process(short[] buf, int len, PulseSink sink);
+
+    // accounts for samples that were lost before reaching the detector
+    void skip(long samples);
+
+    // forgets the carried state and restarts sample counting from zero
+    void reset();
+}
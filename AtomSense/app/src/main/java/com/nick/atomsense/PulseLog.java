@@ -0,0 +1,693 @@
+package com.nick.atomsense;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// Append-only on-disk log of pulse timestamps, split into segment files.
+// The processing thread only copies timestamps into pre-allocated batches;
+// a writer thread encodes them into the memory-mapped segment, records the
+// new length in the segment header and syncs according to the SyncPolicy.
+//
+// Segment layout, little endian:
+//   header (HEADER_BYTES): magic, version, wall clock and elapsed anchors of
+//   the session, base timestamp in µs, committed record bytes, committed
+//   pulse count, flags, then the CRC32 and end of the pending records
+//   records: µs timestamps as PulseTimeCodec varints, starting from the base
+//   timestamp
+//
+// The writer also keeps a RollupIndex of the pulses. Whenever a segment is
+// sealed the buckets changed since the last save are appended to
+// ROLLUP_JOURNAL; once the journal outgrows the full copy in ROLLUP_FILE a
+// new full copy replaces both. Journal records are length, generation of
+// the full copy they follow, segments covered, CRC32 of the rest, then the
+// changes. On start the index is read back and brought up to date from the
+// segments written after that. Gaps, the time a session did not record,
+// are appended to GAP_FILE as they come, wall clock ms from and to (long),
+// and read into the index on start.
+//
+// The header shares the mapping with the records and the OS writes its
+// pages back in any order, so a length must not reach the disk before the
+// records it covers. The committed length is only written once the records
+// are forced, at a sync; it survives a power loss. After every batch the
+// records since then are pending, with their end and a checksum over them
+// in the header. On open, segments which were not sealed are cut back to
+// the committed length, or to the pending one if the checksum matches: an
+// app crash loses nothing that was handed to the writer, a power loss at
+// most what was written since the last sync, and zero pages the records
+// never reached are not read as pulses.
+public class PulseLog {
+
+    public enum SyncPolicy {
+        // leave writing back to the OS, survives an app crash but not a power loss
+        NEVER,
+        // force the segment to disk every syncIntervalMillis
+        INTERVAL,
+        // force after every batch
+        ALWAYS
+    }
+
+    static final int MAGIC = 0x4C505341; // "ASPL"
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 64;
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_WALL_CLOCK_MILLIS = 8;
+    static final int OFFSET_ELAPSED_NANOS = 16;
+    static final int OFFSET_BASE_MICROS = 24;
+    static final int OFFSET_COMMITTED_BYTES = 32;
+    static final int OFFSET_COMMITTED_PULSES = 40;
+    static final int OFFSET_FLAGS = 48;
+    static final int OFFSET_PENDING_CHECKSUM = 52;
+    static final int OFFSET_PENDING_BYTES = 56;
+    static final int FLAG_SEALED = 1;
+    static final String SEGMENT_PREFIX = "pulses-";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String ROLLUP_FILE = "rollup.idx";
+    static final String ROLLUP_JOURNAL = "rollup.jnl";
+    private static final int JOURNAL_HEADER_BYTES = 16;
+    // a smaller full copy is not written again for the journal
+    private static final long MIN_JOURNAL_BYTES = 1 << 16;
+    static final String GAP_FILE = "gaps.log";
+    private static final int GAP_BYTES = 16;
+
+    // 1 MB of records, about 4 h at 50 CPS
+    public static final int DEFAULT_SEGMENT_BYTES = 1 << 20;
+    private static final int BATCH_SIZE = 1024;
+    private static final int BATCH_COUNT = 64;
+    private static final long PARK_NANOS = 50000000L;
+
+    private static final class Batch {
+        final long[] timestamps = new long[BATCH_SIZE];
+        int length;
+        // the session the pulses belong to, newSession on its first batch
+        boolean newSession;
+        long elapsedAnchorNanos;
+        long wallClockAnchorMillis;
+        // nothing was recorded in [gapFromNanos, gapToNanos) of the session
+        long gapFromNanos;
+        long gapToNanos;
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+
+    private final SpscQueue<Batch> freeBatches = new SpscQueue<>(BATCH_COUNT);
+    private final SpscQueue<Batch> filledBatches = new SpscQueue<>(BATCH_COUNT);
+    // owned by the processing thread
+    private Batch currentBatch;
+    private long sessionElapsedAnchorNanos;
+    private long sessionWallClockAnchorMillis;
+    private boolean sessionPending = false;
+    private volatile long droppedPulses = 0;
+
+    private volatile boolean running = false;
+    private Thread writerThread;
+    // replaced once the saved index is loaded and caught up
+    private volatile RollupIndex rollupIndex = new RollupIndex();
+
+    // owned by the writer thread
+    private int nextSegmentIndex;
+    private long wallClockAnchorMillis;
+    private long elapsedAnchorNanos;
+    private RandomAccessFile segmentFile;
+    private RandomAccessFile gapFile;
+    private RandomAccessFile journalFile;
+    // of the saved full index, 0 when there is none
+    private long snapshotBytes;
+    private int snapshotGeneration;
+    private long journalBytes;
+    private MappedByteBuffer segment;
+    private PulseTimeCodec.Encoder encoder;
+    private long committedPulses;
+    private long lastSyncMillis;
+    // over the records from checksumPosition, the last committed length
+    private final CRC32 pendingChecksum = new CRC32();
+    private int checksumPosition;
+    private final byte[] checksumBuffer = new byte[256];
+
+    public PulseLog(File directory){
+        this(directory, DEFAULT_SEGMENT_BYTES, SyncPolicy.INTERVAL, 10000);
+    }
+
+    public PulseLog(File directory, int segmentBytes, SyncPolicy syncPolicy, long syncIntervalMillis){
+        if(segmentBytes < PulseTimeCodec.MAX_VARINT_BYTES){
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        for(int i = 0; i < BATCH_COUNT; i++){
+            freeBatches.offer(new Batch());
+        }
+    }
+
+    // recovers unsealed segments of a previous run and starts the writer thread
+    public void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("can not create " + directory);
+        }
+        File[] segments = listSegments(directory);
+        for(File file : segments){
+            recover(file);
+        }
+        nextSegmentIndex = segments.length == 0 ? 0 : segmentIndex(segments[segments.length - 1]) + 1;
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                onWriterThreadStart();
+                runWriter();
+            }
+        }, "PulseLogWriter");
+        writerThread.start();
+    }
+
+    // writes the pending batches, seals the current segment and stops the writer
+    public void close() throws InterruptedException {
+        running = false;
+        if(writerThread != null){
+            LockSupport.unpark(writerThread);
+            writerThread.join();
+            writerThread = null;
+        }
+    }
+
+    // processing thread: the following pulses belong to a new recording whose
+    // timestamps are elapsedAnchorNanos at wall clock time wallClockAnchorMillis
+    public void startSession(long elapsedAnchorNanos, long wallClockAnchorMillis){
+        commit();
+        sessionElapsedAnchorNanos = elapsedAnchorNanos;
+        sessionWallClockAnchorMillis = wallClockAnchorMillis;
+        sessionPending = true;
+        if(currentBatch != null){
+            // still empty after commit()
+            takeSession(currentBatch);
+        }
+    }
+
+    // processing thread, timestamps in nanoseconds and not decreasing
+    public void append(long timestamp){
+        Batch batch = currentBatch;
+        if(batch == null || batch.length == BATCH_SIZE){
+            commit();
+            batch = currentBatch = freeBatches.poll();
+            if(batch == null){
+                // the writer is far behind, better lose pulses than stall detection
+                droppedPulses++;
+                return;
+            }
+            takeSession(batch);
+        }
+        batch.timestamps[batch.length++] = timestamp;
+    }
+
+    // processing thread: nothing was recorded between the two timestamps of
+    // the session, e.g. a survey slept; handed to the writer at once
+    public void addGap(long fromNanos, long toNanos){
+        commit();
+        Batch batch = currentBatch = freeBatches.poll();
+        if(batch == null){
+            return;
+        }
+        // the gap is in the clock of the current session, a pending one
+        // starts with the next pulses
+        batch.newSession = false;
+        batch.elapsedAnchorNanos = sessionElapsedAnchorNanos;
+        batch.wallClockAnchorMillis = sessionWallClockAnchorMillis;
+        batch.gapFromNanos = fromNanos;
+        batch.gapToNanos = toNanos;
+        commit();
+    }
+
+    private void takeSession(Batch batch){
+        batch.newSession = sessionPending;
+        batch.elapsedAnchorNanos = sessionElapsedAnchorNanos;
+        batch.wallClockAnchorMillis = sessionWallClockAnchorMillis;
+        sessionPending = false;
+    }
+
+    // processing thread, hands the collected pulses to the writer; once per audio block
+    public void commit(){
+        Batch batch = currentBatch;
+        if(batch == null || (batch.length == 0 && batch.gapToNanos <= batch.gapFromNanos)){
+            return;
+        }
+        currentBatch = null;
+        // can not fail, there are never more batches than the queue holds
+        filledBatches.offer(batch);
+        LockSupport.unpark(writerThread);
+    }
+
+    // pulses lost because the writer could not keep up
+    public long getDroppedPulses(){
+        return droppedPulses;
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    // counts and rates of the whole log by second, minute and hour
+    public RollupIndex getRollupIndex(){
+        return rollupIndex;
+    }
+
+    protected void onWriterThreadStart(){
+    }
+
+    protected void onWriteError(IOException e){
+    }
+
+    private void runWriter(){
+        try{
+            loadRollupIndex();
+        } catch (IOException e){
+            // the index covers what could be read
+            onWriteError(e);
+        }
+        try{
+            while(true){
+                Batch batch = filledBatches.poll();
+                if(batch == null){
+                    if(!running && filledBatches.size() == 0){
+                        break;
+                    }
+                    syncIfDue();
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                    continue;
+                }
+                write(batch);
+                batch.length = 0;
+                batch.gapFromNanos = 0;
+                batch.gapToNanos = 0;
+                freeBatches.offer(batch);
+            }
+        } catch (IOException e){
+            running = false;
+            onWriteError(e);
+        } finally {
+            try{
+                seal();
+                if(gapFile != null){
+                    gapFile.close();
+                    gapFile = null;
+                }
+                if(journalFile != null){
+                    journalFile.close();
+                    journalFile = null;
+                }
+            } catch (IOException e){
+                onWriteError(e);
+            }
+        }
+    }
+
+    private void write(Batch batch) throws IOException {
+        if(batch.gapToNanos > batch.gapFromNanos){
+            writeGap(toWallClockMicros(batch.gapFromNanos / 1000, batch.wallClockAnchorMillis, batch.elapsedAnchorNanos) / 1000,
+                    toWallClockMicros(batch.gapToNanos / 1000, batch.wallClockAnchorMillis, batch.elapsedAnchorNanos) / 1000);
+        }
+        if(batch.length == 0){
+            return;
+        }
+        if(batch.newSession || segment == null){
+            seal();
+            wallClockAnchorMillis = batch.wallClockAnchorMillis;
+            elapsedAnchorNanos = batch.elapsedAnchorNanos;
+            openSegment(elapsedAnchorNanos / 1000);
+        }
+        for(int i = 0; i < batch.length; i++){
+            if(segment.remaining() < PulseTimeCodec.MAX_VARINT_BYTES){
+                seal();
+                openSegment(encoder.getPrevious());
+            }
+            long micros = batch.timestamps[i] / 1000;
+            encoder.encode(segment, micros);
+            committedPulses++;
+            rollupIndex.add(toWallClockMicros(micros, wallClockAnchorMillis, elapsedAnchorNanos) / 1000);
+        }
+        commitPending();
+        if(syncPolicy == SyncPolicy.ALWAYS){
+            sync();
+        } else {
+            syncIfDue();
+        }
+    }
+
+    private void openSegment(long baseMicros) throws IOException {
+        File file = new File(directory, segmentName(nextSegmentIndex++));
+        segmentFile = new RandomAccessFile(file, "rw");
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + segmentBytes);
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(OFFSET_MAGIC, MAGIC);
+        segment.putInt(OFFSET_VERSION, VERSION);
+        segment.putLong(OFFSET_WALL_CLOCK_MILLIS, wallClockAnchorMillis);
+        segment.putLong(OFFSET_ELAPSED_NANOS, elapsedAnchorNanos);
+        segment.putLong(OFFSET_BASE_MICROS, baseMicros);
+        segment.putLong(OFFSET_COMMITTED_BYTES, 0);
+        segment.putLong(OFFSET_COMMITTED_PULSES, 0);
+        segment.putInt(OFFSET_FLAGS, 0);
+        segment.putInt(OFFSET_PENDING_CHECKSUM, 0);
+        segment.putLong(OFFSET_PENDING_BYTES, 0);
+        segment.position(HEADER_BYTES);
+        pendingChecksum.reset();
+        checksumPosition = HEADER_BYTES;
+        encoder = new PulseTimeCodec.Encoder(baseMicros);
+        committedPulses = 0;
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    // after every batch: the records since the last sync with their checksum
+    private void commitPending(){
+        ByteBuffer records = segment.duplicate();
+        int end = segment.position();
+        records.position(checksumPosition);
+        while(records.position() < end){
+            int length = Math.min(checksumBuffer.length, end - records.position());
+            records.get(checksumBuffer, 0, length);
+            pendingChecksum.update(checksumBuffer, 0, length);
+        }
+        checksumPosition = end;
+        segment.putInt(OFFSET_PENDING_CHECKSUM, (int) pendingChecksum.getValue());
+        segment.putLong(OFFSET_PENDING_BYTES, end - HEADER_BYTES);
+    }
+
+    // the records reach the disk before the length that makes them valid
+    private void commitDurable(){
+        segment.force();
+        segment.putLong(OFFSET_COMMITTED_PULSES, committedPulses);
+        segment.putLong(OFFSET_COMMITTED_BYTES, segment.position() - HEADER_BYTES);
+        pendingChecksum.reset();
+        checksumPosition = segment.position();
+        commitPending();
+        segment.force();
+    }
+
+    private void syncIfDue(){
+        if(segment != null && syncPolicy == SyncPolicy.INTERVAL
+                && System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis){
+            sync();
+        }
+    }
+
+    private void sync(){
+        commitDurable();
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    private void writeGap(long fromMillis, long toMillis) throws IOException {
+        if(gapFile == null){
+            gapFile = new RandomAccessFile(new File(directory, GAP_FILE), "rw");
+            // a record cut by a crash is overwritten
+            gapFile.setLength(gapFile.length() / GAP_BYTES * GAP_BYTES);
+        }
+        ByteBuffer record = ByteBuffer.allocate(GAP_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        record.putLong(fromMillis).putLong(toMillis).flip();
+        FileChannel channel = gapFile.getChannel();
+        channel.write(record, gapFile.length());
+        if(syncPolicy != SyncPolicy.NEVER){
+            channel.force(false);
+        }
+        rollupIndex.addGap(fromMillis, toMillis);
+    }
+
+    private void seal() throws IOException {
+        if(segment == null){
+            return;
+        }
+        commitDurable();
+        long length = HEADER_BYTES + segment.getLong(OFFSET_COMMITTED_BYTES);
+        segment.putInt(OFFSET_FLAGS, segment.getInt(OFFSET_FLAGS) | FLAG_SEALED);
+        segment.force();
+        segment = null;
+        // the mapping stays valid until it is collected, the file can still be cut
+        segmentFile.getChannel().truncate(length);
+        segmentFile.close();
+        segmentFile = null;
+        saveRollupIndex();
+    }
+
+    // the index covers all segments before nextSegmentIndex; it is only
+    // locked while the changes are copied, not while they are written
+    private void saveRollupIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        rollupIndex.writeChangesTo(new DataOutputStream(bytes));
+        if(snapshotBytes == 0 || journalBytes + JOURNAL_HEADER_BYTES + bytes.size() > Math.max(snapshotBytes, MIN_JOURNAL_BYTES)){
+            saveRollupSnapshot();
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(JOURNAL_HEADER_BYTES + bytes.size());
+        record.putInt(bytes.size());
+        record.putInt(snapshotGeneration);
+        record.putInt(nextSegmentIndex);
+        record.putInt(0);
+        record.put(bytes.toByteArray());
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 4, 8);
+        checksum.update(record.array(), JOURNAL_HEADER_BYTES, bytes.size());
+        record.putInt(12, (int) checksum.getValue());
+        record.flip();
+        try{
+            FileChannel channel = journalFile.getChannel();
+            channel.write(record, journalBytes);
+            channel.force(false);
+        } catch (IOException e){
+            // these changes are not saved, the next save has to write them all
+            snapshotBytes = 0;
+            throw e;
+        }
+        journalBytes += record.limit();
+    }
+
+    private void saveRollupSnapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(nextSegmentIndex);
+        data.writeInt(snapshotGeneration + 1);
+        rollupIndex.writeTo(data);
+        File file = new File(directory, ROLLUP_FILE);
+        File temp = new File(directory, ROLLUP_FILE + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        try{
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if(!temp.renameTo(file)){
+            throw new IOException("can not replace " + file);
+        }
+        // records of the old generation are not read any more
+        snapshotGeneration++;
+        snapshotBytes = bytes.size();
+        journalBytes = 0;
+        openJournal().setLength(0);
+    }
+
+    private RandomAccessFile openJournal() throws IOException {
+        if(journalFile == null){
+            journalFile = new RandomAccessFile(new File(directory, ROLLUP_JOURNAL), "rw");
+        }
+        return journalFile;
+    }
+
+    private void loadRollupIndex() throws IOException {
+        RollupIndex index = null;
+        int firstSegment = 0;
+        File file = new File(directory, ROLLUP_FILE);
+        if(file.exists()){
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try{
+                firstSegment = in.readInt();
+                snapshotGeneration = in.readInt();
+                index = RollupIndex.readFrom(in);
+                snapshotBytes = file.length();
+                firstSegment = loadRollupJournal(index, firstSegment);
+            } catch (IOException e){
+                // rebuilt from all segments below
+                onWriteError(e);
+                index = null;
+            } finally {
+                in.close();
+            }
+        }
+        if(index == null){
+            index = new RollupIndex();
+            firstSegment = 0;
+            snapshotBytes = 0;
+        }
+        try{
+            PulseLogReader reader = new PulseLogReader(directory, firstSegment);
+            try{
+                while(reader.next()){
+                    index.add(reader.getWallClockMillis());
+                }
+            } finally {
+                reader.close();
+            }
+            loadGaps(index);
+        } finally {
+            // queries see the index once caught up, or as far as it could be read
+            rollupIndex = index;
+        }
+    }
+
+    // applies the journal records of the snapshot's generation up to the
+    // first torn or older one, which is cut off; returns the segments covered
+    private int loadRollupJournal(RollupIndex index, int firstSegment) throws IOException {
+        RandomAccessFile journal = openJournal();
+        long length = journal.length();
+        long position = 0;
+        byte[] header = new byte[JOURNAL_HEADER_BYTES];
+        while(position + JOURNAL_HEADER_BYTES <= length){
+            journal.seek(position);
+            journal.readFully(header);
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            int size = fields.getInt(0);
+            if(size < 0 || size > length - position - JOURNAL_HEADER_BYTES || fields.getInt(4) != snapshotGeneration){
+                break;
+            }
+            byte[] changes = new byte[size];
+            journal.readFully(changes);
+            CRC32 checksum = new CRC32();
+            checksum.update(header, 4, 8);
+            checksum.update(changes, 0, size);
+            if((int) checksum.getValue() != fields.getInt(12)){
+                break;
+            }
+            index.readChangesFrom(new DataInputStream(new ByteArrayInputStream(changes)));
+            firstSegment = fields.getInt(8);
+            position += JOURNAL_HEADER_BYTES + size;
+        }
+        journal.setLength(position);
+        journalBytes = position;
+        return firstSegment;
+    }
+
+    private void loadGaps(RollupIndex index) throws IOException {
+        File file = new File(directory, GAP_FILE);
+        if(!file.exists()){
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try{
+            ByteBuffer record = ByteBuffer.allocate(GAP_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for(long i = file.length() / GAP_BYTES; i > 0; i--){
+                in.readFully(record.array());
+                index.addGap(record.getLong(0), record.getLong(8));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static long toWallClockMicros(long micros, long wallClockAnchorMillis, long elapsedAnchorNanos){
+        return wallClockAnchorMillis * 1000 + micros - elapsedAnchorNanos / 1000;
+    }
+
+    // cuts an unsealed segment back to its committed records, or its pending
+    // ones if they all reached the file
+    static void recover(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            FileChannel channel = raf.getChannel();
+            if(channel.size() < HEADER_BYTES){
+                raf.close();
+                if(!file.delete()){
+                    throw new IOException("can not delete " + file);
+                }
+                return;
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if(header.getInt(OFFSET_MAGIC) != MAGIC){
+                throw new IOException("not a pulse log segment: " + file);
+            }
+            if((header.getInt(OFFSET_FLAGS) & FLAG_SEALED) != 0){
+                return;
+            }
+            long committed = header.getLong(OFFSET_COMMITTED_BYTES);
+            long pending = header.getLong(OFFSET_PENDING_BYTES);
+            long length = HEADER_BYTES + committed;
+            if(pending > committed && HEADER_BYTES + pending <= channel.size()){
+                ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + committed, pending - committed);
+                CRC32 checksum = new CRC32();
+                long pulses = 0;
+                while(records.hasRemaining()){
+                    byte b = records.get();
+                    checksum.update(b);
+                    // the last byte of each varint has the high bit clear
+                    if(b >= 0){
+                        pulses++;
+                    }
+                }
+                if((int) checksum.getValue() == header.getInt(OFFSET_PENDING_CHECKSUM)){
+                    length = HEADER_BYTES + pending;
+                    header.putLong(OFFSET_COMMITTED_PULSES, header.getLong(OFFSET_COMMITTED_PULSES) + pulses);
+                    header.putLong(OFFSET_COMMITTED_BYTES, pending);
+                }
+            }
+            if(length > channel.size()){
+                // the header claims more than the file holds
+                length = channel.size();
+            }
+            header.putInt(OFFSET_FLAGS, header.getInt(OFFSET_FLAGS) | FLAG_SEALED);
+            header.force();
+            channel.truncate(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // segment files in the order they were written
+    static File[] listSegments(File directory){
+        File[] files = directory.listFiles();
+        if(files == null){
+            return new File[0];
+        }
+        int count = 0;
+        for(File file : files){
+            if(segmentIndex(file) >= 0){
+                files[count++] = file;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    static String segmentName(int index){
+        return String.format(Locale.US, "%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    static int segmentIndex(File file){
+        String name = file.getName();
+        if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)){
+            return -1;
+        }
+        try{
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e){
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.nick.atomsense;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Streams the pulses of a PulseLog directory in the order they were written,
+// through a fixed read buffer. Only committed records are read, so it can run
+// while the log is being written.
+public class PulseLogReader implements Closeable {
+
+    private static final int READ_BUFFER_BYTES = 1 << 16;
+
+    private final File[] segments;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private int segmentPosition = 0;
+
+    private RandomAccessFile segmentFile;
+    private FileChannel channel;
+    // record bytes of the current segment not read into the buffer yet
+    private long unreadBytes;
+
+    private long wallClockAnchorMillis;
+    private long elapsedAnchorNanos;
+    private PulseTimeCodec.Decoder decoder;
+    private long micros;
+    private boolean newSession;
+    private boolean started = false;
+
+    public PulseLogReader(File directory){
+        this(directory, 0);
+    }
+
+    // starts with the segment of the given index, e.g. after what an index covers
+    public PulseLogReader(File directory, int firstSegmentIndex){
+        File[] all = PulseLog.listSegments(directory);
+        int first = 0;
+        while(first < all.length && PulseLog.segmentIndex(all[first]) < firstSegmentIndex){
+            first++;
+        }
+        segments = Arrays.copyOfRange(all, first, all.length);
+    }
+
+    // index of the segment to read pulses from wallClockMillis on: the last one
+    // starting at or before it, by a binary search over the segment headers.
+    // Sessions are taken to be in wall clock order
+    public static int segmentAt(File directory, long wallClockMillis) throws IOException {
+        File[] all = PulseLog.listSegments(directory);
+        // segments [0, low) start at or before the time
+        int low = 0;
+        int high = all.length;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(startMillis(all[mid]) <= wallClockMillis){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low > 0 ? PulseLog.segmentIndex(all[low - 1]) : 0;
+    }
+
+    // wall clock time of the first pulse of a segment
+    private static long startMillis(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PulseLog.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            raf.readFully(header.array());
+        } finally {
+            raf.close();
+        }
+        if(header.getInt(PulseLog.OFFSET_MAGIC) != PulseLog.MAGIC){
+            throw new IOException("not a pulse log segment: " + file);
+        }
+        return PulseLog.toWallClockMicros(header.getLong(PulseLog.OFFSET_BASE_MICROS),
+                header.getLong(PulseLog.OFFSET_WALL_CLOCK_MILLIS), header.getLong(PulseLog.OFFSET_ELAPSED_NANOS)) / 1000;
+    }
+
+    // advances to the next pulse, false when all committed pulses were read
+    public boolean next() throws IOException {
+        newSession = false;
+        while(true){
+            if(channel != null){
+                if(fill(PulseTimeCodec.MAX_VARINT_BYTES)){
+                    try{
+                        readRecord();
+                    } catch (BufferUnderflowException e){
+                        throw new EOFException("truncated record in " + segments[segmentPosition - 1]);
+                    }
+                    return true;
+                }
+                closeSegment();
+            }
+            if(segmentPosition == segments.length){
+                return false;
+            }
+            openSegment(segments[segmentPosition++]);
+        }
+    }
+
+    private void readRecord(){
+        micros = decoder.decode(buffer);
+    }
+
+    // elapsedRealtimeNanos() clock of the session, at µs resolution
+    public long getTimestamp(){
+        return micros * 1000;
+    }
+
+    public long getWallClockMicros(){
+        return PulseLog.toWallClockMicros(micros, wallClockAnchorMillis, elapsedAnchorNanos);
+    }
+
+    public long getWallClockMillis(){
+        return getWallClockMicros() / 1000;
+    }
+
+    // the current pulse is the first one of a recording session
+    public boolean isNewSession(){
+        return newSession;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+        segmentPosition = segments.length;
+    }
+
+    private void openSegment(File file) throws IOException {
+        segmentFile = new RandomAccessFile(file, "r");
+        channel = segmentFile.getChannel();
+        buffer.clear().limit(PulseLog.HEADER_BYTES);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                throw new EOFException("truncated header in " + file);
+            }
+        }
+        buffer.flip();
+        if(buffer.getInt(PulseLog.OFFSET_MAGIC) != PulseLog.MAGIC){
+            throw new IOException("not a pulse log segment: " + file);
+        }
+        int version = buffer.getInt(PulseLog.OFFSET_VERSION);
+        if(version != PulseLog.VERSION){
+            throw new IOException("unsupported pulse log version " + version + " in " + file);
+        }
+        long anchor = buffer.getLong(PulseLog.OFFSET_ELAPSED_NANOS);
+        long wallClock = buffer.getLong(PulseLog.OFFSET_WALL_CLOCK_MILLIS);
+        if(!started || anchor != elapsedAnchorNanos || wallClock != wallClockAnchorMillis){
+            newSession = true;
+            started = true;
+        }
+        elapsedAnchorNanos = anchor;
+        wallClockAnchorMillis = wallClock;
+        micros = buffer.getLong(PulseLog.OFFSET_BASE_MICROS);
+        decoder = new PulseTimeCodec.Decoder(micros);
+        unreadBytes = Math.min(buffer.getLong(PulseLog.OFFSET_COMMITTED_BYTES), channel.size() - PulseLog.HEADER_BYTES);
+        buffer.clear().limit(0);
+    }
+
+    // makes up to count bytes available, false at the end of the segment
+    private boolean fill(int count) throws IOException {
+        if(buffer.remaining() >= count){
+            return true;
+        }
+        buffer.compact();
+        int limit = (int) Math.min(buffer.capacity(), buffer.position() + unreadBytes);
+        buffer.limit(limit);
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer);
+            if(read < 0){
+                break;
+            }
+            unreadBytes -= read;
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    private void closeSegment() throws IOException {
+        if(segmentFile != null){
+            segmentFile.close();
+            segmentFile = null;
+            channel = null;
+        }
+    }
+}
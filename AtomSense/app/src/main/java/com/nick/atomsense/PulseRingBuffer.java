@@ -0,0 +1,144 @@
+package com.nick.atomsense;
+
+// Fixed-capacity ring of pulse timestamps.
+// One thread (the detector) adds, any other thread reads; nothing is locked and
+// nothing is allocated per pulse. When the ring is full the oldest timestamps
+// are overwritten, but the total count and the first timestamp stay exact.
+public class PulseRingBuffer {
+
+    private final long[] timestamps;
+    private final int capacity;
+    private final int mask;
+
+    // count of timestamps written since the last clear, published after the slot is written
+    private volatile long writeCount = 0;
+    private volatile long firstTimestamp = 0;
+
+    // clear() only raises a request, the producer applies it on the next add()
+    // so the reader never has to touch the producer's position
+    private volatile int clearRequests = 0;
+    private volatile int clearsApplied = 0;
+
+    public PulseRingBuffer(int capacity){
+        if(capacity <= 0 || Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.timestamps = new long[capacity];
+    }
+
+    // producer side
+    public void add(long timestamp){
+        int requests = clearRequests;
+        if(clearsApplied != requests){
+            writeCount = 0;
+            clearsApplied = requests;
+        }
+        long count = writeCount;
+        timestamps[(int) count & mask] = timestamp;
+        if(count == 0){
+            firstTimestamp = timestamp;
+        }
+        writeCount = count + 1;
+    }
+
+    public void clear(){
+        clearRequests++;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    // all pulses since the last clear, including the overwritten ones
+    public long getTotalCount(){
+        if(isClearPending()){
+            return 0;
+        }
+        return writeCount;
+    }
+
+    // pulses that were overwritten and can no longer be read back
+    public long getOverflowCount(){
+        long overflow = getTotalCount() - capacity;
+        return overflow > 0 ? overflow : 0;
+    }
+
+    // pulses that can still be read back
+    public int size(){
+        return (int) Math.min(getTotalCount(), capacity);
+    }
+
+    public long getFirstTimestamp(){
+        if(getTotalCount() == 0){
+            return 0;
+        }
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp(){
+        long count = getTotalCount();
+        if(count == 0){
+            return 0;
+        }
+        return timestamps[(int) (count - 1) & mask];
+    }
+
+    // copies up to dst.length latest timestamps into dst, oldest first,
+    // returns how many were copied
+    public int readLatest(long[] dst){
+        int applied = clearsApplied;
+        if(applied != clearRequests){
+            return 0;
+        }
+        long end = writeCount;
+        long start = Math.max(0, end - Math.min(capacity, dst.length));
+        int copied = (int) (end - start);
+        for(int i = 0; i < copied; i++){
+            dst[i] = timestamps[(int) (start + i) & mask];
+        }
+        if(applied != clearsApplied){
+            // cleared while copying
+            return 0;
+        }
+        // drop the slots the producer could have overwritten while we were copying
+        long oldestValid = writeCount - capacity;
+        if(start < oldestValid){
+            int lost = (int) Math.min(copied, oldestValid - start);
+            copied -= lost;
+            System.arraycopy(dst, lost, dst, 0, copied);
+        }
+        return copied;
+    }
+
+    // number of retained pulses with timestamp >= since; timestamps are
+    // monotonic, so this is a binary search over the ring
+    public int countSince(long since){
+        int applied = clearsApplied;
+        if(applied != clearRequests){
+            return 0;
+        }
+        long end = writeCount;
+        // keep one slot of margin for a concurrent add()
+        long start = Math.max(0, end - capacity + 1);
+        long low = start;
+        long high = end;
+        while(low < high){
+            long mid = (low + high) >>> 1;
+            if(timestamps[(int) mid & mask] < since){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if(applied != clearsApplied){
+            return 0;
+        }
+        return (int) (end - low);
+    }
+
+    private boolean isClearPending(){
+        return clearsApplied != clearRequests;
+    }
+}
@@ -0,0 +1,182 @@
+package com.nick.atomsense;
+
+// Measures each triggered pulse in the block it was found in and keeps
+// histograms of peak amplitude, rise time and width, a simple multichannel
+// analyzer. Tube pulses share one shape and a narrow amplitude peak, while
+// interference is spread out, so the spectra show which counts are real and
+// where the trigger level belongs.
+//
+// Measured against a baseline of 0, i.e. on conditioned samples (see
+// ThresholdPulseDetector). From the trigger sample the pulse is followed while
+// it stays above the level, at most maxWindow samples; its peak is the
+// largest sample there. Rise time is from the last sample before the peak at
+// or below 10 % of it, width is the time above half of it. The window reaches
+// maxWindow samples back as well, into the last samples of the previous block,
+// which are kept. A pulse whose window runs past the end of its block waits
+// for the next one and is measured in endBlock(), on the tail of its own block
+// followed by the head of the next; only when the blocks between were dropped
+// is it left out, and counted in getCutPulses().
+// Runs on the processing thread and allocates nothing.
+public class PulseShapeAnalyzer {
+
+    public static final int AMPLITUDE = 0;
+    public static final int RISE_TIME = 1;
+    public static final int WIDTH = 2;
+
+    static final int AMPLITUDE_BINS = 1024;
+    static final int TIME_BINS = 256;
+
+    private final Histogram[] histograms = {
+            // 32 per bin over the positive 16-bit range
+            new Histogram(AMPLITUDE_BINS, 0, 32768.0 / AMPLITUDE_BINS),
+            // one sample per bin
+            new Histogram(TIME_BINS, 0, 1),
+            new Histogram(TIME_BINS, 0, 1)
+    };
+    private volatile int maxWindow = TIME_BINS;
+
+    // the last samples before the current block, up to 2 windows
+    private final short[] history = new short[2 * TIME_BINS];
+    private int historyLength = 0;
+    // history, then the head of a block
+    private final short[] span = new short[3 * TIME_BINS];
+    // pulses waiting for the next block, as samples before the end of theirs:
+    // deferred in the current block, pending from the previous one
+    private int[] deferred = new int[TIME_BINS];
+    private int deferredCount = 0;
+    private short deferredLevel;
+    private int[] pending = new int[TIME_BINS];
+    private int pendingCount = 0;
+    private short pendingLevel;
+    private volatile long cutPulses = 0;
+
+    // the last measurement
+    private int peak;
+    private int riseSamples;
+    private int widthSamples;
+
+    // longer than the time bins would only overflow them
+    public void setMaxWindow(int samples){
+        maxWindow = Math.max(1, Math.min(TIME_BINS, samples));
+    }
+
+    // processing thread: the pulse triggered at buf[offset], buf is valid up to end
+    public void analyze(short[] buf, int offset, int end, short triggerLevel){
+        int window = maxWindow;
+        if(offset + window > end){
+            deferred[deferredCount++] = end - offset;
+            deferredLevel = triggerLevel;
+            return;
+        }
+        if(offset < window && historyLength > 0){
+            // looks back into the previous block
+            int back = Math.min(historyLength, window);
+            System.arraycopy(history, historyLength - back, span, 0, back);
+            System.arraycopy(buf, 0, span, back, offset + window);
+            measure(span, back + offset, Math.max(0, back + offset - window), back + offset + window, triggerLevel);
+            return;
+        }
+        measure(buf, offset, Math.max(0, offset - window), offset + window, triggerLevel);
+    }
+
+    // processing thread, after the pulses of each block: measures those of
+    // the previous block which were waiting for this one
+    public void endBlock(short[] buf, int end){
+        int window = maxWindow;
+        if(pendingCount > 0){
+            int head = Math.min(end, TIME_BINS);
+            System.arraycopy(history, 0, span, 0, historyLength);
+            System.arraycopy(buf, 0, span, historyLength, head);
+            int spanEnd = historyLength + head;
+            for(int i = 0; i < pendingCount; i++){
+                int offset = historyLength - pending[i];
+                measure(span, offset, Math.max(0, offset - window), Math.min(spanEnd, offset + window), pendingLevel);
+            }
+            pendingCount = 0;
+        }
+        if(end >= history.length){
+            System.arraycopy(buf, end - history.length, history, 0, history.length);
+            historyLength = history.length;
+        } else {
+            int keep = Math.min(historyLength, history.length - end);
+            System.arraycopy(history, historyLength - keep, history, 0, keep);
+            System.arraycopy(buf, 0, history, keep, end);
+            historyLength = keep + end;
+        }
+        int[] swap = pending;
+        pending = deferred;
+        pendingCount = deferredCount;
+        pendingLevel = deferredLevel;
+        deferred = swap;
+        deferredCount = 0;
+    }
+
+    // processing thread: the samples go on after a gap, the pulses waiting
+    // for the next block are left out
+    public void skip(){
+        cutPulses += pendingCount + deferredCount;
+        pendingCount = 0;
+        deferredCount = 0;
+        historyLength = 0;
+    }
+
+    private void measure(short[] buf, int offset, int windowStart, int windowEnd, short triggerLevel){
+        int peakIndex = offset;
+        int peakValue = buf[offset];
+        for(int i = offset + 1; i < windowEnd && buf[i] > triggerLevel; i++){
+            if(buf[i] > peakValue){
+                peakValue = buf[i];
+                peakIndex = i;
+            }
+        }
+        int foot = peakValue / 10;
+        int start = peakIndex;
+        while(start > windowStart && buf[start - 1] > foot){
+            start--;
+        }
+        int half = peakValue / 2;
+        int left = peakIndex;
+        while(left > windowStart && buf[left - 1] > half){
+            left--;
+        }
+        int right = peakIndex;
+        while(right + 1 < windowEnd && buf[right + 1] > half){
+            right++;
+        }
+        peak = peakValue;
+        // from the foot, the sample before start
+        riseSamples = peakIndex - start + 1;
+        widthSamples = right - left + 1;
+        histograms[AMPLITUDE].add(peak);
+        histograms[RISE_TIME].add(riseSamples);
+        histograms[WIDTH].add(widthSamples);
+    }
+
+    public Histogram getHistogram(int kind){
+        return histograms[kind];
+    }
+
+    public int getPeak(){
+        return peak;
+    }
+
+    public int getRiseSamples(){
+        return riseSamples;
+    }
+
+    public int getWidthSamples(){
+        return widthSamples;
+    }
+
+    // pulses left out because the samples after them were dropped
+    public long getCutPulses(){
+        return cutPulses;
+    }
+
+    // any thread
+    public void requestClear(){
+        for(Histogram histogram : histograms){
+            histogram.requestClear();
+        }
+    }
+}
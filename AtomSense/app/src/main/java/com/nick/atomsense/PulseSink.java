@@ -0,0 +1,9 @@
+package com.nick.atomsense;
+
+// Receives pulses found by a PulseDetector, called on the detector thread.
+public interface PulseSink {
+
+    // sampleIndex counts samples since the detector was reset,
+    // offset is the position of the triggered sample in the current buffer
+    void onPulse(long sampleIndex, int offset);
+}
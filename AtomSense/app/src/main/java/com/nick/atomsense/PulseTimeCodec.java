@@ -0,0 +1,206 @@
+package com.nick.atomsense;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+// Compression of increasing pulse times, e.g. µs timestamps. Each value is
+// stored as the zig-zag encoded difference to the previous one, so the
+// exponentially distributed gaps of a counter take 2-3 bytes instead of 8;
+// a backwards step (a new session) still encodes.
+//
+// Varint mode (Encoder / Decoder) appends one pulse at a time. Block mode
+// (encodeBlock / BlockDecoder) bit-packs up to BLOCK_SIZE gaps at the width of
+// the largest one: "count (varint), width (byte), packed gaps, LSB first".
+// Both decode from a ByteBuffer without materializing the stream.
+public final class PulseTimeCodec {
+
+    public static final int MAX_VARINT_BYTES = 10;
+    public static final int BLOCK_SIZE = 128;
+    // wider gaps fall back to varints inside the block
+    private static final int MAX_PACKED_WIDTH = 56;
+    private static final int VARINT_BLOCK = 0xFF;
+
+    private PulseTimeCodec(){
+    }
+
+    public static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void putVarLong(ByteBuffer out, long value){
+        while((value & ~0x7FL) != 0){
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static long getVarLong(ByteBuffer in){
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7){
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0){
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint longer than " + MAX_VARINT_BYTES + " bytes");
+    }
+
+    public static int varLongSize(long value){
+        int size = 1;
+        while((value & ~0x7FL) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static final class Encoder {
+
+        private long previous;
+
+        public Encoder(long base){
+            previous = base;
+        }
+
+        // at most MAX_VARINT_BYTES are written
+        public void encode(ByteBuffer out, long value){
+            putVarLong(out, zigZag(value - previous));
+            previous = value;
+        }
+
+        public long getPrevious(){
+            return previous;
+        }
+    }
+
+    public static final class Decoder {
+
+        private long previous;
+
+        public Decoder(long base){
+            previous = base;
+        }
+
+        public long decode(ByteBuffer in){
+            previous += unZigZag(getVarLong(in));
+            return previous;
+        }
+    }
+
+    // encodes values[offset, offset + count) as one block, count <= BLOCK_SIZE;
+    // returns the last value, the base of the next block
+    public static long encodeBlock(ByteBuffer out, long base, long[] values, int offset, int count){
+        if(count < 0 || count > BLOCK_SIZE){
+            throw new IllegalArgumentException("count must be in [0, " + BLOCK_SIZE + "]: " + count);
+        }
+        long bitsUsed = 0;
+        long previous = base;
+        for(int i = offset; i < offset + count; i++){
+            bitsUsed |= zigZag(values[i] - previous);
+            previous = values[i];
+        }
+        int width = 64 - Long.numberOfLeadingZeros(bitsUsed);
+        putVarLong(out, count);
+        previous = base;
+        if(width > MAX_PACKED_WIDTH){
+            out.put((byte) VARINT_BLOCK);
+            for(int i = offset; i < offset + count; i++){
+                putVarLong(out, zigZag(values[i] - previous));
+                previous = values[i];
+            }
+            return previous;
+        }
+        out.put((byte) width);
+        long bits = 0;
+        int bitCount = 0;
+        for(int i = offset; i < offset + count; i++){
+            bits |= zigZag(values[i] - previous) << bitCount;
+            previous = values[i];
+            bitCount += width;
+            while(bitCount >= 8){
+                out.put((byte) bits);
+                bits >>>= 8;
+                bitCount -= 8;
+            }
+        }
+        if(bitCount > 0){
+            out.put((byte) bits);
+        }
+        return previous;
+    }
+
+    // largest size of a block of count values
+    public static int maxBlockBytes(int count){
+        return varLongSize(count) + 1 + count * MAX_VARINT_BYTES;
+    }
+
+    // iterates the values of consecutive blocks through one reused array
+    public static final class BlockDecoder {
+
+        private final long[] block = new long[BLOCK_SIZE];
+        private int length = 0;
+        private int position = 0;
+        private long previous;
+
+        public BlockDecoder(long base){
+            previous = base;
+        }
+
+        // false when the buffer holds no further value
+        public boolean hasNext(ByteBuffer in){
+            while(position == length){
+                if(!in.hasRemaining()){
+                    return false;
+                }
+                readBlock(in);
+            }
+            return true;
+        }
+
+        public long next(ByteBuffer in){
+            if(!hasNext(in)){
+                throw new NoSuchElementException();
+            }
+            return block[position++];
+        }
+
+        private void readBlock(ByteBuffer in){
+            int count = (int) getVarLong(in);
+            if(count < 0 || count > BLOCK_SIZE){
+                throw new IllegalArgumentException("corrupt block of " + count + " values");
+            }
+            int width = in.get() & 0xFF;
+            if(width == VARINT_BLOCK){
+                for(int i = 0; i < count; i++){
+                    previous += unZigZag(getVarLong(in));
+                    block[i] = previous;
+                }
+            } else {
+                if(width > MAX_PACKED_WIDTH){
+                    throw new IllegalArgumentException("corrupt block width " + width);
+                }
+                long mask = width == 0 ? 0 : -1L >>> (64 - width);
+                long bits = 0;
+                int bitCount = 0;
+                for(int i = 0; i < count; i++){
+                    while(bitCount < width){
+                        bits |= (long) (in.get() & 0xFF) << bitCount;
+                        bitCount += 8;
+                    }
+                    previous += unZigZag(bits & mask);
+                    bits >>>= width;
+                    bitCount -= width;
+                    block[i] = previous;
+                }
+            }
+            length = count;
+            position = 0;
+        }
+    }
+}
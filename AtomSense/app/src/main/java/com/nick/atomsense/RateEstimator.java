@@ -0,0 +1,240 @@
+package com.nick.atomsense;
+
+// Incremental count rate estimator, timestamps are in nanoseconds.
+// The detector thread calls onPulse() for every pulse and publish() once per
+// audio buffer, both O(1). Readers only get the last published RateSnapshot.
+//
+// Besides the session average and the fixed windows it keeps an adaptive
+// window, which grows while the rate is steady and is cut back when two
+// CUSUM tests on the pulse intervals find the rate has doubled or halved
+// against the window's rate. Each test is the log likelihood ratio of the
+// intervals under the changed rate, summed and floored at 0; when one passes
+// CUSUM_THRESHOLD the window restarts where that sum last was 0, the likely
+// change point. A fall is also tested at publish(), so a source taken away
+// shows before the next pulse.
+public class RateEstimator {
+
+    public static final int SHORT_WINDOW_SECONDS = 10;
+    public static final int LONG_WINDOW_SECONDS = 60;
+    private static final long BUCKET_NANOS = SampleClock.NANOS_PER_SECOND;
+    // log likelihood ratio to restart the adaptive window; e^7, about one
+    // false restart in a few thousand pulses of a steady rate
+    static final double CUSUM_THRESHOLD = 7;
+    // pulses in the window before its rate is tested against
+    static final int CUSUM_MIN_COUNT = 10;
+    private static final double LN_2 = Math.log(2);
+
+    // per-second counts of the last LONG_WINDOW_SECONDS, indexed by absolute second
+    private final int[] buckets = new int[LONG_WINDOW_SECONDS];
+    private long currentBucket = -1;
+    private int shortWindowCount = 0;
+    private int longWindowCount = 0;
+
+    private long totalCount = 0;
+    private long firstTimestamp = 0;
+    private long lastTimestamp = 0;
+
+    // running mean and variance of the inter-pulse intervals (Welford), in nanoseconds
+    private double intervalMean = 0;
+    private double intervalM2 = 0;
+
+    // adaptive window: pulses after windowStart
+    private long windowStart = 0;
+    private long windowCount = 0;
+    // CUSUM sums for a doubled and a halved rate, and where each was last 0
+    // as totalCount and timestamp
+    private double cusumUp = 0;
+    private double cusumDown = 0;
+    private long upStart = 0;
+    private long upStartTotal = 0;
+    private long downStart = 0;
+    private long downStartTotal = 0;
+
+    private volatile DeadTimeCorrection deadTimeCorrection = DeadTimeCorrection.NONE;
+    private volatile boolean resetRequested = false;
+    private volatile RateSnapshot snapshot = RateSnapshot.EMPTY;
+
+    // producer side
+    public void onPulse(long timestamp){
+        applyReset();
+        advanceTo(timestamp);
+        buckets[bucketIndex(currentBucket)]++;
+        shortWindowCount++;
+        longWindowCount++;
+
+        if(totalCount == 0){
+            firstTimestamp = timestamp;
+            lastTimestamp = timestamp;
+            totalCount++;
+            restartWindow(timestamp, 0);
+            return;
+        }
+        double interval = timestamp - lastTimestamp;
+        double delta = interval - intervalMean;
+        intervalMean += delta / totalCount;
+        intervalM2 += delta * (interval - intervalMean);
+
+        // tested against the window before this pulse
+        double windowRate = windowRate(lastTimestamp);
+        lastTimestamp = timestamp;
+        totalCount++;
+        windowCount++;
+        if(windowRate > 0){
+            double seconds = interval / SampleClock.NANOS_PER_SECOND;
+            // log of the likelihood ratio of one interval, 2 or 1/2 times the rate
+            cusumUp += LN_2 - windowRate * seconds;
+            cusumDown += -LN_2 + 0.5 * windowRate * seconds;
+            if(cusumUp <= 0){
+                cusumUp = 0;
+                upStart = timestamp;
+                upStartTotal = totalCount;
+            }
+            if(cusumDown <= 0){
+                cusumDown = 0;
+                downStart = timestamp;
+                downStartTotal = totalCount;
+            }
+            if(cusumUp > CUSUM_THRESHOLD){
+                restartWindow(upStart, totalCount - upStartTotal);
+            } else if(cusumDown > CUSUM_THRESHOLD){
+                restartWindow(downStart, totalCount - downStartTotal);
+            }
+        }
+    }
+
+    // rate of the adaptive window up to now, 0 while it is too short to test against
+    private double windowRate(long now){
+        if(windowCount < CUSUM_MIN_COUNT || now <= windowStart){
+            return 0;
+        }
+        return windowCount / ((now - windowStart) / (double) SampleClock.NANOS_PER_SECOND);
+    }
+
+    private void restartWindow(long start, long count){
+        windowStart = start;
+        windowCount = count;
+        // both sums are 0 from the last pulse on; a window started too early
+        // is cut again by the next detection
+        cusumUp = 0;
+        cusumDown = 0;
+        upStart = lastTimestamp;
+        upStartTotal = totalCount;
+        downStart = lastTimestamp;
+        downStartTotal = totalCount;
+    }
+
+    // the halved rate test with the time since the last pulse, as if one came now
+    private void testFall(long now){
+        double windowRate = windowRate(lastTimestamp);
+        if(windowRate <= 0 || now <= lastTimestamp){
+            return;
+        }
+        double seconds = (now - lastTimestamp) / (double) SampleClock.NANOS_PER_SECOND;
+        if(cusumDown + 0.5 * windowRate * seconds > CUSUM_THRESHOLD){
+            restartWindow(downStart, totalCount - downStartTotal);
+        }
+    }
+
+    // producer side, moves the windows to now and makes the state visible to readers
+    public void publish(long now){
+        applyReset();
+        advanceTo(now);
+        if(totalCount == 0){
+            snapshot = RateSnapshot.EMPTY;
+            return;
+        }
+        testFall(now);
+        snapshot = new RateSnapshot(totalCount, firstTimestamp, lastTimestamp,
+                shortWindowCount, windowSeconds(SHORT_WINDOW_SECONDS, now),
+                longWindowCount, windowSeconds(LONG_WINDOW_SECONDS, now),
+                windowCount, Math.max(0, now - windowStart) / (float) SampleClock.NANOS_PER_SECOND,
+                estimateDeadTimeSeconds(), deadTimeCorrection);
+    }
+
+    public void setDeadTimeCorrection(DeadTimeCorrection deadTimeCorrection){
+        this.deadTimeCorrection = deadTimeCorrection;
+    }
+
+    // Intervals of a Poisson stream behind a non-paralyzable dead time tau are
+    // tau + exponential(1 / n), so mean - standard deviation estimates tau.
+    // It includes the detector's own impulse width.
+    private double estimateDeadTimeSeconds(){
+        long intervals = totalCount - 1;
+        if(intervals < 2){
+            return 0;
+        }
+        double std = Math.sqrt(intervalM2 / (intervals - 1));
+        return Math.max(0, intervalMean - std) / SampleClock.NANOS_PER_SECOND;
+    }
+
+    public RateSnapshot getSnapshot(){
+        return snapshot;
+    }
+
+    // can be called from any thread, the producer drops its state on the next call
+    public void reset(){
+        resetRequested = true;
+        snapshot = RateSnapshot.EMPTY;
+    }
+
+    private void applyReset(){
+        if(!resetRequested){
+            return;
+        }
+        resetRequested = false;
+        for(int i = 0; i < buckets.length; i++){
+            buckets[i] = 0;
+        }
+        currentBucket = -1;
+        shortWindowCount = 0;
+        longWindowCount = 0;
+        totalCount = 0;
+        firstTimestamp = 0;
+        lastTimestamp = 0;
+        intervalMean = 0;
+        intervalM2 = 0;
+        restartWindow(0, 0);
+    }
+
+    private void advanceTo(long timestamp){
+        long bucket = timestamp / BUCKET_NANOS;
+        if(currentBucket < 0){
+            currentBucket = bucket;
+            return;
+        }
+        if(bucket <= currentBucket){
+            return;
+        }
+        if(bucket - currentBucket >= LONG_WINDOW_SECONDS){
+            for(int i = 0; i < buckets.length; i++){
+                buckets[i] = 0;
+            }
+            shortWindowCount = 0;
+            longWindowCount = 0;
+            currentBucket = bucket;
+            return;
+        }
+        while(currentBucket < bucket){
+            currentBucket++;
+            shortWindowCount -= buckets[bucketIndex(currentBucket - SHORT_WINDOW_SECONDS)];
+            // the slot of the new second still holds the one that left the long window
+            int index = bucketIndex(currentBucket);
+            longWindowCount -= buckets[index];
+            buckets[index] = 0;
+        }
+    }
+
+    // effective window length: the current second is only partly elapsed,
+    // and at the start of a session the window is not filled yet
+    private float windowSeconds(int windowSeconds, long now){
+        long windowStart = (currentBucket - windowSeconds + 1) * BUCKET_NANOS;
+        if(windowStart < firstTimestamp){
+            windowStart = firstTimestamp;
+        }
+        return Math.max(0, now - windowStart) / (float) SampleClock.NANOS_PER_SECOND;
+    }
+
+    private static int bucketIndex(long bucket){
+        return (int) Math.floorMod(bucket, (long) LONG_WINDOW_SECONDS);
+    }
+}
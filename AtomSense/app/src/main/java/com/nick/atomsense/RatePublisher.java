@@ -0,0 +1,72 @@
+package com.nick.atomsense;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hands the latest RateSnapshot from the processing thread to a listener on
+// the UI thread. Updates are conflated: at most one dispatch is queued at a
+// time and it delivers whatever snapshot is newest when it runs, and a new one
+// is queued no sooner than minIntervalNanos after the previous. The processing
+// thread never blocks and nothing is allocated per update.
+public class RatePublisher {
+
+    public interface Listener {
+        // UI thread
+        void onRate(RateSnapshot snapshot);
+    }
+
+    private final Executor uiExecutor;
+    private final long minIntervalNanos;
+    private final AtomicBoolean queued = new AtomicBoolean(false);
+    private volatile RateSnapshot latest;
+    private volatile Listener listener;
+    // processing thread only
+    private long lastQueuedNanos;
+    private boolean queuedOnce = false;
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            queued.set(false);
+            Listener current = listener;
+            RateSnapshot snapshot = latest;
+            if(current != null && snapshot != null){
+                current.onRate(snapshot);
+            }
+        }
+    };
+
+    // uiExecutor runs on the UI thread, e.g. posts to a main looper Handler
+    public RatePublisher(Executor uiExecutor, long minIntervalNanos){
+        this.uiExecutor = uiExecutor;
+        this.minIntervalNanos = minIntervalNanos;
+    }
+
+    // processing thread
+    public void publish(RateSnapshot snapshot, long nowNanos){
+        latest = snapshot;
+        if(listener == null){
+            return;
+        }
+        if(queuedOnce && nowNanos - lastQueuedNanos < minIntervalNanos){
+            return;
+        }
+        if(queued.compareAndSet(false, true)){
+            lastQueuedNanos = nowNanos;
+            queuedOnce = true;
+            uiExecutor.execute(dispatch);
+        }
+    }
+
+    // UI thread; the latest snapshot, if any, is delivered right away
+    public void setListener(Listener listener){
+        this.listener = listener;
+        if(listener != null && latest != null && queued.compareAndSet(false, true)){
+            uiExecutor.execute(dispatch);
+        }
+    }
+
+    public RateSnapshot getLatest(){
+        return latest;
+    }
+}
@@ -0,0 +1,129 @@
+package com.nick.atomsense;
+
+// Immutable view of the RateEstimator state, safe to pass to the UI thread.
+public final class RateSnapshot {
+
+    public static final RateSnapshot EMPTY = new RateSnapshot(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, DeadTimeCorrection.NONE);
+
+    private final long totalCount;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final int shortWindowCount;
+    private final float shortWindowSeconds;
+    private final int longWindowCount;
+    private final float longWindowSeconds;
+    private final long adaptiveWindowCount;
+    private final float adaptiveWindowSeconds;
+    private final double deadTimeEstimateSeconds;
+    private final DeadTimeCorrection deadTimeCorrection;
+
+    public RateSnapshot(long totalCount, long firstTimestamp, long lastTimestamp,
+                        int shortWindowCount, float shortWindowSeconds,
+                        int longWindowCount, float longWindowSeconds,
+                        long adaptiveWindowCount, float adaptiveWindowSeconds,
+                        double deadTimeEstimateSeconds, DeadTimeCorrection deadTimeCorrection){
+        this.totalCount = totalCount;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.shortWindowCount = shortWindowCount;
+        this.shortWindowSeconds = shortWindowSeconds;
+        this.longWindowCount = longWindowCount;
+        this.longWindowSeconds = longWindowSeconds;
+        this.adaptiveWindowCount = adaptiveWindowCount;
+        this.adaptiveWindowSeconds = adaptiveWindowSeconds;
+        this.deadTimeEstimateSeconds = deadTimeEstimateSeconds;
+        this.deadTimeCorrection = deadTimeCorrection;
+    }
+
+    public long getTotalCount(){
+        return totalCount;
+    }
+
+    public long getFirstTimestamp(){
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp(){
+        return lastTimestamp;
+    }
+
+    // average rate over the whole session
+    public float getCps(){
+        if(totalCount < 2){
+            return 0;
+        }
+        float remainSeconds = (lastTimestamp - firstTimestamp) / (float) SampleClock.NANOS_PER_SECOND;
+        return remainSeconds > 0 ? totalCount / remainSeconds : 0;
+    }
+
+    // session rate corrected for the dead time of the tube and the impulse width
+    public float getCorrectedCps(){
+        return (float) deadTimeCorrection.correct(getCps());
+    }
+
+    // the measured rate is too close to the maximum the counter can report
+    // for the true rate to be recovered from it
+    public boolean isSaturated(){
+        // the short window reacts faster than the session average
+        return deadTimeCorrection.isSaturated(Math.max(getCps(), getShortWindowCps()));
+    }
+
+    // dead time estimated from the pulse intervals, 0 until there are enough pulses
+    public double getDeadTimeEstimateSeconds(){
+        return deadTimeEstimateSeconds;
+    }
+
+    // 95% confidence interval of the session rate, in percent
+    public double getErrorPercent(){
+        if(totalCount == 0){
+            return 100;
+        }
+        return (1.96 / Math.sqrt(totalCount)) * 100;
+    }
+
+    public int getShortWindowCount(){
+        return shortWindowCount;
+    }
+
+    public float getShortWindowSeconds(){
+        return shortWindowSeconds;
+    }
+
+    public float getShortWindowCps(){
+        return shortWindowSeconds > 0 ? shortWindowCount / shortWindowSeconds : 0;
+    }
+
+    public int getLongWindowCount(){
+        return longWindowCount;
+    }
+
+    public float getLongWindowCps(){
+        return longWindowSeconds > 0 ? longWindowCount / longWindowSeconds : 0;
+    }
+
+    // pulses in the adaptive window, see RateEstimator
+    public long getAdaptiveWindowCount(){
+        return adaptiveWindowCount;
+    }
+
+    public float getAdaptiveWindowSeconds(){
+        return adaptiveWindowSeconds;
+    }
+
+    // rate since the last detected change, the session rate while there was none
+    public float getAdaptiveCps(){
+        return adaptiveWindowSeconds > 0 ? adaptiveWindowCount / adaptiveWindowSeconds : 0;
+    }
+
+    public float getAdaptiveCorrectedCps(){
+        return (float) deadTimeCorrection.correct(getAdaptiveCps());
+    }
+
+    // 95% confidence interval of the adaptive rate, in percent
+    public double getAdaptiveErrorPercent(){
+        if(adaptiveWindowCount == 0){
+            return 100;
+        }
+        return (1.96 / Math.sqrt(adaptiveWindowCount)) * 100;
+    }
+}
@@ -0,0 +1,660 @@
+package com.nick.atomsense;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+// Pulse counts per wall clock second, minute and hour, kept in growable
+// primitive arrays with only non-empty buckets stored. Every level keeps
+// prefix sums, so the count of any window is two binary searches. Minute and
+// hour buckets also keep the lowest and highest 1 s rate seen in them, and
+// the minutes a segment tree over those, so the lowest or highest rate of a
+// window reads O(log N) buckets plus the seconds of its ragged ends.
+//
+// Seconds are kept for KEEP_SECONDS behind the newest pulse, the minutes
+// carry their counts and rates after that; before the horizon a window has
+// minute resolution, a minute is counted when it starts inside it.
+//
+// Time nothing was recorded, the sleeps of a survey, is kept as a list of
+// gaps with prefix sums of their lengths. Rates divide by the recorded time
+// only, so a bucket or window that was partly asleep is not diluted, and a
+// second without pulses is only a 0 rate when it was recorded.
+//
+// Pulses are expected in time order; an older pulse (the clock was set back)
+// is still counted, at O(buckets) cost.
+// The buckets changed since the last writeChangesTo() are tracked, so a
+// saved index can be brought up to date by appending only those; a full
+// writeTo() is the same format with all of them.
+// All methods are synchronized: one writer adds pulses while the UI queries.
+public class RollupIndex {
+
+    public static final int SECONDS = 0;
+    public static final int MINUTES = 1;
+    public static final int HOURS = 2;
+    static final long[] BUCKET_MILLIS = {1000, 60000, 3600000};
+    // a day of seconds, about 1.7 MB at a pulse every second
+    static final long KEEP_SECONDS = 86400;
+    // they expire an hour at a time, not with every second
+    private static final long EXPIRE_SECONDS = 3600;
+    private static final int FORMAT_VERSION = 2;
+    private static final long NO_SECOND = Long.MIN_VALUE;
+
+    private static final class Level {
+        final int secondsPerBucket;
+        final boolean keepsRates;
+        int size = 0;
+        long[] keys = new long[64];
+        int[] counts = new int[64];
+        // pulses in buckets 0..i
+        long[] prefix = new long[64];
+        // seconds with pulses, their lowest and highest count
+        int[] activeSeconds;
+        int[] minRates;
+        int[] maxRates;
+        // whole seconds of the bucket in gaps
+        int[] offSeconds;
+        // segment trees over the buckets, leaves from treeLeaves on: the
+        // highest rate and the lowest of a bucket with all its recorded seconds
+        int treeLeaves;
+        int[] maxTree;
+        int[] minTree;
+        // buckets from here on changed since the last writeChangesTo()
+        int dirtyFrom = 0;
+
+        Level(int secondsPerBucket){
+            this.secondsPerBucket = secondsPerBucket;
+            keepsRates = secondsPerBucket > 1;
+            if(keepsRates){
+                activeSeconds = new int[64];
+                minRates = new int[64];
+                maxRates = new int[64];
+                offSeconds = new int[64];
+                buildTree();
+            }
+        }
+
+        // index of the first bucket with key >= key
+        int lowerBound(long key){
+            if(size > 0 && keys[size - 1] < key){
+                return size;
+            }
+            int low = 0;
+            int high = size;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(keys[mid] < key){
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        boolean contains(int index, long key){
+            return index < size && keys[index] == key;
+        }
+
+        int bucketFor(long key, RollupIndex owner){
+            if(size > 0 && keys[size - 1] == key){
+                return size - 1;
+            }
+            int index = lowerBound(key);
+            if(!contains(index, key)){
+                insert(index, key);
+                if(keepsRates){
+                    long start = key * secondsPerBucket * 1000;
+                    offSeconds[index] = (int) (owner.offMillis(start, start + secondsPerBucket * 1000L) / 1000);
+                    if(index == size - 1 && size <= treeLeaves){
+                        updateTree(index);
+                    } else {
+                        buildTree();
+                    }
+                }
+            }
+            return index;
+        }
+
+        void add(long key, int pulses, RollupIndex owner){
+            int index = bucketFor(key, owner);
+            counts[index] += pulses;
+            for(int i = index; i < size; i++){
+                prefix[i] += pulses;
+            }
+            dirtyFrom = Math.min(dirtyFrom, index);
+        }
+
+        void observeSecond(long key, int rate, RollupIndex owner){
+            int index = bucketFor(key, owner);
+            if(activeSeconds[index] == 0){
+                minRates[index] = rate;
+                maxRates[index] = rate;
+            } else {
+                minRates[index] = Math.min(minRates[index], rate);
+                maxRates[index] = Math.max(maxRates[index], rate);
+            }
+            activeSeconds[index] = Math.min(activeSeconds[index] + 1, secondsPerBucket);
+            dirtyFrom = Math.min(dirtyFrom, index);
+            updateTree(index);
+        }
+
+        void setOffSeconds(int index, int seconds){
+            offSeconds[index] = seconds;
+            updateTree(index);
+        }
+
+        // a bucket with a recorded second missing, or still open, had a 0 rate
+        int effectiveMin(int index){
+            return activeSeconds[index] + offSeconds[index] < secondsPerBucket ? 0 : minRates[index];
+        }
+
+        private void insert(int index, long key){
+            if(size == keys.length){
+                int capacity = keys.length * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                prefix = Arrays.copyOf(prefix, capacity);
+                if(keepsRates){
+                    activeSeconds = Arrays.copyOf(activeSeconds, capacity);
+                    minRates = Arrays.copyOf(minRates, capacity);
+                    maxRates = Arrays.copyOf(maxRates, capacity);
+                    offSeconds = Arrays.copyOf(offSeconds, capacity);
+                }
+            }
+            int moved = size - index;
+            System.arraycopy(keys, index, keys, index + 1, moved);
+            System.arraycopy(counts, index, counts, index + 1, moved);
+            System.arraycopy(prefix, index, prefix, index + 1, moved);
+            keys[index] = key;
+            counts[index] = 0;
+            prefix[index] = index > 0 ? prefix[index - 1] : 0;
+            if(keepsRates){
+                System.arraycopy(activeSeconds, index, activeSeconds, index + 1, moved);
+                System.arraycopy(minRates, index, minRates, index + 1, moved);
+                System.arraycopy(maxRates, index, maxRates, index + 1, moved);
+                System.arraycopy(offSeconds, index, offSeconds, index + 1, moved);
+                activeSeconds[index] = 0;
+                minRates[index] = 0;
+                maxRates[index] = 0;
+                offSeconds[index] = 0;
+            }
+            size++;
+            dirtyFrom = Math.min(dirtyFrom, index);
+        }
+
+        // drops buckets 0..count-1, the others keep their counts
+        void removeFirst(int count){
+            if(count <= 0){
+                return;
+            }
+            long removed = prefix[count - 1];
+            size -= count;
+            System.arraycopy(keys, count, keys, 0, size);
+            System.arraycopy(counts, count, counts, 0, size);
+            System.arraycopy(prefix, count, prefix, 0, size);
+            for(int i = 0; i < size; i++){
+                prefix[i] -= removed;
+            }
+            dirtyFrom = Math.max(0, dirtyFrom - count);
+        }
+
+        void buildTree(){
+            treeLeaves = 1;
+            while(treeLeaves < keys.length){
+                treeLeaves *= 2;
+            }
+            maxTree = new int[2 * treeLeaves];
+            minTree = new int[2 * treeLeaves];
+            Arrays.fill(minTree, Integer.MAX_VALUE);
+            for(int i = 0; i < size; i++){
+                maxTree[treeLeaves + i] = maxRates[i];
+                minTree[treeLeaves + i] = effectiveMin(i);
+            }
+            for(int node = treeLeaves - 1; node > 0; node--){
+                maxTree[node] = Math.max(maxTree[2 * node], maxTree[2 * node + 1]);
+                minTree[node] = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+            }
+        }
+
+        void updateTree(int index){
+            int node = treeLeaves + index;
+            maxTree[node] = maxRates[index];
+            minTree[node] = effectiveMin(index);
+            for(node /= 2; node > 0; node /= 2){
+                maxTree[node] = Math.max(maxTree[2 * node], maxTree[2 * node + 1]);
+                minTree[node] = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+            }
+        }
+
+        // highest or lowest rate of the buckets [from, to); 0 or
+        // Integer.MAX_VALUE when there are none
+        int queryTree(int from, int to, boolean max){
+            int result = max ? 0 : Integer.MAX_VALUE;
+            int[] tree = max ? maxTree : minTree;
+            for(int low = from + treeLeaves, high = to + treeLeaves; low < high; low /= 2, high /= 2){
+                if((low & 1) == 1){
+                    result = max ? Math.max(result, tree[low]) : Math.min(result, tree[low]);
+                    low++;
+                }
+                if((high & 1) == 1){
+                    high--;
+                    result = max ? Math.max(result, tree[high]) : Math.min(result, tree[high]);
+                }
+            }
+            return result;
+        }
+
+        // pulses in the buckets [fromKey, toKey)
+        long count(long fromKey, long toKey){
+            int from = lowerBound(fromKey);
+            int to = lowerBound(toKey);
+            if(to <= from){
+                return 0;
+            }
+            return prefix[to - 1] - (from > 0 ? prefix[from - 1] : 0);
+        }
+
+        void writeBuckets(DataOutput out, int from) throws IOException {
+            out.writeInt(size - from);
+            for(int i = from; i < size; i++){
+                out.writeLong(keys[i]);
+                out.writeInt(counts[i]);
+                if(keepsRates){
+                    out.writeInt(activeSeconds[i]);
+                    out.writeInt(minRates[i]);
+                    out.writeInt(maxRates[i]);
+                }
+            }
+        }
+
+        // sets the buckets read, in key order, to their saved values
+        void readBuckets(DataInput in, RollupIndex owner) throws IOException {
+            int count = in.readInt();
+            if(count < 0){
+                throw new IOException("corrupt rollup index");
+            }
+            int first = size;
+            long previous = 0;
+            for(int i = 0; i < count; i++){
+                long key = in.readLong();
+                if(i > 0 && key <= previous){
+                    throw new IOException("corrupt rollup index");
+                }
+                previous = key;
+                int index = lowerBound(key);
+                if(!contains(index, key)){
+                    insert(index, key);
+                }
+                first = Math.min(first, index);
+                counts[index] = in.readInt();
+                if(keepsRates){
+                    activeSeconds[index] = in.readInt();
+                    minRates[index] = in.readInt();
+                    maxRates[index] = in.readInt();
+                }
+            }
+            for(int i = first; i < size; i++){
+                prefix[i] = (i > 0 ? prefix[i - 1] : 0) + counts[i];
+            }
+            if(keepsRates){
+                for(int i = first; i < size; i++){
+                    long start = keys[i] * secondsPerBucket * 1000;
+                    offSeconds[i] = (int) (owner.offMillis(start, start + secondsPerBucket * 1000L) / 1000);
+                }
+                buildTree();
+            }
+        }
+    }
+
+    private final Level[] levels = {new Level(1), new Level(60), new Level(3600)};
+    // the second still receiving pulses, its rate is not final yet
+    private long currentSecond = NO_SECOND;
+    private int currentSecondCount = 0;
+    // the seconds level starts here, the minutes hold what is older
+    private long secondsHorizon = NO_SECOND;
+    // [gapStarts[i], gapEnds[i]) ms, in time order and not overlapping
+    private int gapCount = 0;
+    private long[] gapStarts = new long[16];
+    private long[] gapEnds = new long[16];
+    // length of gaps 0..i, and the whole seconds and minutes in them
+    private long[] gapPrefix = new long[16];
+    private long[] gapSecondsPrefix = new long[16];
+    private long[] gapMinutesPrefix = new long[16];
+
+    public synchronized void add(long wallClockMillis){
+        long second = Math.floorDiv(wallClockMillis, 1000L);
+        if(second != currentSecond){
+            closeSecond();
+            currentSecond = second;
+            expireSeconds(second);
+        }
+        currentSecondCount++;
+        if(second >= secondsHorizon){
+            levels[SECONDS].add(second, 1, this);
+        }
+        levels[MINUTES].add(Math.floorDiv(second, 60L), 1, this);
+        levels[HOURS].add(Math.floorDiv(second, 3600L), 1, this);
+    }
+
+    private void closeSecond(){
+        if(currentSecond != NO_SECOND){
+            levels[MINUTES].observeSecond(Math.floorDiv(currentSecond, 60L), currentSecondCount, this);
+            levels[HOURS].observeSecond(Math.floorDiv(currentSecond, 3600L), currentSecondCount, this);
+        }
+        currentSecond = NO_SECOND;
+        currentSecondCount = 0;
+    }
+
+    // moves the horizon to KEEP_SECONDS before the second, in whole hours
+    private void expireSeconds(long second){
+        long horizon = Math.floorDiv(second - KEEP_SECONDS, EXPIRE_SECONDS) * EXPIRE_SECONDS;
+        if(horizon <= secondsHorizon){
+            return;
+        }
+        Level seconds = levels[SECONDS];
+        seconds.removeFirst(seconds.lowerBound(horizon));
+        secondsHorizon = horizon;
+    }
+
+    // nothing was recorded in [fromMillis, toMillis); a gap reaching back
+    // before the last one (the clock was set back) is cut to what is after it
+    public synchronized void addGap(long fromMillis, long toMillis){
+        if(gapCount > 0){
+            fromMillis = Math.max(fromMillis, gapEnds[gapCount - 1]);
+        }
+        if(toMillis <= fromMillis){
+            return;
+        }
+        if(gapCount == gapStarts.length){
+            int capacity = gapStarts.length * 2;
+            gapStarts = Arrays.copyOf(gapStarts, capacity);
+            gapEnds = Arrays.copyOf(gapEnds, capacity);
+            gapPrefix = Arrays.copyOf(gapPrefix, capacity);
+            gapSecondsPrefix = Arrays.copyOf(gapSecondsPrefix, capacity);
+            gapMinutesPrefix = Arrays.copyOf(gapMinutesPrefix, capacity);
+        }
+        int last = gapCount - 1;
+        gapStarts[gapCount] = fromMillis;
+        gapEnds[gapCount] = toMillis;
+        gapPrefix[gapCount] = (last >= 0 ? gapPrefix[last] : 0) + toMillis - fromMillis;
+        gapSecondsPrefix[gapCount] = (last >= 0 ? gapSecondsPrefix[last] : 0) + wholeUnits(fromMillis, toMillis, 1000);
+        gapMinutesPrefix[gapCount] = (last >= 0 ? gapMinutesPrefix[last] : 0) + wholeUnits(fromMillis, toMillis, 60000);
+        gapCount++;
+        // buckets with pulses next to the gap
+        for(int l = MINUTES; l <= HOURS; l++){
+            Level level = levels[l];
+            long span = BUCKET_MILLIS[l];
+            int to = level.lowerBound(ceilDiv(toMillis, span));
+            for(int i = level.lowerBound(Math.floorDiv(fromMillis, span)); i < to; i++){
+                long start = level.keys[i] * span;
+                level.setOffSeconds(i, (int) (offMillis(start, start + span) / 1000));
+            }
+        }
+    }
+
+    // units of unitMillis, on multiples of it, wholly inside [fromMillis, toMillis)
+    private static long wholeUnits(long fromMillis, long toMillis, long unitMillis){
+        return Math.max(0, Math.floorDiv(toMillis, unitMillis) - ceilDiv(fromMillis, unitMillis));
+    }
+
+    // ms of [fromMillis, toMillis) inside gaps
+    private long offMillis(long fromMillis, long toMillis){
+        // the first gap ending after fromMillis and the first starting at or after toMillis
+        int first = upperBound(gapEnds, fromMillis);
+        int last = upperBound(gapStarts, toMillis - 1);
+        if(last <= first){
+            return 0;
+        }
+        long off = gapPrefix[last - 1] - (first > 0 ? gapPrefix[first - 1] : 0);
+        off -= Math.max(0, fromMillis - gapStarts[first]);
+        off -= Math.max(0, gapEnds[last - 1] - toMillis);
+        return off;
+    }
+
+    // units of unitMillis (seconds or minutes) in [fromUnit, toUnit) wholly inside gaps
+    private long offUnits(long fromUnit, long toUnit, long unitMillis){
+        long fromMillis = fromUnit * unitMillis;
+        long toMillis = toUnit * unitMillis;
+        int first = upperBound(gapEnds, fromMillis);
+        int last = upperBound(gapStarts, toMillis - 1);
+        if(last <= first){
+            return 0;
+        }
+        long[] prefix = unitMillis == 1000 ? gapSecondsPrefix : gapMinutesPrefix;
+        long units = prefix[last - 1] - (first > 0 ? prefix[first - 1] : 0);
+        // the gaps at the ends only count inside the range
+        units -= wholeUnits(gapStarts[first], gapEnds[first], unitMillis)
+                - wholeUnits(Math.max(gapStarts[first], fromMillis), Math.min(gapEnds[first], toMillis), unitMillis);
+        if(last - 1 > first){
+            units -= wholeUnits(gapStarts[last - 1], gapEnds[last - 1], unitMillis)
+                    - wholeUnits(gapStarts[last - 1], Math.min(gapEnds[last - 1], toMillis), unitMillis);
+        }
+        return units;
+    }
+
+    // index of the first gap with a value > value
+    private int upperBound(long[] values, long value){
+        int low = 0;
+        int high = gapCount;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(values[mid] <= value){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // seconds recorded of [fromMillis, toMillis), at the 1 s resolution of count()
+    public synchronized double getRecordedSeconds(long fromMillis, long toMillis){
+        long fromSecond = ceilDiv(fromMillis, 1000);
+        long toSecond = ceilDiv(toMillis, 1000);
+        if(toSecond <= fromSecond){
+            return 0;
+        }
+        return toSecond - fromSecond - offMillis(fromSecond * 1000, toSecond * 1000) / 1000.0;
+    }
+
+    // pulses in [fromMillis, toMillis), at 1 s resolution: a second is
+    // counted when it starts inside the window
+    public synchronized long count(long fromMillis, long toMillis){
+        long fromSecond = ceilDiv(fromMillis, 1000);
+        long toSecond = ceilDiv(toMillis, 1000);
+        long split = horizonIn(fromSecond, toSecond);
+        long total = 0;
+        if(fromSecond < split){
+            total += levels[MINUTES].count(ceilDiv(fromSecond, 60), ceilDiv(split, 60));
+        }
+        return total + levels[SECONDS].count(split, toSecond);
+    }
+
+    // the window's seconds before this are only in the minutes
+    private long horizonIn(long fromSecond, long toSecond){
+        return Math.max(fromSecond, Math.min(toSecond, secondsHorizon));
+    }
+
+    public synchronized long getTotalCount(){
+        Level hours = levels[HOURS];
+        return hours.size > 0 ? hours.prefix[hours.size - 1] : 0;
+    }
+
+    public synchronized double getAverageCps(long fromMillis, long toMillis){
+        double seconds = getRecordedSeconds(fromMillis, toMillis);
+        return seconds > 0 ? count(fromMillis, toMillis) / seconds : 0;
+    }
+
+    // highest 1 s rate in the window; the whole minutes come from a segment
+    // tree, so only the ragged ends are looked at per second
+    public synchronized int getMaxCps(long fromMillis, long toMillis){
+        return (int) scanRates(ceilDiv(fromMillis, 1000), ceilDiv(toMillis, 1000), true);
+    }
+
+    // lowest 1 s rate in the window, 0 if any recorded second of it had no pulse
+    public synchronized int getMinCps(long fromMillis, long toMillis){
+        return (int) scanRates(ceilDiv(fromMillis, 1000), ceilDiv(toMillis, 1000), false);
+    }
+
+    private long scanRates(long fromSecond, long toSecond, boolean max){
+        if(toSecond <= fromSecond){
+            return 0;
+        }
+        long result = max ? 0 : Long.MAX_VALUE;
+        long split = horizonIn(fromSecond, toSecond);
+        if(fromSecond < split){
+            result = combine(result, minuteRates(ceilDiv(fromSecond, 60), ceilDiv(split, 60), max), max);
+        }
+        if(split < toSecond){
+            // ragged seconds, whole minutes, ragged seconds
+            long headEnd = Math.min(toSecond, ceilDiv(split, 60) * 60);
+            long tailStart = Math.max(headEnd, Math.floorDiv(toSecond, 60L) * 60);
+            result = combine(result, secondRates(split, headEnd, max), max);
+            result = combine(result, minuteRates(Math.floorDiv(headEnd, 60L), Math.floorDiv(tailStart, 60L), max), max);
+            result = combine(result, secondRates(tailStart, toSecond, max), max);
+        }
+        if(max && currentSecond != NO_SECOND && currentSecond >= fromSecond && currentSecond < toSecond){
+            // not in its minute's rates yet
+            result = Math.max(result, currentSecondCount);
+        }
+        // no recorded second at all
+        return result == Long.MAX_VALUE ? 0 : result;
+    }
+
+    private static long combine(long result, long rate, boolean max){
+        return max ? Math.max(result, rate) : Math.min(result, rate);
+    }
+
+    // over the minutes [fromMinute, toMinute)
+    private long minuteRates(long fromMinute, long toMinute, boolean max){
+        if(toMinute <= fromMinute){
+            return max ? 0 : Long.MAX_VALUE;
+        }
+        Level minutes = levels[MINUTES];
+        int from = minutes.lowerBound(fromMinute);
+        int to = minutes.lowerBound(toMinute);
+        if(!max && toMinute - fromMinute - (to - from) > offUnits(fromMinute, toMinute, 60000)){
+            // a recorded minute without pulses
+            return 0;
+        }
+        int rate = minutes.queryTree(from, to, max);
+        return rate == Integer.MAX_VALUE ? Long.MAX_VALUE : rate;
+    }
+
+    // over the seconds [fromSecond, toSecond), at most a minute of them
+    private long secondRates(long fromSecond, long toSecond, boolean max){
+        long result = max ? 0 : Long.MAX_VALUE;
+        if(toSecond <= fromSecond){
+            return result;
+        }
+        Level seconds = levels[SECONDS];
+        int from = seconds.lowerBound(fromSecond);
+        int to = seconds.lowerBound(toSecond);
+        if(!max && toSecond - fromSecond - (to - from) > offUnits(fromSecond, toSecond, 1000)){
+            // a recorded second without pulses
+            return 0;
+        }
+        for(int i = from; i < to; i++){
+            result = combine(result, seconds.counts[i], max);
+        }
+        return result;
+    }
+
+    // buckets of a level for a history chart, in time order
+    public synchronized int size(int level){
+        return levels[level].size;
+    }
+
+    public synchronized long getBucketStartMillis(int level, int index){
+        return levels[level].keys[index] * BUCKET_MILLIS[level];
+    }
+
+    public synchronized int getCount(int level, int index){
+        return levels[level].counts[index];
+    }
+
+    // counts over the recorded time of the bucket
+    public synchronized double getCps(int level, int index){
+        long recorded = getRecordedMillis(level, index);
+        return recorded > 0 ? levels[level].counts[index] * 1000.0 / recorded : 0;
+    }
+
+    public synchronized long getRecordedMillis(int level, int index){
+        long start = levels[level].keys[index] * BUCKET_MILLIS[level];
+        return BUCKET_MILLIS[level] - offMillis(start, start + BUCKET_MILLIS[level]);
+    }
+
+    // the first bucket of the level starting at or after the time, read under
+    // one lock so an export walking the level by time is not thrown off by
+    // expiry or an older pulse moving the indexes: start ms, count and
+    // recorded ms into row; false if there is none
+    public synchronized boolean readBucket(int level, long wallClockMillis, long[] row){
+        int index = indexOf(level, wallClockMillis);
+        if(index >= levels[level].size){
+            return false;
+        }
+        row[0] = getBucketStartMillis(level, index);
+        row[1] = levels[level].counts[index];
+        row[2] = getRecordedMillis(level, index);
+        return true;
+    }
+
+    // first bucket of the level starting at or after the time
+    public synchronized int indexOf(int level, long wallClockMillis){
+        return levels[level].lowerBound(ceilDiv(wallClockMillis, BUCKET_MILLIS[level]));
+    }
+
+    // the whole index; gaps are not part of it
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        write(out, true);
+    }
+
+    // the buckets changed since the last call and the current second, for
+    // readChangesFrom() on a copy of the index as it was then
+    public synchronized void writeChangesTo(DataOutput out) throws IOException {
+        write(out, false);
+    }
+
+    private void write(DataOutput out, boolean all) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(currentSecond);
+        out.writeInt(currentSecondCount);
+        out.writeLong(secondsHorizon);
+        for(Level level : levels){
+            level.writeBuckets(out, all ? 0 : level.dirtyFrom);
+            level.dirtyFrom = level.size;
+        }
+    }
+
+    public static RollupIndex readFrom(DataInput in) throws IOException {
+        RollupIndex index = new RollupIndex();
+        index.readChangesFrom(in);
+        return index;
+    }
+
+    public synchronized void readChangesFrom(DataInput in) throws IOException {
+        int version = in.readInt();
+        if(version != FORMAT_VERSION){
+            throw new IOException("unsupported rollup index version " + version);
+        }
+        currentSecond = in.readLong();
+        currentSecondCount = in.readInt();
+        long horizon = in.readLong();
+        for(Level level : levels){
+            level.readBuckets(in, this);
+        }
+        if(horizon > secondsHorizon){
+            Level seconds = levels[SECONDS];
+            seconds.removeFirst(seconds.lowerBound(horizon));
+            secondsHorizon = horizon;
+        }
+        for(Level level : levels){
+            level.dirtyFrom = level.size;
+        }
+    }
+
+    private static long ceilDiv(long value, long divisor){
+        return -Math.floorDiv(-value, divisor);
+    }
+}
@@ -0,0 +1,50 @@
+package com.nick.atomsense;
+
+// Monotonic time base driven by the count of captured audio frames.
+// A pulse at offset i of the current buffer happened at sample
+// getFramesRead() + i; toNanos() maps that index onto the
+// elapsedRealtimeNanos() value captured once when recording started.
+public class SampleClock {
+
+    public static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int sampleRate;
+    private long anchorNanos = 0;
+    private long framesRead = 0;
+
+    public SampleClock(int sampleRate){
+        if(sampleRate <= 0){
+            throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public void start(long anchorNanos){
+        this.anchorNanos = anchorNanos;
+        this.framesRead = 0;
+    }
+
+    public void advance(long frames){
+        framesRead += frames;
+    }
+
+    public long getFramesRead(){
+        return framesRead;
+    }
+
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    public long toNanos(long sampleIndex){
+        // split to stay far from overflow on multi-day runs at high sample rates
+        long seconds = sampleIndex / sampleRate;
+        long remainder = sampleIndex % sampleRate;
+        return anchorNanos + seconds * NANOS_PER_SECOND + remainder * NANOS_PER_SECOND / sampleRate;
+    }
+
+    // time of the first sample that has not been read yet
+    public long nowNanos(){
+        return toNanos(framesRead);
+    }
+}
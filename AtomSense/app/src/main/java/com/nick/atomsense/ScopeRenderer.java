@@ -0,0 +1,124 @@
+package com.nick.atomsense;
+
+import android.graphics.Color;
+import android.view.Choreographer;
+import lecho.lib.hellocharts.model.Line;
+import lecho.lib.hellocharts.model.LineChartData;
+import lecho.lib.hellocharts.model.PointValue;
+import lecho.lib.hellocharts.view.LineChartView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Oscilloscope view of the latest captured pulse for settings mode.
+// The processing thread only copies the samples around a pulse into a
+// triple buffer and never waits; the chart is updated on the UI thread at
+// most once per display frame, and only when a new pulse arrived.
+// All points are allocated once and reused.
+public class ScopeRenderer implements Choreographer.FrameCallback {
+
+    // longer pulse windows are decimated to this many points
+    static final int MAX_POINTS = 1024;
+
+    private static final class Frame {
+        final short[] samples = new short[MAX_POINTS];
+        int length;
+        short triggerLevel;
+        boolean fresh;
+    }
+
+    private final LineChartView chart;
+    private final LineChartData linesData = new LineChartData();
+    private final Line impulseWaveLine;
+    private final Line levelTriggerLine;
+    private final PointValue[] wavePoints = new PointValue[MAX_POINTS];
+    private final List<PointValue> waveValues = new ArrayList<>(MAX_POINTS);
+    private final List<PointValue> triggerValues = new ArrayList<>(2);
+
+    // the writer owns back, the UI thread owns front, they swap through middle
+    private Frame back = new Frame();
+    private final AtomicReference<Frame> middle = new AtomicReference<>(new Frame());
+    private Frame front = new Frame();
+
+    private boolean running = false;
+
+    public ScopeRenderer(LineChartView chart){
+        this.chart = chart;
+        for(int i = 0; i < MAX_POINTS; i++){
+            wavePoints[i] = new PointValue(i, 0);
+        }
+        triggerValues.add(new PointValue(0, 0));
+        triggerValues.add(new PointValue(0, 0));
+
+        impulseWaveLine = new Line(waveValues).setColor(Color.BLACK).setCubic(false);
+        impulseWaveLine.setPointRadius(0);
+        impulseWaveLine.setStrokeWidth(1);
+        impulseWaveLine.setHasPoints(false);
+
+        levelTriggerLine = new Line(triggerValues).setColor(Color.RED).setCubic(false);
+        levelTriggerLine.setPointRadius(0);
+        levelTriggerLine.setStrokeWidth(1);
+        levelTriggerLine.setHasPoints(false);
+
+        List<Line> lines = new ArrayList<>(2);
+        lines.add(impulseWaveLine);
+        lines.add(levelTriggerLine);
+        linesData.setLines(lines);
+        chart.setInteractive(true);
+    }
+
+    // processing thread: keeps samples [offset, offset + length) of buf as the latest pulse
+    public void capture(short[] buf, int offset, int length, short triggerLevel){
+        Frame frame = back;
+        int step = (length + MAX_POINTS - 1) / MAX_POINTS;
+        int points = 0;
+        for(int k = offset; k < offset + length; k += step){
+            frame.samples[points++] = buf[k];
+        }
+        frame.length = points;
+        frame.triggerLevel = triggerLevel;
+        frame.fresh = true;
+        back = middle.getAndSet(frame);
+    }
+
+    // UI thread
+    public void start(){
+        if(!running){
+            running = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    // UI thread
+    public void stop(){
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos){
+        if(!running){
+            return;
+        }
+        if(middle.get().fresh){
+            front.fresh = false;
+            front = middle.getAndSet(front);
+            render(front);
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void render(Frame frame){
+        waveValues.clear();
+        for(int i = 0; i < frame.length; i++){
+            PointValue point = wavePoints[i];
+            point.set(i, frame.samples[i]);
+            waveValues.add(point);
+        }
+        float lastX = Math.max(frame.length - 1, 1);
+        triggerValues.get(0).set(0, frame.triggerLevel);
+        triggerValues.get(1).set(lastX, frame.triggerLevel);
+        chart.setLineChartData(linesData); // update the chart view
+    }
+}
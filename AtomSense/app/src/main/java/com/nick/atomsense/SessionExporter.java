@@ -0,0 +1,285 @@
+package com.nick.atomsense;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+// Streams a time range of the pulse log to a channel, either as the raw pulse
+// times or as one row per rollup bucket with CPS, CPM and µR/h. Pulses come
+// from a PulseLogReader, rates from the RollupIndex, and rows are formatted
+// straight into one direct buffer, so memory use does not depend on the
+// length of the session. Pulses are read from the segment holding the start
+// of the range up to its end, not through the whole log; sessions are
+// numbered from there.
+//
+// CSV pulses: time_us,session
+// CSV rates:  start_ms,seconds,count,cps,cpm,uR_h with the seconds the
+//             bucket recorded, less than its length when a survey slept;
+//             cps and cpm as measured, µR/h from the dead time corrected cps
+//             like the dose
+// Binary, little endian: MAGIC, version, content, then
+//   pulses: the first wall clock µs (long), then all of them in
+//           PulseTimeCodec blocks based on it
+//   rates:  factor A, B, C (float, 0 for a DEAD_TIME calibration), dead
+//           time model (int, DeadTimeCorrection.Model ordinal) and seconds
+//           (float) to correct the rate with first, bucket seconds (int),
+//           then per bucket start ms (long), count (int) and recorded ms (int)
+public class SessionExporter {
+
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    public enum Content {
+        PULSES,
+        RATES
+    }
+
+    static final int MAGIC = 0x58455341; // "ASEX"
+    static final int VERSION = 2;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final File logDirectory;
+    private final RollupIndex rollupIndex;
+    private final CalibrationTable calibration;
+    private final DeadTimeCorrection deadTimeCorrection;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    // digits of a number in reverse, for formatting without a String
+    private final byte[] digits = new byte[20];
+    private WritableByteChannel channel;
+
+    // factors of the µR/h polynomial, all 0 when there is none
+    public SessionExporter(File logDirectory, RollupIndex rollupIndex, float factorA, float factorB, float factorC){
+        this(logDirectory, rollupIndex, new CalibrationTable(Calibration.polynomial(factorA, factorB, factorC)),
+                DeadTimeCorrection.NONE);
+    }
+
+    public SessionExporter(File logDirectory, RollupIndex rollupIndex, CalibrationTable calibration,
+                           DeadTimeCorrection deadTimeCorrection){
+        this.logDirectory = logDirectory;
+        this.rollupIndex = rollupIndex;
+        this.calibration = calibration;
+        this.deadTimeCorrection = deadTimeCorrection;
+    }
+
+    // pulses in [fromMillis, toMillis) of wall clock time, or the buckets
+    // overlapping it at the RollupIndex level; returns the rows written
+    public long export(WritableByteChannel channel, Format format, Content content, int level,
+                       long fromMillis, long toMillis) throws IOException {
+        this.channel = channel;
+        buffer.clear();
+        long rows;
+        if(format == Format.BINARY){
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(content.ordinal());
+        }
+        if(content == Content.PULSES){
+            rows = format == Format.CSV ? pulsesCsv(fromMillis, toMillis) : pulsesBinary(fromMillis, toMillis);
+        } else {
+            rows = format == Format.CSV ? ratesCsv(level, fromMillis, toMillis) : ratesBinary(level, fromMillis, toMillis);
+        }
+        flush();
+        this.channel = null;
+        return rows;
+    }
+
+    private long pulsesCsv(long fromMillis, long toMillis) throws IOException {
+        putAscii("time_us,session\n");
+        long rows = 0;
+        int session = 0;
+        PulseLogReader reader = new PulseLogReader(logDirectory, PulseLogReader.segmentAt(logDirectory, fromMillis));
+        try{
+            while(reader.next()){
+                if(reader.isNewSession()){
+                    session++;
+                }
+                long micros = reader.getWallClockMicros();
+                if(micros >= toMillis * 1000){
+                    break;
+                }
+                if(micros < fromMillis * 1000){
+                    continue;
+                }
+                ensure(48);
+                putLong(micros);
+                buffer.put((byte) ',');
+                putLong(session);
+                buffer.put((byte) '\n');
+                rows++;
+            }
+        } finally {
+            reader.close();
+        }
+        return rows;
+    }
+
+    private long pulsesBinary(long fromMillis, long toMillis) throws IOException {
+        long[] block = new long[PulseTimeCodec.BLOCK_SIZE];
+        int length = 0;
+        long base = 0;
+        long rows = 0;
+        int maxBlockBytes = PulseTimeCodec.maxBlockBytes(PulseTimeCodec.BLOCK_SIZE);
+        PulseLogReader reader = new PulseLogReader(logDirectory, PulseLogReader.segmentAt(logDirectory, fromMillis));
+        try{
+            while(reader.next()){
+                long micros = reader.getWallClockMicros();
+                if(micros >= toMillis * 1000){
+                    break;
+                }
+                if(micros < fromMillis * 1000){
+                    continue;
+                }
+                if(rows == 0){
+                    base = micros;
+                    buffer.putLong(base);
+                }
+                block[length++] = micros;
+                rows++;
+                if(length == block.length){
+                    ensure(maxBlockBytes);
+                    base = PulseTimeCodec.encodeBlock(buffer, base, block, 0, length);
+                    length = 0;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if(length > 0){
+            ensure(maxBlockBytes);
+            PulseTimeCodec.encodeBlock(buffer, base, block, 0, length);
+        }
+        if(rows == 0){
+            buffer.putLong(0);
+        }
+        return rows;
+    }
+
+    private long ratesCsv(int level, long fromMillis, long toMillis) throws IOException {
+        putAscii("start_ms,seconds,count,cps,cpm,uR_h\n");
+        boolean calibrated = calibration.isCalibrated();
+        long rows = 0;
+        long[] row = new long[3];
+        // by time, the writer goes on adding
+        for(long next = firstBucket(level, fromMillis); rollupIndex.readBucket(level, next, row); next = row[0] + 1){
+            long start = row[0];
+            if(start >= toMillis){
+                break;
+            }
+            long count = row[1];
+            long recorded = row[2];
+            double cps = recorded > 0 ? count * 1000.0 / recorded : 0;
+            ensure(128);
+            putLong(start);
+            buffer.put((byte) ',');
+            putLong(Math.round(recorded / 1000.0));
+            buffer.put((byte) ',');
+            putLong(count);
+            buffer.put((byte) ',');
+            putFixed(cps, 3);
+            buffer.put((byte) ',');
+            putFixed(cps * 60, 1);
+            buffer.put((byte) ',');
+            if(calibrated){
+                putFixed(calibration.toDoseRate(corrected(cps)), 2);
+            }
+            buffer.put((byte) '\n');
+            rows++;
+        }
+        return rows;
+    }
+
+    private long ratesBinary(int level, long fromMillis, long toMillis) throws IOException {
+        Calibration polynomial = calibration.getCalibration();
+        if(polynomial.getModel() != Calibration.Model.POLYNOMIAL){
+            polynomial = Calibration.NONE;
+        }
+        buffer.putFloat((float) polynomial.getCoefficient(0));
+        buffer.putFloat((float) polynomial.getCoefficient(1));
+        buffer.putFloat((float) polynomial.getCoefficient(2));
+        buffer.putInt(deadTimeCorrection.getModel().ordinal());
+        buffer.putFloat((float) deadTimeCorrection.getDeadTimeSeconds());
+        buffer.putInt((int) (RollupIndex.BUCKET_MILLIS[level] / 1000));
+        long rows = 0;
+        long[] row = new long[3];
+        for(long next = firstBucket(level, fromMillis); rollupIndex.readBucket(level, next, row); next = row[0] + 1){
+            long start = row[0];
+            if(start >= toMillis){
+                break;
+            }
+            ensure(16);
+            buffer.putLong(start);
+            buffer.putInt((int) row[1]);
+            buffer.putInt((int) row[2]);
+            rows++;
+        }
+        return rows;
+    }
+
+    // a saturated bucket has no finite true rate, it is given as measured
+    private double corrected(double cps){
+        double corrected = deadTimeCorrection.correct(cps);
+        return Double.isInfinite(corrected) ? cps : corrected;
+    }
+
+    // the bucket the window starts in is the first one starting at or after it
+    private static long firstBucket(int level, long fromMillis){
+        return fromMillis - RollupIndex.BUCKET_MILLIS[level] + 1;
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if(buffer.remaining() < bytes){
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putAscii(String text) throws IOException {
+        ensure(text.length());
+        for(int i = 0; i < text.length(); i++){
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private void putLong(long value){
+        if(value < 0){
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int count = 0;
+        do{
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while(value != 0);
+        while(count > 0){
+            buffer.put(digits[--count]);
+        }
+    }
+
+    private void putFixed(double value, int decimals){
+        long scale = 1;
+        for(int i = 0; i < decimals; i++){
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if(value < 0 && scaled != 0){
+            buffer.put((byte) '-');
+        }
+        putLong(scaled / scale);
+        buffer.put((byte) '.');
+        long fraction = scaled % scale;
+        for(long digit = scale / 10; digit > 0; digit /= 10){
+            buffer.put((byte) ('0' + fraction / digit % 10));
+        }
+    }
+}
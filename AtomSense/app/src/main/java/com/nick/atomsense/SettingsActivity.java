@@ -1,6 +1,7 @@
 package com.nick.atomsense;
 
 import android.content.*;
+import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.preference.PreferenceManager;
 import android.text.Editable;
@@ -13,6 +14,10 @@ import android.util.Log;
 import android.view.View;
 import lecho.lib.hellocharts.view.LineChartView;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 public class SettingsActivity extends AppCompatActivity {
 
     private static final String TAG = "SettingsActivity";
@@ -33,6 +38,15 @@ public class SettingsActivity extends AppCompatActivity {
     private static final String TRIGGER_LEVEL_DIMENSION = " %";
     private SeekBar triggerLevelBar;
     private Integer triggerLevel;
+    private Switch adaptiveTriggerSwitch;
+    private Boolean adaptiveTrigger;
+    private EditText triggerSigmasView;
+    private Float triggerSigmas;
+
+    private Spinner polaritySpinner;
+    private Integer polarity;
+    private Switch dcBlockSwitch;
+    private Boolean dcBlock;
 
     private TextView impulseWidthLabel;
     private static final String IMPULSE_WIDTH_LABEL = "Impulse width: ";
@@ -40,7 +54,39 @@ public class SettingsActivity extends AppCompatActivity {
     private SeekBar impulseWidthBar;
     private Integer impulseWidth;
 
+    private Spinner deadTimeModelSpinner;
+    private Integer deadTimeModel;
+    private EditText deadTimeView;
+    // µs
+    private Float deadTime;
+    private TextView deadTimeEstimateLabel;
+
+    private Spinner sampleRateSpinner;
+    // 0 is auto
+    private Integer sampleRate;
+    private List<AudioInputFormat> inputFormats;
+    private List<String> sampleRateNames;
+    private ArrayAdapter<String> sampleRateAdapter;
+    // counts the negotiations, only the last one started is applied
+    private int negotiation = 0;
+    private Spinner latencySpinner;
+    private Integer latency;
+
+    // 0 mono, then stereo with ChannelCombiner.Mode ordinal + 1
+    private Spinner channelModeSpinner;
+    private Integer channelMode;
+    private EditText rightTriggerLevelView;
+    private Integer rightTriggerLevel;
+    private EditText rightImpulseWidthView;
+    private Integer rightImpulseWidth;
+    private EditText coincidenceWindowView;
+    private Integer coincidenceWindow;
+
     private LineChartView chart;
+    // 0 is the scope, then the PulseShapeAnalyzer kinds
+    private Spinner chartViewSpinner;
+    private int chartView = 0;
+    private Button clearSpectrumButton;
 
     private AudioService audioService = new AudioService();
 
@@ -55,15 +101,80 @@ public class SettingsActivity extends AppCompatActivity {
     private EditText cFactorView;
     private Float factorC;
 
+    private Spinner calibrationModelSpinner;
+    // Calibration.Model ordinal
+    private Integer calibrationModel;
+    private EditText referenceRateView;
+    private TextView calibrationLabel;
+    // reference points as cps and µR/h, and their last fit; without one the
+    // polynomial is A, B, C as typed
+    private final List<double[]> calibrationPoints = new ArrayList<>();
+    private Calibration fittedCalibration;
+
+    private EditText rateAlarmView;
+    private Float rateAlarm;
+
+    private EditText doseAlarmView;
+    private Float doseAlarm;
+
+    private Switch surveySwitch;
+    private Boolean survey;
+    private EditText surveyWindowView;
+    private Integer surveyWindow;
+    private EditText surveyPeriodView;
+    private Integer surveyPeriod;
+    private EditText surveyErrorView;
+    private Float surveyError;
+
     public static final String SETTING_MENU_MODE = "SETTING_MENU_MODE";
     public static final String SETTING_BT_ENABLE = "SETTING_BT_ENABLE";
     public static final String SETTING_TRIGGER_LEVEL = "SETTING_TRIGGER_LEVEL";
+    public static final String SETTING_ADAPTIVE_TRIGGER = "SETTING_ADAPTIVE_TRIGGER";
+    public static final String SETTING_TRIGGER_SIGMAS = "SETTING_TRIGGER_SIGMAS";
     public static final String SETTING_IMPULSE_WIDTH = "SETTING_IMPULSE_WIDTH";
+    // ThresholdPulseDetector.Polarity ordinal
+    public static final String SETTING_POLARITY = "SETTING_POLARITY";
+    public static final String SETTING_DC_BLOCK = "SETTING_DC_BLOCK";
+    public static final String SETTING_DEAD_TIME_MODEL = "SETTING_DEAD_TIME_MODEL";
+    public static final String SETTING_DEAD_TIME = "SETTING_DEAD_TIME";
     public static final String SETTING_FACTOR_A = "SETTING_FACTOR_A";
     public static final String SETTING_FACTOR_B = "SETTING_FACTOR_B";
     public static final String SETTING_FACTOR_C = "SETTING_FACTOR_C";
+    // there is a saved Calibration which converts to µR/h
+    public static final String SETTING_CALIBRATED = "SETTING_CALIBRATED";
+    // µR/h and µR, or CPS and counts without a calibration; 0 is off
+    public static final String SETTING_RATE_ALARM = "SETTING_RATE_ALARM";
+    public static final String SETTING_DOSE_ALARM = "SETTING_DOSE_ALARM";
+    // accumulated dose as double bits, written by MeasurementService
+    public static final String SETTING_DOSE = "SETTING_DOSE";
+    public static final String SETTING_DOSE_CALIBRATED = "SETTING_DOSE_CALIBRATED";
+    // duty cycled recording: window in s, period in min, target error in %
+    public static final String SETTING_SURVEY = "SETTING_SURVEY";
+    public static final String SETTING_SURVEY_WINDOW = "SETTING_SURVEY_WINDOW";
+    public static final String SETTING_SURVEY_PERIOD = "SETTING_SURVEY_PERIOD";
+    public static final String SETTING_SURVEY_ERROR = "SETTING_SURVEY_ERROR";
+    // Hz, 0 lets AudioFormatNegotiator pick the rate
+    public static final String SETTING_SAMPLE_RATE = "SETTING_SAMPLE_RATE";
+    // the negotiated format, kept so it is benchmarked only once
+    public static final String SETTING_AUTO_SAMPLE_RATE = "SETTING_AUTO_SAMPLE_RATE";
+    public static final String SETTING_AUTO_FLOAT = "SETTING_AUTO_FLOAT";
+    public static final String SETTING_LATENCY = "SETTING_LATENCY";
+    // a second tube on the right channel of a stereo input
+    public static final String SETTING_CHANNEL_MODE = "SETTING_CHANNEL_MODE";
+    public static final String SETTING_RIGHT_TRIGGER_LEVEL = "SETTING_RIGHT_TRIGGER_LEVEL";
+    public static final String SETTING_RIGHT_IMPULSE_WIDTH = "SETTING_RIGHT_IMPULSE_WIDTH";
+    // samples
+    public static final String SETTING_COINCIDENCE_WINDOW = "SETTING_COINCIDENCE_WINDOW";
 
-    private Thread cpsPreview;
+    // Run was pressed and not stopped since
+    private boolean previewRunning = false;
+    // what the labels show, they are only set when it changes
+    private long shownCps = Long.MIN_VALUE;
+    private long shownLeftCps = Long.MIN_VALUE;
+    private long shownRightCps = Long.MIN_VALUE;
+    private long shownDroppedSamples = -1;
+    private long shownDeadTime = Long.MIN_VALUE;
+    private long shownTriggerLevel = Long.MIN_VALUE;
 
     private SharedPreferences preferences;
 
@@ -77,15 +188,44 @@ public class SettingsActivity extends AppCompatActivity {
             btEnabled = preferences.getBoolean(SETTING_BT_ENABLE, false);
             triggerLevel = preferences.getInt(SETTING_TRIGGER_LEVEL, -1);
             triggerLevel = triggerLevel == -1 ? null : triggerLevel;
+            adaptiveTrigger = preferences.getBoolean(SETTING_ADAPTIVE_TRIGGER, false);
+            triggerSigmas = preferences.getFloat(SETTING_TRIGGER_SIGMAS, AudioService.DEFAULT_TRIGGER_SIGMAS);
+            polarity = preferences.getInt(SETTING_POLARITY, 0);
+            dcBlock = preferences.getBoolean(SETTING_DC_BLOCK, false);
             impulseWidth = preferences.getInt(SETTING_IMPULSE_WIDTH, -1);
             impulseWidth = impulseWidth == -1 ? null : impulseWidth;
+            deadTimeModel = preferences.getInt(SETTING_DEAD_TIME_MODEL, 0);
+            deadTime = preferences.getFloat(SETTING_DEAD_TIME, 0);
             factorA = preferences.getFloat(SETTING_FACTOR_A, 0);
             factorB = preferences.getFloat(SETTING_FACTOR_B, 0);
             factorC = preferences.getFloat(SETTING_FACTOR_C, 0);
+            calibrationModel = Calibration.Model.POLYNOMIAL.ordinal();
+            rateAlarm = preferences.getFloat(SETTING_RATE_ALARM, 0);
+            doseAlarm = preferences.getFloat(SETTING_DOSE_ALARM, 0);
+            survey = preferences.getBoolean(SETTING_SURVEY, false);
+            surveyWindow = preferences.getInt(SETTING_SURVEY_WINDOW, 30);
+            surveyPeriod = preferences.getInt(SETTING_SURVEY_PERIOD, 10);
+            surveyError = preferences.getFloat(SETTING_SURVEY_ERROR, 10);
+            sampleRate = preferences.getInt(SETTING_SAMPLE_RATE, 0);
+            latency = preferences.getInt(SETTING_LATENCY, AudioFormatNegotiator.DEFAULT_LATENCY);
+            channelMode = preferences.getInt(SETTING_CHANNEL_MODE, 0);
+            rightTriggerLevel = preferences.getInt(SETTING_RIGHT_TRIGGER_LEVEL, 20);
+            rightImpulseWidth = preferences.getInt(SETTING_RIGHT_IMPULSE_WIDTH, 10);
+            coincidenceWindow = preferences.getInt(SETTING_COINCIDENCE_WINDOW, 10);
 
-            initControls();
             am = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+            initControls();
+            loadCalibration();
             audioService.init();
+            negotiateInputFormat();
+            audioService.setRateListener(new RatePublisher.Listener() {
+                @Override
+                public void onRate(RateSnapshot snapshot) {
+                    if(previewRunning){
+                        showRate(snapshot);
+                    }
+                }
+            });
 
             if(!settingsMode){
                 openMeasureActivity();
@@ -104,10 +244,7 @@ public class SettingsActivity extends AppCompatActivity {
             if(am.isBluetoothScoOn()){
                 am.stopBluetoothSco();
             }
-            if(cpsPreview != null){
-                cpsPreview.interrupt();
-                cpsPreview = null;
-            }
+            previewRunning = false;
         } catch (Exception e){
             Log.e(TAG, "in onStop:" + e);
         }
@@ -120,6 +257,11 @@ public class SettingsActivity extends AppCompatActivity {
             aFactorView.setText(factorA.toString());
             bFactorView.setText(factorB.toString());
             cFactorView.setText(factorC.toString());
+            rateAlarmView.setText(rateAlarm.toString());
+            doseAlarmView.setText(doseAlarm.toString());
+            surveyWindowView.setText(surveyWindow.toString());
+            surveyPeriodView.setText(surveyPeriod.toString());
+            surveyErrorView.setText(surveyError.toString());
         } catch (Exception e){
             Log.e(TAG, "in onRestart:" + e);
         }
@@ -143,15 +285,11 @@ public class SettingsActivity extends AppCompatActivity {
             runButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    updateCps();
+                    previewRunning = true;
                     if (btEnabled){
                         am.startBluetoothSco();
                     }
-                    try {
-                        audioService.runSettingsMode(chart);
-                    } catch (Exception e){
-                        Log.e(TAG, "in onClick(runButton):" + e);
-                    }
+                    runChartView();
                 }
             });
 
@@ -163,10 +301,7 @@ public class SettingsActivity extends AppCompatActivity {
                         am.stopBluetoothSco();
                     }
                     audioService.stop();
-                    if(cpsPreview != null){
-                        cpsPreview.interrupt();
-                        cpsPreview = null;
-                    }
+                    previewRunning = false;
                 }
             });
 
@@ -174,13 +309,10 @@ public class SettingsActivity extends AppCompatActivity {
             saveButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    openMeasureActivity();
+                    // opens the measurement once the calibration is saved
                     saveSettings();
                     audioService.stop();
-                    if(cpsPreview != null){
-                        cpsPreview.interrupt();
-                        cpsPreview = null;
-                    }
+                    previewRunning = false;
                 }
             });
 
@@ -240,6 +372,67 @@ public class SettingsActivity extends AppCompatActivity {
             triggerLabel.setText(TRIGGER_LEVEL_LABEL + triggerLevelValue + TRIGGER_LEVEL_DIMENSION);
             audioService.setTriggerLevel(triggerLevelValue);
 
+            adaptiveTriggerSwitch = (Switch)findViewById(R.id.adaptiveTriggerId);
+            adaptiveTriggerSwitch.setChecked(adaptiveTrigger);
+            adaptiveTriggerSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    adaptiveTrigger = isChecked;
+                    updateAdaptiveTrigger();
+                }
+            });
+
+            triggerSigmasView = (EditText)findViewById(R.id.triggerSigmasId);
+            triggerSigmasView.setText(triggerSigmas.toString());
+            triggerSigmasView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        triggerSigmas = Float.parseFloat(stringValue);
+                        updateAdaptiveTrigger();
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged triggerSigmas:" + e);
+                    }
+                }
+            });
+            updateAdaptiveTrigger();
+
+            polaritySpinner = (Spinner)findViewById(R.id.polarityId);
+            polaritySpinner.setSelection(polarity);
+            audioService.setPolarity(ThresholdPulseDetector.Polarity.values()[polarity]);
+            polaritySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    polarity = position;
+                    audioService.setPolarity(ThresholdPulseDetector.Polarity.values()[position]);
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            dcBlockSwitch = (Switch)findViewById(R.id.dcBlockId);
+            dcBlockSwitch.setChecked(dcBlock);
+            audioService.setDcBlock(dcBlock);
+            dcBlockSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    dcBlock = isChecked;
+                    audioService.setDcBlock(isChecked);
+                }
+            });
+
             impulseWidthLabel = (TextView)findViewById(R.id.impulseWidthLabelId);
             impulseWidthBar = (SeekBar)findViewById(R.id.impulseWidthId);
             impulseWidthBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
@@ -267,8 +460,220 @@ public class SettingsActivity extends AppCompatActivity {
             impulseWidthLabel.setText(IMPULSE_WIDTH_LABEL + impulseWidthValue + IMPULSE_WIDTH_DIMENSION);
             audioService.setImpulseWidth(impulseWidthValue);
 
+            deadTimeModelSpinner = (Spinner)findViewById(R.id.deadTimeModelId);
+            deadTimeModelSpinner.setSelection(deadTimeModel);
+            deadTimeModelSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    deadTimeModel = position;
+                    updateDeadTimeCorrection();
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            deadTimeView = (EditText)findViewById(R.id.deadTimeId);
+            deadTimeView.setText(deadTime.toString());
+            deadTimeView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        deadTime = Float.parseFloat(stringValue);
+                        updateDeadTimeCorrection();
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged deadTime:" + e);
+                    }
+                }
+            });
+            deadTimeEstimateLabel = (TextView)findViewById(R.id.deadTimeEstimateLabelId);
+            updateDeadTimeCorrection();
+
+            sampleRateSpinner = (Spinner)findViewById(R.id.sampleRateId);
+            inputFormats = new ArrayList<>();
+            sampleRateNames = new ArrayList<>();
+            sampleRateNames.add("Auto (" + audioService.getSampleRate() + " Hz)");
+            int selectedRate = 0;
+            for(AudioInputFormat format : AudioFormatNegotiator.probe(channelConfig(preferences))){
+                if(format.isFloat()){
+                    // the same rate is offered once, the negotiator prefers 16-bit
+                    continue;
+                }
+                inputFormats.add(format);
+                sampleRateNames.add(format.getSampleRate() + " Hz");
+                if(format.getSampleRate() == sampleRate){
+                    selectedRate = inputFormats.size();
+                }
+            }
+            sampleRateAdapter = new ArrayAdapter<>(this,
+                    android.R.layout.simple_spinner_item, sampleRateNames);
+            sampleRateAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            sampleRateSpinner.setAdapter(sampleRateAdapter);
+            sampleRateSpinner.setSelection(selectedRate);
+            sampleRateSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    int value = position == 0 ? 0 : inputFormats.get(position - 1).getSampleRate();
+                    if(value != sampleRate){
+                        sampleRate = value;
+                        updateInputFormat();
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            latencySpinner = (Spinner)findViewById(R.id.latencyId);
+            latencySpinner.setSelection(latency);
+            latencySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    if(position != latency){
+                        latency = position;
+                        updateInputFormat();
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            channelModeSpinner = (Spinner)findViewById(R.id.channelModeId);
+            channelModeSpinner.setSelection(channelMode);
+            channelModeSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    if(position != channelMode){
+                        boolean reopen = (position == 0) != (channelMode == 0);
+                        channelMode = position;
+                        if(reopen){
+                            updateInputFormat();
+                        }
+                        updateChannels();
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            rightTriggerLevelView = (EditText)findViewById(R.id.rightTriggerLevelId);
+            rightTriggerLevelView.setText(rightTriggerLevel.toString());
+            rightTriggerLevelView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        rightTriggerLevel = Integer.parseInt(stringValue);
+                        updateChannels();
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged rightTriggerLevel:" + e);
+                    }
+                }
+            });
+
+            rightImpulseWidthView = (EditText)findViewById(R.id.rightImpulseWidthId);
+            rightImpulseWidthView.setText(rightImpulseWidth.toString());
+            rightImpulseWidthView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        rightImpulseWidth = Integer.parseInt(stringValue);
+                        updateChannels();
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged rightImpulseWidth:" + e);
+                    }
+                }
+            });
+
+            coincidenceWindowView = (EditText)findViewById(R.id.coincidenceWindowId);
+            coincidenceWindowView.setText(coincidenceWindow.toString());
+            coincidenceWindowView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        coincidenceWindow = Integer.parseInt(stringValue);
+                        updateChannels();
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged coincidenceWindow:" + e);
+                    }
+                }
+            });
+            updateChannels();
+
             chart = (LineChartView)findViewById(R.id.chartId);
 
+            chartViewSpinner = (Spinner)findViewById(R.id.chartViewId);
+            chartViewSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    if(position != chartView){
+                        chartView = position;
+                        // switches a running preview over
+                        if(previewRunning){
+                            runChartView();
+                        }
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            clearSpectrumButton = (Button)findViewById(R.id.btnClearSpectrumId);
+            clearSpectrumButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    audioService.clearSpectrum();
+                }
+            });
+
             aFactorView = (EditText)findViewById(R.id.factorAId);
             aFactorView.setText(factorA.toString());
             aFactorView.addTextChangedListener(new TextWatcher() {
@@ -335,6 +740,169 @@ public class SettingsActivity extends AppCompatActivity {
                 }
             });
 
+            referenceRateView = (EditText)findViewById(R.id.referenceRateId);
+            calibrationLabel = (TextView)findViewById(R.id.calibrationLabelId);
+
+            Button addPointButton = (Button)findViewById(R.id.btnAddPointId);
+            addPointButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    addCalibrationPoint();
+                }
+            });
+
+            Button clearPointsButton = (Button)findViewById(R.id.btnClearPointsId);
+            clearPointsButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    calibrationPoints.clear();
+                    fittedCalibration = null;
+                    showCalibration();
+                }
+            });
+
+            calibrationModelSpinner = (Spinner)findViewById(R.id.calibrationModelId);
+            calibrationModelSpinner.setSelection(calibrationModel);
+            calibrationModelSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    calibrationModel = position;
+                    showCalibration();
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
+
+            Button fitButton = (Button)findViewById(R.id.btnFitId);
+            fitButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    fitCalibration();
+                }
+            });
+
+            rateAlarmView = (EditText)findViewById(R.id.rateAlarmId);
+            rateAlarmView.setText(rateAlarm.toString());
+            rateAlarmView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        rateAlarm = Float.parseFloat(stringValue);
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged rateAlarm:" + e);
+                    }
+                }
+            });
+
+            doseAlarmView = (EditText)findViewById(R.id.doseAlarmId);
+            doseAlarmView.setText(doseAlarm.toString());
+            doseAlarmView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        doseAlarm = Float.parseFloat(stringValue);
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged doseAlarm:" + e);
+                    }
+                }
+            });
+
+            surveySwitch = (Switch)findViewById(R.id.surveyId);
+            surveySwitch.setChecked(survey);
+            surveySwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    survey = isChecked;
+                }
+            });
+
+            surveyWindowView = (EditText)findViewById(R.id.surveyWindowId);
+            surveyWindowView.setText(surveyWindow.toString());
+            surveyWindowView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        surveyWindow = Integer.parseInt(stringValue);
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged surveyWindow:" + e);
+                    }
+                }
+            });
+
+            surveyPeriodView = (EditText)findViewById(R.id.surveyPeriodId);
+            surveyPeriodView.setText(surveyPeriod.toString());
+            surveyPeriodView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        surveyPeriod = Integer.parseInt(stringValue);
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged surveyPeriod:" + e);
+                    }
+                }
+            });
+
+            surveyErrorView = (EditText)findViewById(R.id.surveyErrorId);
+            surveyErrorView.setText(surveyError.toString());
+            surveyErrorView.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+
+                }
+                @Override
+                public void afterTextChanged(Editable value) {
+                    String stringValue = value.toString();
+                    try{
+                        surveyError = Float.parseFloat(stringValue);
+                    } catch (Exception e){
+                        Log.e(TAG, "in afterTextChanged surveyError:" + e);
+                    }
+                }
+            });
+
         } catch (Exception e){
             Log.e(TAG, "in initControls:" + e);
             throw e;
@@ -348,10 +916,31 @@ public class SettingsActivity extends AppCompatActivity {
             editor.putBoolean(SETTING_MENU_MODE, settingsMode);
             editor.putBoolean(SETTING_BT_ENABLE, btEnabled);
             editor.putInt(SETTING_TRIGGER_LEVEL, triggerLevel);
+            editor.putBoolean(SETTING_ADAPTIVE_TRIGGER, adaptiveTrigger);
+            editor.putFloat(SETTING_TRIGGER_SIGMAS, triggerSigmas);
             editor.putInt(SETTING_IMPULSE_WIDTH, impulseWidth);
+            editor.putInt(SETTING_POLARITY, polarity);
+            editor.putBoolean(SETTING_DC_BLOCK, dcBlock);
+            editor.putInt(SETTING_DEAD_TIME_MODEL, deadTimeModel);
+            editor.putFloat(SETTING_DEAD_TIME, deadTime);
             editor.putFloat(SETTING_FACTOR_A, factorA);
             editor.putFloat(SETTING_FACTOR_B, factorB);
             editor.putFloat(SETTING_FACTOR_C, factorC);
+            Calibration calibration = calibrationToSave();
+            saveCalibration(calibration);
+            editor.putBoolean(SETTING_CALIBRATED, calibration.isCalibrated());
+            editor.putFloat(SETTING_RATE_ALARM, rateAlarm);
+            editor.putFloat(SETTING_DOSE_ALARM, doseAlarm);
+            editor.putBoolean(SETTING_SURVEY, survey);
+            editor.putInt(SETTING_SURVEY_WINDOW, surveyWindow);
+            editor.putInt(SETTING_SURVEY_PERIOD, surveyPeriod);
+            editor.putFloat(SETTING_SURVEY_ERROR, surveyError);
+            editor.putInt(SETTING_SAMPLE_RATE, sampleRate);
+            editor.putInt(SETTING_LATENCY, latency);
+            editor.putInt(SETTING_CHANNEL_MODE, channelMode);
+            editor.putInt(SETTING_RIGHT_TRIGGER_LEVEL, rightTriggerLevel);
+            editor.putInt(SETTING_RIGHT_IMPULSE_WIDTH, rightImpulseWidth);
+            editor.putInt(SETTING_COINCIDENCE_WINDOW, coincidenceWindow);
             editor.commit();
         } catch (Exception e){
             Log.e(TAG, "in initControls:" + e);
@@ -359,6 +948,248 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
+    // writes and syncs the file off the UI thread, then opens the measurement,
+    // whose service reads it
+    private void saveCalibration(final Calibration calibration){
+        saveButton.setEnabled(false);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String error = null;
+                try{
+                    calibration.save(getFilesDir());
+                } catch (Exception e){
+                    Log.e(TAG, "in saveCalibration:" + e);
+                    error = e.toString();
+                }
+                final String message = error;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(message != null){
+                            Toast.makeText(SettingsActivity.this, "Can't save calibration:" + message, Toast.LENGTH_SHORT).show();
+                        }
+                        saveButton.setEnabled(true);
+                        openMeasureActivity();
+                    }
+                });
+            }
+        }, "Calibration").start();
+    }
+
+    // reopens the microphone, a running preview has to be started again
+    private void updateInputFormat(){
+        try{
+            audioService.stop();
+            previewRunning = false;
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putInt(SETTING_SAMPLE_RATE, sampleRate);
+            editor.putInt(SETTING_LATENCY, latency);
+            editor.putInt(SETTING_CHANNEL_MODE, channelMode);
+            editor.commit();
+            negotiateInputFormat();
+        } catch (Exception e){
+            Log.e(TAG, "in updateInputFormat:" + e);
+        }
+    }
+
+    // "auto" benchmarks the candidate formats the first time, for seconds, so
+    // it runs off the UI thread; the preview waits until the format is set,
+    // and so does measuring, which then finds the remembered one
+    private void negotiateInputFormat(){
+        runButton.setEnabled(false);
+        saveButton.setEnabled(false);
+        final int generation = ++negotiation;
+        final int channelConfig = channelConfig(preferences);
+        final int bufferFactor = AudioFormatNegotiator.bufferFactor(preferences);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final AudioInputFormat format = AudioFormatNegotiator.fromPreferences(preferences, channelConfig);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(generation != negotiation){
+                            // the settings changed meanwhile, a newer one is running
+                            return;
+                        }
+                        try{
+                            audioService.setInputFormat(format, channelConfig, bufferFactor);
+                            sampleRateNames.set(0, "Auto (" + audioService.getSampleRate() + " Hz)");
+                            sampleRateAdapter.notifyDataSetChanged();
+                        } catch (Exception e){
+                            Log.e(TAG, "in negotiateInputFormat:" + e);
+                        }
+                        runButton.setEnabled(true);
+                        saveButton.setEnabled(true);
+                    }
+                });
+            }
+        }, "AudioFormat").start();
+    }
+
+    private void updateChannels(){
+        MeasurementService.configureChannels(audioService, channelMode,
+                rightTriggerLevel, rightImpulseWidth, coincidenceWindow);
+    }
+
+    static int channelConfig(SharedPreferences preferences){
+        return preferences.getInt(SETTING_CHANNEL_MODE, 0) > 0
+                ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    // the seek bar is the fallback level, the chosen one is shown while measuring
+    private void updateAdaptiveTrigger(){
+        audioService.setAdaptiveTrigger(adaptiveTrigger, triggerSigmas);
+        triggerLevelBar.setEnabled(!adaptiveTrigger);
+        triggerSigmasView.setEnabled(adaptiveTrigger);
+        shownTriggerLevel = Long.MIN_VALUE;
+        if(!adaptiveTrigger){
+            triggerLabel.setText(TRIGGER_LEVEL_LABEL + triggerLevelBar.getProgress() + TRIGGER_LEVEL_DIMENSION);
+        }
+    }
+
+    private void runChartView(){
+        try {
+            if(chartView == 0){
+                audioService.runSettingsMode(chart);
+            } else {
+                audioService.runSpectrumMode(chart, chartView - 1);
+            }
+        } catch (Exception e){
+            Log.e(TAG, "in runChartView:" + e);
+        }
+    }
+
+    private void updateDeadTimeCorrection(){
+        DeadTimeCorrection.Model model = DeadTimeCorrection.Model.values()[deadTimeModel];
+        audioService.setDeadTimeCorrection(model, deadTime / 1000000.0);
+    }
+
+    // reads the saved points and model off the UI thread
+    private void loadCalibration(){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    final Calibration calibration = Calibration.load(getFilesDir(), preferences);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            calibrationPoints.clear();
+                            for(int i = 0; i < calibration.getPointCount(); i++){
+                                calibrationPoints.add(new double[]{calibration.getPointCps(i), calibration.getPointRate(i)});
+                            }
+                            calibrationModel = calibration.getModel().ordinal();
+                            calibrationModelSpinner.setSelection(calibrationModel);
+                            fittedCalibration = calibration.getModel() == Calibration.Model.DEAD_TIME ? calibration : null;
+                            showCalibration();
+                        }
+                    });
+                } catch (Exception e){
+                    Log.e(TAG, "in loadCalibration:" + e);
+                }
+            }
+        }, "Calibration").start();
+    }
+
+    // the current corrected rate of the running preview, at the typed dose rate
+    private void addCalibrationPoint(){
+        try{
+            float referenceRate = Float.parseFloat(referenceRateView.getText().toString());
+            float cps = audioService.getRateSnapshot().getAdaptiveCorrectedCps();
+            if(!previewRunning || cps <= 0){
+                Toast.makeText(this, "Run at the reference source first", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            calibrationPoints.add(new double[]{cps, referenceRate});
+            showCalibration();
+        } catch (NumberFormatException e){
+            Toast.makeText(this, "Enter the reference dose rate", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    // least squares off the UI thread; a polynomial lands in A, B, C
+    private void fitCalibration(){
+        final Calibration.Model model = Calibration.Model.values()[calibrationModel];
+        final double[] cps = new double[calibrationPoints.size()];
+        final double[] rates = new double[calibrationPoints.size()];
+        for(int i = 0; i < cps.length; i++){
+            cps[i] = calibrationPoints.get(i)[0];
+            rates[i] = calibrationPoints.get(i)[1];
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    final Calibration calibration = CalibrationFitter.fit(model, cps, rates);
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            fittedCalibration = calibration;
+                            if(model == Calibration.Model.POLYNOMIAL){
+                                aFactorView.setText(Float.toString((float) calibration.getCoefficient(0)));
+                                bFactorView.setText(Float.toString((float) calibration.getCoefficient(1)));
+                                cFactorView.setText(Float.toString((float) calibration.getCoefficient(2)));
+                            }
+                            showCalibration();
+                        }
+                    });
+                } catch (final IllegalArgumentException e){
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(SettingsActivity.this, e.getMessage(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        }, "Calibration").start();
+    }
+
+    private void showCalibration(){
+        boolean polynomial = calibrationModel == Calibration.Model.POLYNOMIAL.ordinal();
+        aFactorView.setEnabled(polynomial);
+        bFactorView.setEnabled(polynomial);
+        cFactorView.setEnabled(polynomial);
+        String text = calibrationPoints.size() + " points";
+        Calibration calibration = fittedCalibration;
+        if(!polynomial){
+            if(calibration != null && calibration.getModel() == Calibration.Model.DEAD_TIME){
+                text += String.format(Locale.US, ", %.4g·n / (1 - n·%.3g s) + %.3g",
+                        calibration.getCoefficient(0), calibration.getCoefficient(1), calibration.getCoefficient(2));
+            } else {
+                text += ", not fitted, A, B, C are used";
+            }
+        }
+        calibrationLabel.setText(text);
+    }
+
+    private Calibration calibrationToSave(){
+        double[] cps = new double[calibrationPoints.size()];
+        double[] rates = new double[calibrationPoints.size()];
+        for(int i = 0; i < cps.length; i++){
+            cps[i] = calibrationPoints.get(i)[0];
+            rates[i] = calibrationPoints.get(i)[1];
+        }
+        Calibration fitted = fittedCalibration;
+        if(calibrationModel == Calibration.Model.DEAD_TIME.ordinal()
+                && fitted != null && fitted.getModel() == Calibration.Model.DEAD_TIME){
+            return fitted.withPoints(cps, rates);
+        }
+        return Calibration.polynomial(factorA, factorB, factorC).withPoints(cps, rates);
+    }
+
+    // a saved calibration, or factors from before there was one
+    static boolean isCalibrated(SharedPreferences preferences){
+        if(preferences.contains(SETTING_CALIBRATED)){
+            return preferences.getBoolean(SETTING_CALIBRATED, false);
+        }
+        return preferences.getFloat(SETTING_FACTOR_A, 0) != 0
+                || preferences.getFloat(SETTING_FACTOR_B, 0) != 0
+                || preferences.getFloat(SETTING_FACTOR_C, 0) != 0;
+    }
+
     private void openMeasureActivity(){
         try{
             Intent intent = new Intent(this, MeasureActivity.class);
@@ -368,27 +1199,48 @@ public class SettingsActivity extends AppCompatActivity {
         }
     }
 
-    private void updateCps(){
-        cpsPreview = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    while (!Thread.currentThread().isInterrupted()) {
-                        String cpsValue = String.format("%.01f", audioService.getCps());
-                        runOnUiThread(new Runnable() {
-                            public void run() {
-                                cpsLabel.setText(cpsValue);
-                            }
-                        });
-                        Thread.sleep(500);
-                    }
-                } catch (InterruptedException e){
-                    // thread was interrupted
-                } catch (Exception e) {
-                    Log.e(TAG, "in updateCps");
-                    e.printStackTrace();
-                }
+    // UI thread, from the rate publisher of the running preview
+    private void showRate(RateSnapshot snapshot){
+        long droppedSamples = audioService.getDroppedSamples();
+        long cps = Math.round(snapshot.getAdaptiveCps() * 10);
+        long leftCps = 0;
+        long rightCps = 0;
+        if(audioService.getChannelCount() > 1){
+            leftCps = Math.round(audioService.getChannelRateSnapshot(0).getAdaptiveCps() * 10);
+            rightCps = Math.round(audioService.getChannelRateSnapshot(1).getAdaptiveCps() * 10);
+        }
+        if(cps != shownCps || leftCps != shownLeftCps || rightCps != shownRightCps
+                || droppedSamples != shownDroppedSamples){
+            shownCps = cps;
+            shownLeftCps = leftCps;
+            shownRightCps = rightCps;
+            shownDroppedSamples = droppedSamples;
+            // processing could not keep up with capture
+            String lost = droppedSamples > 0 ? " (lost " + droppedSamples + " samples)" : "";
+            cpsLabel.setText(String.format("%.01f", cps / 10.0) + channelRates() + lost);
+        }
+        // includes the impulse width, which bounds it from below
+        long deadTime = Math.round(snapshot.getDeadTimeEstimateSeconds() * 1000000);
+        if(deadTime != shownDeadTime){
+            shownDeadTime = deadTime;
+            deadTimeEstimateLabel.setText("≈ " + deadTime + " µs");
+        }
+        if(adaptiveTrigger){
+            // the level the noise tracking picked
+            long triggerLevel = Math.round(audioService.getTriggerLevelPercent() * 10);
+            if(triggerLevel != shownTriggerLevel){
+                shownTriggerLevel = triggerLevel;
+                triggerLabel.setText(String.format(TRIGGER_LEVEL_LABEL + "auto %.1f" + TRIGGER_LEVEL_DIMENSION,
+                        triggerLevel / 10.0));
             }
-        });
-        cpsPreview.start();
+        }
+    }
+
+    // each tube on its own, the main rate is the combined one
+    private String channelRates(){
+        if(audioService.getChannelCount() < 2){
+            return "";
+        }
+        return String.format(" (L %.01f, R %.01f)", shownLeftCps / 10.0, shownRightCps / 10.0);
     }
 }
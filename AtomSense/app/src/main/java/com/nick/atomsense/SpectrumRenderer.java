@@ -0,0 +1,107 @@
+package com.nick.atomsense;
+
+import android.graphics.Color;
+import android.view.Choreographer;
+import lecho.lib.hellocharts.model.Line;
+import lecho.lib.hellocharts.model.LineChartData;
+import lecho.lib.hellocharts.model.PointValue;
+import lecho.lib.hellocharts.view.LineChartView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Draws a Histogram as a spectrum, bin center against count. The histogram is
+// filled by the processing thread without locks; this copies it on the UI
+// thread a few times per second, only when new counts arrived, into points
+// which are allocated again only when the number of bins changes.
+public class SpectrumRenderer implements Choreographer.FrameCallback {
+
+    // 6 display frames, 10 updates per second at 60 Hz
+    private static final int FRAMES_PER_UPDATE = 6;
+
+    private final LineChartView chart;
+    private final LineChartData linesData = new LineChartData();
+    private final List<PointValue> values = new ArrayList<>();
+    private PointValue[] points = new PointValue[0];
+    private int[] counts = new int[0];
+
+    private volatile Histogram histogram;
+    // bin centers are multiplied by it, e.g. samples to µs
+    private volatile double xScale = 1;
+    private long renderedTotal = -1;
+    private int renderedClears = -1;
+    private int frames = 0;
+    private boolean running = false;
+
+    public SpectrumRenderer(LineChartView chart){
+        this.chart = chart;
+        Line line = new Line(values).setColor(Color.BLACK).setCubic(false);
+        line.setPointRadius(0);
+        line.setStrokeWidth(1);
+        line.setHasPoints(false);
+        line.setFilled(true);
+        List<Line> lines = new ArrayList<>(1);
+        lines.add(line);
+        linesData.setLines(lines);
+        chart.setInteractive(true);
+    }
+
+    // any thread
+    public void setHistogram(Histogram histogram, double xScale){
+        this.xScale = xScale;
+        this.histogram = histogram;
+    }
+
+    // UI thread
+    public void start(){
+        if(!running){
+            running = true;
+            renderedTotal = -1;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    // UI thread
+    public void stop(){
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos){
+        if(!running){
+            return;
+        }
+        if(++frames >= FRAMES_PER_UPDATE){
+            frames = 0;
+            Histogram current = histogram;
+            // a clear shows at once, as empty bins
+            if(current != null && (current.getTotal() != renderedTotal
+                    || current.getClears() != renderedClears)){
+                render(current);
+            }
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void render(Histogram current){
+        int bins = current.getBins();
+        if(points.length != bins){
+            points = new PointValue[bins];
+            for(int i = 0; i < bins; i++){
+                points[i] = new PointValue(0, 0);
+            }
+            counts = new int[bins];
+        }
+        renderedClears = current.getClears();
+        renderedTotal = current.copyTo(counts);
+        double scale = xScale;
+        values.clear();
+        for(int i = 0; i < bins; i++){
+            PointValue point = points[i];
+            point.set((float) (current.getBinCenter(i) * scale), counts[i]);
+            values.add(point);
+        }
+        chart.setLineChartData(linesData); // update the chart view
+    }
+}
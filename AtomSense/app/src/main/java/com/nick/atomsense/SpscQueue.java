@@ -0,0 +1,49 @@
+package com.nick.atomsense;
+
+// Bounded lock-free queue for exactly one producer thread and one consumer thread.
+public class SpscQueue<T> {
+
+    private final Object[] items;
+    private final int mask;
+    // written by the consumer only
+    private volatile long head = 0;
+    // written by the producer only
+    private volatile long tail = 0;
+
+    public SpscQueue(int capacity){
+        if(capacity <= 0 || Integer.bitCount(capacity) != 1){
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        items = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    // producer side, false if the queue is full
+    public boolean offer(T item){
+        long t = tail;
+        if(t - head == items.length){
+            return false;
+        }
+        items[(int) t & mask] = item;
+        tail = t + 1;
+        return true;
+    }
+
+    // consumer side, null if the queue is empty
+    @SuppressWarnings("unchecked")
+    public T poll(){
+        long h = head;
+        if(h == tail){
+            return null;
+        }
+        int index = (int) h & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        head = h + 1;
+        return item;
+    }
+
+    public int size(){
+        return (int) (tail - head);
+    }
+}
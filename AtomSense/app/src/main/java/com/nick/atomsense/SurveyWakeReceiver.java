@@ -0,0 +1,24 @@
+package com.nick.atomsense;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+
+// Receives the alarm that ends a survey sleep. AlarmManager only keeps the
+// device awake while a broadcast is delivered, so a short wake lock bridges
+// the time until the service has taken its own in onStartCommand().
+public class SurveyWakeReceiver extends BroadcastReceiver {
+
+    // the service runs in the foreground, starting it takes far less
+    private static final long WAKE_LOCK_TIMEOUT_MILLIS = 10000;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "AtomSense:surveyWake");
+        wakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+        context.startService(new Intent(context, MeasurementService.class)
+                .setAction(MeasurementService.ACTION_SURVEY_WAKE));
+    }
+}
@@ -0,0 +1,213 @@
+package com.nick.atomsense;
+
+import java.util.Random;
+
+// Simulated Geiger tube behind a sound card input: Poisson distributed events,
+// a fixed pulse shape with amplitude jitter on top of gaussian noise, and the
+// tube's own dead time. The same seed always gives the same stream, so
+// counting accuracy can be checked on a plain JVM.
+public class SyntheticPulseSource implements AudioSource {
+
+    private final int sampleRate;
+    private final int bufferSize;
+    private final Random random;
+
+    private double cps = 10;
+    private double amplitude = 20000;
+    // relative standard deviation of the pulse amplitude
+    private double amplitudeJitter = 0.1;
+    private double noiseRms = 300;
+    private double riseSeconds = 5e-6;
+    private double decaySeconds = 50e-6;
+    private double deadTimeSeconds = 0;
+    private boolean paralyzable = false;
+
+    // pulse template with peak 1, rebuilt when the shape changes
+    private float[] shape;
+    // part of the pulses which did not fit into the previous read
+    private int[] carry;
+    private int carryLength = 0;
+    private int[] work;
+
+    private boolean recording = false;
+    private long samplePosition = 0;
+    private double nextEventSample;
+    private double deadUntilSample = -1;
+    private long eventCount = 0;
+    private long pulseCount = 0;
+
+    public SyntheticPulseSource(int sampleRate, int bufferSize, long seed){
+        this.sampleRate = sampleRate;
+        this.bufferSize = bufferSize;
+        this.random = new Random(seed);
+        this.work = new int[bufferSize];
+        buildShape();
+        nextEventSample = nextInterval();
+    }
+
+    public void setCps(double cps){
+        this.cps = cps;
+        nextEventSample = samplePosition + nextInterval();
+    }
+
+    public void setAmplitude(double amplitude, double jitter){
+        this.amplitude = amplitude;
+        this.amplitudeJitter = jitter;
+    }
+
+    public void setNoiseRms(double noiseRms){
+        this.noiseRms = noiseRms;
+    }
+
+    public void setPulseShape(double riseSeconds, double decaySeconds){
+        this.riseSeconds = riseSeconds;
+        this.decaySeconds = decaySeconds;
+        buildShape();
+    }
+
+    // dead time of the simulated tube, events inside it produce no pulse;
+    // a paralyzable tube also restarts its dead time on every lost event
+    public void setDeadTime(double deadTimeSeconds, boolean paralyzable){
+        this.deadTimeSeconds = deadTimeSeconds;
+        this.paralyzable = paralyzable;
+    }
+
+    // radiation events generated so far, including those lost in the tube dead time
+    public long getEventCount(){
+        return eventCount;
+    }
+
+    // pulses which actually reached the audio stream
+    public long getPulseCount(){
+        return pulseCount;
+    }
+
+    @Override
+    public int getSampleRate(){
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannelCount(){
+        return 1;
+    }
+
+    @Override
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    @Override
+    public void start(){
+        recording = true;
+    }
+
+    @Override
+    public boolean isRecording(){
+        return recording;
+    }
+
+    @Override
+    public int read(short[] buf, int offset, int len){
+        if(!recording){
+            return -1;
+        }
+        if(work.length < len){
+            work = new int[len];
+        }
+        for(int i = 0; i < len; i++){
+            work[i] = (int) (random.nextGaussian() * noiseRms);
+        }
+        addCarry(len);
+
+        double deadSamples = deadTimeSeconds * sampleRate;
+        long end = samplePosition + len;
+        while(nextEventSample < end){
+            double event = nextEventSample;
+            eventCount++;
+            if(event >= deadUntilSample){
+                renderPulse((int) (event - samplePosition), len);
+                pulseCount++;
+                deadUntilSample = event + deadSamples;
+            } else if(paralyzable){
+                deadUntilSample = event + deadSamples;
+            }
+            nextEventSample += nextInterval();
+        }
+
+        for(int i = 0; i < len; i++){
+            int value = work[i];
+            if(value > Short.MAX_VALUE){
+                value = Short.MAX_VALUE;
+            } else if(value < Short.MIN_VALUE){
+                value = Short.MIN_VALUE;
+            }
+            buf[offset + i] = (short) value;
+        }
+        samplePosition = end;
+        return len;
+    }
+
+    @Override
+    public void stop(){
+        recording = false;
+    }
+
+    @Override
+    public void release(){
+        recording = false;
+    }
+
+    private void addCarry(int len){
+        int used = Math.min(len, carryLength);
+        for(int i = 0; i < used; i++){
+            work[i] += carry[i];
+        }
+        int rest = carryLength - used;
+        System.arraycopy(carry, used, carry, 0, rest);
+        for(int i = rest; i < carryLength; i++){
+            carry[i] = 0;
+        }
+        carryLength = rest;
+    }
+
+    private void renderPulse(int start, int len){
+        double pulseAmplitude = amplitude * (1 + amplitudeJitter * random.nextGaussian());
+        for(int k = 0; k < shape.length; k++){
+            int value = (int) (pulseAmplitude * shape[k]);
+            int index = start + k;
+            if(index < len){
+                work[index] += value;
+            } else {
+                carry[index - len] += value;
+                carryLength = Math.max(carryLength, index - len + 1);
+            }
+        }
+    }
+
+    private void buildShape(){
+        double samplePeriod = 1.0 / sampleRate;
+        // long enough for both exponents to fall below 1e-3
+        int length = (int) Math.ceil(7 * (riseSeconds + decaySeconds) * sampleRate) + 1;
+        shape = new float[length];
+        float peak = 0;
+        for(int k = 0; k < length; k++){
+            double t = k * samplePeriod;
+            // the rise is integrated over one sample, so pulses shorter
+            // than a sample still show up in the first one
+            double value = (1 - Math.exp(-(t + samplePeriod) / riseSeconds)) * Math.exp(-t / decaySeconds);
+            shape[k] = (float) value;
+            peak = Math.max(peak, shape[k]);
+        }
+        for(int k = 0; k < length; k++){
+            shape[k] /= peak;
+        }
+        carry = new int[length];
+        carryLength = 0;
+    }
+
+    // in samples
+    private double nextInterval(){
+        return -Math.log(1 - random.nextDouble()) / cps * sampleRate;
+    }
+}
@@ -0,0 +1,321 @@
+package com.nick.atomsense;
+
+// Fires when a sample rises above the trigger level, then ignores the next
+// dead time samples, also when they continue in the following buffers.
+//
+// In adaptive mode the trigger level follows the noise floor: once per buffer
+// the baseline (mean) and the noise (mean absolute deviation, scaled to sigma)
+// of the samples below the level are folded into exponential moving averages,
+// and the level is set k sigma above the baseline. After a pulse the detector
+// re-arms only when the signal has fallen below the level minus the
+// hysteresis, so a slow tail does not fire twice.
+//
+// Inverted pulses or pulses of either sign are found by conditioning each
+// sample before the comparison: an optional one-pole DC blocking high-pass
+// y[n] = x[n] - x[n-1] + pole * y[n-1], then negation or absolute value. This
+// runs in the same loop as the comparison and writes the conditioned samples
+// back, so later stages (scope, amplitudes) see what the level applied to.
+public class ThresholdPulseDetector implements PulseDetector {
+
+    public enum Polarity {
+        POSITIVE,
+        NEGATIVE,
+        // either sign, by absolute value
+        BIPOLAR
+    }
+
+    // samples per block of the quiet-signal scan, see blockIndexAbove()
+    static final int BLOCK_SIZE = 32;
+    // every n-th sample goes into the noise estimate
+    static final int NOISE_STRIDE = 4;
+    // sigma / mean absolute deviation of gaussian noise
+    private static final double MAD_TO_SIGMA = 1.2533;
+
+    private volatile short triggerLevel = 0;
+    private volatile short adaptiveLevel = Short.MAX_VALUE;
+    private volatile int deadTimeSamples = 0;
+    private volatile boolean blockScan = false;
+    private volatile Polarity polarity = Polarity.POSITIVE;
+    private volatile boolean dcBlock = false;
+    private volatile float dcPole = 0.995f;
+    // DC blocker state, carried across buffers
+    private boolean dcPrimed = false;
+    private float dcPreviousInput = 0;
+    private float dcPreviousOutput = 0;
+
+    private volatile boolean adaptive = false;
+    private volatile float sigmas = 6;
+    private volatile float hysteresisSigmas = 2;
+    private volatile int timeConstantSamples = 8000;
+    // adaptive estimates, owned by the processing thread
+    private boolean noiseInitialized = false;
+    private double baseline = 0;
+    private double noise = 0;
+    private short rearmLevel = Short.MAX_VALUE;
+    private boolean armed = true;
+
+    // part of the dead time which did not fit into the previous buffer
+    private int deadSamplesRemaining = 0;
+    private long samplesProcessed = 0;
+
+    // the fixed level, replaced while adaptive
+    public void setTriggerLevel(short triggerLevel){
+        this.triggerLevel = triggerLevel;
+    }
+
+    // the level in use, the adaptive one while adaptive
+    public short getTriggerLevel(){
+        return adaptive ? adaptiveLevel : triggerLevel;
+    }
+
+    public void setDeadTimeSamples(int deadTimeSamples){
+        this.deadTimeSamples = Math.max(0, deadTimeSamples);
+    }
+
+    public int getDeadTimeSamples(){
+        return deadTimeSamples;
+    }
+
+    public void setBlockScan(boolean blockScan){
+        this.blockScan = blockScan;
+    }
+
+    // the level is k sigmas above the baseline and re-arms hysteresisSigmas
+    // below that; the estimates forget with the time constant
+    public void setAdaptive(boolean adaptive, float sigmas, float hysteresisSigmas, int timeConstantSamples){
+        this.sigmas = sigmas;
+        this.hysteresisSigmas = Math.max(0, Math.min(hysteresisSigmas, sigmas));
+        this.timeConstantSamples = Math.max(1, timeConstantSamples);
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive(){
+        return adaptive;
+    }
+
+    public void setPolarity(Polarity polarity){
+        this.polarity = polarity;
+    }
+
+    public Polarity getPolarity(){
+        return polarity;
+    }
+
+    // pole in (0, 1), exp(-2 pi cutoff / sample rate); closer to 1 keeps more
+    // of the low frequencies
+    public void setDcBlock(boolean dcBlock, float pole){
+        this.dcPole = pole;
+        this.dcBlock = dcBlock;
+    }
+
+    @Override
+    public void process(short[] buf, int len, PulseSink sink){
+        if(dcBlock || polarity != Polarity.POSITIVE){
+            processConditioned(buf, len, sink);
+            return;
+        }
+        boolean adapt = adaptive;
+        if(adapt){
+            updateNoise(buf, len);
+        } else {
+            armed = true;
+        }
+        short level = adapt ? adaptiveLevel : triggerLevel;
+        int deadTime = deadTimeSamples;
+        boolean blocks = blockScan;
+        int i = deadSamplesRemaining;
+        while(i < len){
+            if(!armed){
+                i = indexAtOrBelow(buf, i, len, rearmLevel);
+                if(i >= len){
+                    break;
+                }
+                armed = true;
+            }
+            i = blocks ? blockIndexAbove(buf, i, len, level) : indexAbove(buf, i, len, level);
+            if(i >= len){
+                break;
+            }
+            sink.onPulse(samplesProcessed + i, i);
+            // skip other samples by length of impulse width
+            i += 1 + deadTime;
+            armed = !adapt;
+        }
+        deadSamplesRemaining = i - len;
+        samplesProcessed += len;
+    }
+
+    // one pass which conditions, stores and compares each sample; the dead
+    // time and re-arm are counted per sample, as the filter sees all of them.
+    // An adaptive level follows from the conditioned buffer, for the next one.
+    private void processConditioned(short[] buf, int len, PulseSink sink){
+        boolean adapt = adaptive;
+        if(!adapt){
+            armed = true;
+        }
+        int level = adapt ? adaptiveLevel : triggerLevel;
+        int rearm = rearmLevel;
+        int deadTime = deadTimeSamples;
+        boolean dc = dcBlock;
+        float pole = dcPole;
+        Polarity sign = polarity;
+        if(dc && !dcPrimed && len > 0){
+            // start from the first sample, not from a step out of 0
+            dcPreviousInput = buf[0];
+            dcPreviousOutput = 0;
+            dcPrimed = true;
+        }
+        float previousInput = dcPreviousInput;
+        float previousOutput = dcPreviousOutput;
+        int dead = deadSamplesRemaining;
+        boolean isArmed = armed;
+        for(int i = 0; i < len; i++){
+            int value = buf[i];
+            if(dc){
+                previousOutput = value - previousInput + pole * previousOutput;
+                previousInput = value;
+                value = Math.round(previousOutput);
+            }
+            if(sign == Polarity.NEGATIVE){
+                value = -value;
+            } else if(sign == Polarity.BIPOLAR){
+                value = Math.abs(value);
+            }
+            value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            buf[i] = (short) value;
+            if(dead > 0){
+                dead--;
+            } else if(!isArmed){
+                isArmed = value <= rearm;
+            } else if(value > level){
+                sink.onPulse(samplesProcessed + i, i);
+                // skip other samples by length of impulse width
+                dead = deadTime;
+                isArmed = !adapt;
+            }
+        }
+        dcPreviousInput = previousInput;
+        dcPreviousOutput = previousOutput;
+        deadSamplesRemaining = dead;
+        armed = isArmed;
+        samplesProcessed += len;
+        if(adapt){
+            updateNoise(buf, len);
+        }
+    }
+
+    // folds the samples below the current level into the estimates and moves
+    // the level; pulses are above it, so they do not raise the noise
+    private void updateNoise(short[] buf, int len){
+        if(len < NOISE_STRIDE){
+            return;
+        }
+        int limit = noiseInitialized ? adaptiveLevel : Short.MAX_VALUE;
+        long sum = 0;
+        long sumBelow = 0;
+        int count = 0;
+        int countBelow = 0;
+        for(int i = 0; i < len; i += NOISE_STRIDE){
+            sum += buf[i];
+            count++;
+            if(buf[i] <= limit){
+                sumBelow += buf[i];
+                countBelow++;
+            }
+        }
+        // most of the buffer above the level is not a pulse but a floor
+        // which moved up, e.g. a new gain, so it all counts
+        if(countBelow * 2 >= count){
+            sum = sumBelow;
+            count = countBelow;
+        } else {
+            limit = Short.MAX_VALUE;
+        }
+        double mean = sum / (double) count;
+        double deviation = 0;
+        for(int i = 0; i < len; i += NOISE_STRIDE){
+            if(buf[i] <= limit){
+                deviation += Math.abs(buf[i] - mean);
+            }
+        }
+        double sigma = deviation / count * MAD_TO_SIGMA;
+        if(noiseInitialized){
+            double alpha = Math.min(1.0, len / (double) timeConstantSamples);
+            baseline += alpha * (mean - baseline);
+            noise += alpha * (sigma - noise);
+        } else {
+            baseline = mean;
+            noise = sigma;
+            noiseInitialized = true;
+        }
+        // at least one step above the baseline, digital silence has no noise
+        double level = baseline + Math.max(sigmas * noise, 1);
+        adaptiveLevel = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(level)));
+        rearmLevel = (short) Math.max(Short.MIN_VALUE,
+                Math.round(Math.min(level, baseline + (sigmas - hysteresisSigmas) * noise)));
+    }
+
+    // first index in [from, to) with a sample at or below level, or to
+    static int indexAtOrBelow(short[] buf, int from, int to, short level){
+        for(int i = from; i < to; i++){
+            if(buf[i] <= level){
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // first index in [from, to) with a sample above level, or to
+    static int indexAbove(short[] buf, int from, int to, short level){
+        for(int i = from; i < to; i++){
+            if(buf[i] > level){
+                return i;
+            }
+        }
+        return to;
+    }
+
+    // same as indexAbove(). At background rates almost every block is quiet,
+    // so the signal is reduced block by block with a branch-free max which a
+    // vectorizing compiler can turn into SIMD, and only a block that crosses
+    // the level is scanned sample by sample.
+    // Off by default: HotSpot C2 does not vectorize this reduction and there the
+    // scalar loop, whose branch is almost always predicted, is faster.
+    // PulseDetectorBenchmark compares both.
+    static int blockIndexAbove(short[] buf, int from, int to, short level){
+        int i = from;
+        int lastBlock = to - BLOCK_SIZE;
+        while(i <= lastBlock){
+            int max = Short.MIN_VALUE;
+            for(int k = i; k < i + BLOCK_SIZE; k++){
+                max = Math.max(max, buf[k]);
+            }
+            if(max > level){
+                // stops inside this block
+                while(buf[i] <= level){
+                    i++;
+                }
+                return i;
+            }
+            i += BLOCK_SIZE;
+        }
+        return indexAbove(buf, i, to, level);
+    }
+
+    @Override
+    public void skip(long samples){
+        deadSamplesRemaining = (int) Math.max(0, deadSamplesRemaining - samples);
+        samplesProcessed += samples;
+        // the filter continues from the next sample, not across the gap
+        dcPrimed = false;
+    }
+
+    @Override
+    public void reset(){
+        deadSamplesRemaining = 0;
+        samplesProcessed = 0;
+        armed = true;
+        noiseInitialized = false;
+        dcPrimed = false;
+    }
+}
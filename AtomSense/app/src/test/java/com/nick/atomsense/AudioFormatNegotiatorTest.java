@@ -0,0 +1,75 @@
+package com.nick.atomsense;
+
+import android.media.AudioFormat;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AudioFormatNegotiatorTest {
+
+    private static List<AudioInputFormat> formats(){
+        return Arrays.asList(
+                new AudioInputFormat(8000, AudioFormat.ENCODING_PCM_16BIT, 640),
+                new AudioInputFormat(48000, AudioFormat.ENCODING_PCM_16BIT, 3840),
+                new AudioInputFormat(48000, AudioFormat.ENCODING_PCM_FLOAT, 7680),
+                new AudioInputFormat(22050, AudioFormat.ENCODING_PCM_16BIT, 1764),
+                new AudioInputFormat(192000, AudioFormat.ENCODING_PCM_FLOAT, 30720));
+    }
+
+    @Test
+    public void choosesTheNeededRateIn16Bit(){
+        // 192 kHz would keep up too, but 48 kHz resolves the pulses
+        AudioInputFormat chosen = AudioFormatNegotiator.choose(formats(), Double.MAX_VALUE);
+        assertEquals(48000, chosen.getSampleRate());
+        assertFalse(chosen.isFloat());
+
+        // the highest there is when none reaches it
+        chosen = AudioFormatNegotiator.choose(formats().subList(0, 1), Double.MAX_VALUE);
+        assertEquals(8000, chosen.getSampleRate());
+        assertEquals(22050, AudioFormatNegotiator.targetRate(Arrays.asList(
+                new AudioInputFormat(8000, AudioFormat.ENCODING_PCM_16BIT, 640),
+                new AudioInputFormat(22050, AudioFormat.ENCODING_PCM_16BIT, 1764))));
+    }
+
+    @Test
+    public void untestedIsTheTargetRateIn16Bit(){
+        AudioInputFormat format = AudioFormatNegotiator.untested(formats());
+        assertEquals(48000, format.getSampleRate());
+        assertFalse(format.isFloat());
+        assertNull(AudioFormatNegotiator.untested(new ArrayList<AudioInputFormat>()));
+    }
+
+    @Test
+    public void fallsBackToLowestRate(){
+        AudioInputFormat chosen = AudioFormatNegotiator.choose(formats(), 0);
+        assertEquals(8000, chosen.getSampleRate());
+        assertNull(AudioFormatNegotiator.choose(new ArrayList<AudioInputFormat>(), 1));
+    }
+
+    @Test
+    public void measuresLoadBelowRealTime(){
+        double load = AudioFormatNegotiator.measureLoad(
+                new AudioInputFormat(48000, AudioFormat.ENCODING_PCM_FLOAT, 7680));
+        assertTrue(load > 0);
+        assertTrue(load < 1);
+    }
+
+    @Test
+    public void convertsFloatToPcm16(){
+        float[] src = {0f, 0.5f, -0.5f, 1f, -1f, 2f, -2f};
+        short[] dst = new short[src.length + 1];
+        AudioInputFormat.toPcm16(src, dst, 1, src.length);
+        assertEquals(0, dst[0]);
+        assertEquals(0, dst[1]);
+        assertEquals(16384, dst[2], 1);
+        assertEquals(-16384, dst[3], 1);
+        assertEquals(Short.MAX_VALUE, dst[4]);
+        assertEquals(Short.MIN_VALUE + 1, dst[5], 1);
+        assertEquals(Short.MAX_VALUE, dst[6]);
+        assertEquals(Short.MIN_VALUE, dst[7], 1);
+    }
+}
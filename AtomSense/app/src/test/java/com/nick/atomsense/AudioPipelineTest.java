@@ -0,0 +1,113 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class AudioPipelineTest {
+
+    // n samples of 16-bit little-endian PCM counting up from 0
+    private static PcmFileSource rampSource(int samples, int bufferSize) {
+        byte[] bytes = new byte[samples * 2];
+        for(int i = 0; i < samples; i++){
+            bytes[2 * i] = (byte) i;
+            bytes[2 * i + 1] = (byte) (i >> 8);
+        }
+        return new PcmFileSource(new ByteArrayInputStream(bytes), 8000, bufferSize);
+    }
+
+    @Test
+    public void deliversAllBlocksInOrder() throws InterruptedException {
+        final long[] expectedFrame = {0};
+        final boolean[] ordered = {true};
+        PcmFileSource source = rampSource(10000, 256);
+        source.start();
+        // the file is read faster than real time, enough blocks to hold all of it
+        AudioPipeline pipeline = new AudioPipeline(source, 256, 64, new AudioPipeline.BlockProcessor() {
+            @Override
+            public void process(short[] data, int length, long startFrame) {
+                ordered[0] &= startFrame == expectedFrame[0] && data[0] == (short) startFrame;
+                expectedFrame[0] += length;
+            }
+        });
+        pipeline.start();
+        pipeline.join();
+        assertTrue(ordered[0]);
+        assertEquals(10000, expectedFrame[0]);
+        assertEquals(0, pipeline.getOverrunCount());
+        // only the last read is short
+        assertEquals(1, pipeline.getUnderrunCount());
+    }
+
+    @Test
+    public void countsDroppedBlocksWhenProcessingIsSlow() throws InterruptedException {
+        final long[] processed = {0};
+        PcmFileSource source = rampSource(64 * 256, 256);
+        source.start();
+        AudioPipeline pipeline = new AudioPipeline(source, 256, 2, new AudioPipeline.BlockProcessor() {
+            @Override
+            public void process(short[] data, int length, long startFrame) {
+                processed[0] += length;
+                try{
+                    Thread.sleep(5);
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        pipeline.start();
+        pipeline.join();
+        assertTrue(pipeline.getOverrunCount() > 0);
+        assertEquals(64 * 256, processed[0] + pipeline.getDroppedSamples());
+    }
+
+    @Test
+    public void processesTheBlockOfAReadBlockedAtStop() throws InterruptedException {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final long[] processed = {0};
+        // the first read blocks until the pipeline was stopped, then returns a block
+        AudioSource source = new SyntheticPulseSource(8000, 256, 1) {
+            @Override
+            public int read(short[] buf, int offset, int len) {
+                reading.countDown();
+                try{
+                    stopped.await();
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                }
+                return len;
+            }
+        };
+        AudioPipeline pipeline = new AudioPipeline(source, 256, 4, new AudioPipeline.BlockProcessor() {
+            @Override
+            public void process(short[] data, int length, long startFrame) {
+                processed[0] += length;
+            }
+        });
+        pipeline.start();
+        reading.await();
+        pipeline.stop();
+        // the processing thread would have quit by now without waiting for capture
+        Thread.sleep(50);
+        stopped.countDown();
+        pipeline.join();
+        assertEquals(256, processed[0]);
+    }
+
+    @Test
+    public void spscQueueIsBounded() {
+        SpscQueue<Integer> queue = new SpscQueue<>(2);
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(3));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,81 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class CalibrationTest {
+
+    @Test
+    public void fitsPolynomialThroughPoints(){
+        double[] cps = {1, 5, 10, 20, 40};
+        double[] rates = new double[cps.length];
+        for(int i = 0; i < cps.length; i++){
+            rates[i] = 0.02 * cps[i] * cps[i] + 3 * cps[i] + 8;
+        }
+        Calibration calibration = CalibrationFitter.fit(Calibration.Model.POLYNOMIAL, cps, rates);
+        assertEquals(0.02, calibration.getCoefficient(0), 1e-9);
+        assertEquals(3, calibration.getCoefficient(1), 1e-9);
+        assertEquals(8, calibration.getCoefficient(2), 1e-9);
+        assertEquals(5, calibration.getPointCount());
+
+        // points at a single rate fit a proportional response
+        Calibration single = CalibrationFitter.fit(Calibration.Model.POLYNOMIAL, new double[]{2, 2}, new double[]{10, 12});
+        assertEquals(5.5, single.evaluate(1), 1e-9);
+    }
+
+    @Test
+    public void fitsDeadTimeModel(){
+        double[] cps = {2, 50, 200, 400, 600};
+        double[] rates = new double[cps.length];
+        for(int i = 0; i < cps.length; i++){
+            rates[i] = 1.5 * cps[i] / (1 - cps[i] * 300e-6) + 12;
+        }
+        Calibration calibration = CalibrationFitter.fit(Calibration.Model.DEAD_TIME, cps, rates);
+        assertEquals(1.5, calibration.getCoefficient(0), 1e-4);
+        assertEquals(300e-6, calibration.getCoefficient(1), 1e-8);
+        assertEquals(12, calibration.getCoefficient(2), 1e-2);
+        assertEquals(1 / 300e-6, calibration.getPoleCps(), 1);
+    }
+
+    @Test
+    public void tableFollowsModel(){
+        Calibration calibration = new Calibration(Calibration.Model.DEAD_TIME,
+                new double[]{1.5, 300e-6, 12}, new double[]{100}, new double[]{170});
+        CalibrationTable table = new CalibrationTable(calibration);
+        for(double cps = 0; cps < 2000; cps += 7.3){
+            double expected = calibration.evaluate(cps);
+            assertEquals(expected, table.toDoseRate(cps), expected * 1e-4);
+        }
+        assertFalse(CalibrationTable.NONE.isCalibrated());
+        assertEquals(0, CalibrationTable.NONE.toDoseRate(50), 0);
+    }
+
+    @Test
+    public void savedFormatRoundTrips() throws IOException {
+        Calibration calibration = CalibrationFitter.fit(Calibration.Model.DEAD_TIME,
+                new double[]{10, 100, 500}, new double[]{20, 210, 1300});
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        calibration.writeTo(new DataOutputStream(bytes));
+        byte[] saved = bytes.toByteArray();
+        Calibration read = Calibration.readFrom(new DataInputStream(new ByteArrayInputStream(saved)));
+        assertEquals(Calibration.Model.DEAD_TIME, read.getModel());
+        assertEquals(3, read.getPointCount());
+        assertEquals(calibration.evaluate(250), read.evaluate(250), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesOtherVersions() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Calibration.polynomial(0, 1, 0).writeTo(new DataOutputStream(bytes));
+        byte[] saved = bytes.toByteArray();
+        saved[3] = 9;
+        Calibration.readFrom(new DataInputStream(new ByteArrayInputStream(saved)));
+    }
+}
@@ -0,0 +1,77 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChannelCombinerTest {
+
+    private final List<Long> pulses = new ArrayList<>();
+    private final PulseSink sink = new PulseSink() {
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            pulses.add(sampleIndex);
+        }
+    };
+
+    @Test
+    public void sumMergesChannelsInOrder(){
+        ChannelCombiner combiner = new ChannelCombiner();
+        combiner.add(0, 10);
+        combiner.add(0, 50);
+        combiner.add(1, 5);
+        combiner.add(1, 30);
+        combiner.add(1, 60);
+        combiner.flush(100, sink);
+        assertEquals(5, pulses.size());
+        long[] expected = {5, 10, 30, 50, 60};
+        for(int i = 0; i < expected.length; i++){
+            assertEquals(expected[i], (long) pulses.get(i));
+        }
+    }
+
+    @Test
+    public void coincidenceMatchesAcrossBlocks(){
+        ChannelCombiner combiner = new ChannelCombiner();
+        combiner.setMode(ChannelCombiner.Mode.COINCIDENCE);
+        combiner.setWindowSamples(4);
+        combiner.add(0, 10);
+        combiner.add(1, 12);
+        // alone
+        combiner.add(0, 40);
+        // its partner comes in the next block
+        combiner.add(0, 98);
+        combiner.flush(100, sink);
+        assertEquals(1, pulses.size());
+        assertEquals(12, (long) pulses.get(0));
+
+        combiner.add(1, 101);
+        combiner.flush(200, sink);
+        assertEquals(2, pulses.size());
+        assertEquals(101, (long) pulses.get(1));
+    }
+
+    @Test
+    public void anticoincidenceVetoesAcrossBlocks(){
+        ChannelCombiner combiner = new ChannelCombiner();
+        combiner.setMode(ChannelCombiner.Mode.ANTICOINCIDENCE);
+        combiner.setWindowSamples(4);
+        combiner.add(0, 10);
+        combiner.add(0, 50);
+        combiner.add(1, 52);
+        combiner.add(0, 98);
+        combiner.add(0, 99);
+        combiner.flush(100, sink);
+        assertEquals(1, pulses.size());
+        assertEquals(10, (long) pulses.get(0));
+
+        // vetoes 99 from the previous block, not 98 which is 5 away
+        combiner.add(1, 103);
+        combiner.flush(200, sink);
+        assertEquals(2, pulses.size());
+        assertEquals(98, (long) pulses.get(1));
+    }
+}
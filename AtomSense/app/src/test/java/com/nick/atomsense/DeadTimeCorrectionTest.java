@@ -0,0 +1,59 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeadTimeCorrectionTest {
+
+    private static final double TAU = 100e-6;
+
+    @Test
+    public void invertsNonParalyzableModel() {
+        DeadTimeCorrection correction = new DeadTimeCorrection(DeadTimeCorrection.Model.NON_PARALYZABLE, TAU);
+        for(double trueCps : new double[]{1, 100, 1000, 5000}){
+            double measured = trueCps / (1 + trueCps * TAU);
+            assertEquals(trueCps, correction.correct(measured), trueCps * 1e-9);
+        }
+    }
+
+    @Test
+    public void invertsParalyzableModelOnLowerBranch() {
+        DeadTimeCorrection correction = new DeadTimeCorrection(DeadTimeCorrection.Model.PARALYZABLE, TAU);
+        for(double trueCps : new double[]{1, 100, 1000, 5000, 9000}){
+            double measured = trueCps * Math.exp(-trueCps * TAU);
+            assertEquals(trueCps, correction.correct(measured), trueCps * 1e-6);
+        }
+    }
+
+    @Test
+    public void detectsSaturation() {
+        DeadTimeCorrection paralyzable = new DeadTimeCorrection(DeadTimeCorrection.Model.PARALYZABLE, TAU);
+        // the paralyzable counter can not report more than 1 / (e * tau)
+        assertEquals(Math.exp(-1) / TAU, paralyzable.getMaxMeasurableCps(), 1e-6);
+        assertFalse(paralyzable.isSaturated(2000));
+        assertTrue(paralyzable.isSaturated(3600));
+
+        DeadTimeCorrection none = new DeadTimeCorrection(DeadTimeCorrection.Model.NONE, TAU);
+        assertEquals(8000, none.correct(8000), 0);
+        assertTrue(none.isSaturated(9500));
+        assertFalse(DeadTimeCorrection.NONE.isSaturated(1e9));
+    }
+
+    @Test
+    public void estimatorFindsDeadTimeFromIntervals() {
+        RateEstimator estimator = new RateEstimator();
+        Random random = new Random(5);
+        double cps = 2000;
+        long time = 0;
+        for(int i = 0; i < 100000; i++){
+            double interval = TAU - Math.log(1 - random.nextDouble()) / cps;
+            time += (long) (interval * SampleClock.NANOS_PER_SECOND);
+            estimator.onPulse(time);
+        }
+        estimator.publish(time);
+        assertEquals(TAU, estimator.getSnapshot().getDeadTimeEstimateSeconds(), TAU * 0.1);
+    }
+}
@@ -0,0 +1,135 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DoseIntegratorTest {
+
+    private static final long SECOND = SampleClock.NANOS_PER_SECOND;
+
+    @Test
+    public void integratesCalibratedRatePerInterval(){
+        DoseIntegrator integrator = new DoseIntegrator();
+        // 1 µR/h per CPS plus 10 µR/h background
+        integrator.setCalibration(new CalibrationTable(Calibration.polynomial(0, 1, 10)));
+        // 3600 s of 26 CPS: 36 µR/h for an hour
+        for(long second = 0; second < 3600; second++){
+            for(int i = 0; i < 26; i++){
+                integrator.onPulse(second * SECOND + i * (SECOND / 26));
+            }
+            integrator.update((second + 1) * SECOND - 1, 260, 10);
+        }
+        integrator.update(3600 * SECOND, 260, 10);
+        assertEquals(36, integrator.getDose(), 0.01);
+        assertEquals(36, integrator.getRate(), 1e-9);
+
+        // uncalibrated the dose is the count
+        integrator.setCalibration(CalibrationTable.NONE);
+        integrator.resetDose();
+        for(int i = 0; i < 50; i++){
+            integrator.onPulse(3600 * SECOND + i * (SECOND / 10));
+        }
+        integrator.update(3605 * SECOND, 100, 10);
+        assertEquals(50, integrator.getDose(), 1e-6);
+    }
+
+    @Test
+    public void raisesAlarmsInTheCrossingBlock(){
+        DoseIntegrator integrator = new DoseIntegrator();
+        integrator.setThresholds(100, 1000);
+        final List<String> alarms = new ArrayList<>();
+        integrator.setListener(new DoseIntegrator.Listener() {
+            @Override
+            public void onAlarm(int kind, boolean active) {
+                alarms.add(kind + ":" + active);
+            }
+        });
+        long block = SECOND / 50;
+        integrator.update(0, 500, 10);
+        integrator.update(block, 990, 10);
+        assertTrue(alarms.isEmpty());
+        integrator.update(2 * block, 1000, 10);
+        assertEquals("0:true", alarms.get(0));
+        // stays on inside the hysteresis
+        integrator.update(3 * block, 950, 10);
+        assertEquals(1, alarms.size());
+        integrator.update(4 * block, 800, 10);
+        assertEquals("0:false", alarms.get(1));
+
+        // 1000 counts at 200 CPS cross the dose threshold after 5 s
+        integrator.setThresholds(0, 1000);
+        alarms.clear();
+        integrator.resetDose();
+        long start = 10 * SECOND;
+        long now = start;
+        while(alarms.isEmpty()){
+            now += block;
+            for(int i = 0; i < 4; i++){
+                integrator.onPulse(now - block + i * (block / 4));
+            }
+            integrator.update(now, 2000, 10);
+        }
+        assertEquals("1:true", alarms.get(0));
+        assertEquals(5 * SECOND, now - start, block);
+        // latched until the dose is reset
+        integrator.update(now + block, 0, 10);
+        assertEquals(1, alarms.size());
+        integrator.resetDose();
+        integrator.update(now + 2 * block, 0, 10);
+        assertEquals("1:false", alarms.get(1));
+    }
+
+    @Test
+    public void continuesSavedDoseAcrossRestart(){
+        DoseIntegrator integrator = new DoseIntegrator();
+        integrator.setDose(500);
+        for(int i = 0; i < 10; i++){
+            integrator.onPulse(i * (SECOND / 20));
+        }
+        integrator.update(SECOND / 2, 200, 10);
+        // a new session starts later on the clock, the half second is kept
+        integrator.restart();
+        integrator.update(100 * SECOND, 0, 10);
+        assertEquals(510, integrator.getDose(), 1e-6);
+    }
+
+    @Test
+    public void waitsForTheShortWindowToSettle(){
+        DoseIntegrator integrator = new DoseIntegrator();
+        integrator.setThresholds(10, 0);
+        final List<String> alarms = new ArrayList<>();
+        integrator.setListener(new DoseIntegrator.Listener() {
+            @Override
+            public void onAlarm(int kind, boolean active) {
+                alarms.add(kind + ":" + active);
+            }
+        });
+        long block = SECOND / 50;
+        // the first pulse 5 ms before the first block ends, 200 CPS over 5 ms
+        integrator.onPulse(block - SECOND / 200);
+        integrator.update(block, 1, 0.005f);
+        assertTrue(alarms.isEmpty());
+        assertEquals(0, integrator.getRate(), 0);
+        assertEquals(0, integrator.getDose(), 0);
+        // a second on it is 1 CPS
+        integrator.update(block + SECOND, 1, 1.005f);
+        assertTrue(alarms.isEmpty());
+        assertEquals(1, integrator.getRate(), 0.01);
+    }
+
+    @Test
+    public void extrapolatesAPauseAtTheGivenRate(){
+        DoseIntegrator integrator = new DoseIntegrator();
+        integrator.setCalibration(new CalibrationTable(Calibration.polynomial(0, 1, 10)));
+        // a burst in the short window before the pause
+        integrator.update(SECOND, 100, 10);
+        assertEquals(20, integrator.getRate(), 1e-9);
+        // an hour at the survey rate of 2 CPS, not at the burst
+        integrator.extrapolate(3600, 2);
+        assertEquals(12, integrator.getDose(), 0.1);
+    }
+}
@@ -0,0 +1,54 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DutyCycleTest {
+
+    private static final long SECOND = SampleClock.NANOS_PER_SECOND;
+
+    @Test
+    public void sleepFollowsRateAndError(){
+        // 10 %: 100 counts per 10 min period
+        DutyCycle low = new DutyCycle(30 * SECOND, 600 * SECOND, 10);
+        // 0.5 CPS needs 200 s of each 600, one 30 s window in 90 s
+        assertEquals(60 * SECOND, low.onWindow(15, 30 * SECOND), SECOND / 1000);
+        assertEquals(0.5, low.getSurveyCps(), 1e-9);
+
+        // 20 CPS has its counts in 5 s, one window per period
+        DutyCycle high = new DutyCycle(30 * SECOND, 600 * SECOND, 10);
+        assertEquals(570 * SECOND, high.onWindow(600, 30 * SECOND));
+
+        // until there are counts the rate is unknown and it records on
+        DutyCycle quiet = new DutyCycle(30 * SECOND, 600 * SECOND, 10);
+        assertEquals(0, quiet.onWindow(3, 30 * SECOND));
+    }
+
+    @Test
+    public void riseRecordsContinuously(){
+        DutyCycle dutyCycle = new DutyCycle(30 * SECOND, 600 * SECOND, 10);
+        for(int i = 0; i < 10; i++){
+            assertTrue(dutyCycle.onWindow(15, 30 * SECOND) > 0);
+        }
+        // 60 against 15 ± 3.9
+        assertEquals(0, dutyCycle.onWindow(60, 30 * SECOND));
+        assertTrue(dutyCycle.isRising());
+        assertEquals(0.5, dutyCycle.getSurveyCps(), 1e-9);
+        // back down
+        assertTrue(dutyCycle.onWindow(16, 30 * SECOND) > 0);
+        assertFalse(dutyCycle.isRising());
+
+        // up for a whole period, that is the new survey rate
+        for(int i = 0; i < 19; i++){
+            assertEquals(0, dutyCycle.onWindow(60, 30 * SECOND));
+        }
+        assertTrue(dutyCycle.onWindow(60, 30 * SECOND) > 0);
+        assertEquals(2, dutyCycle.getSurveyCps(), 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWindowLongerThanPeriod(){
+        new DutyCycle(600 * SECOND, 30 * SECOND, 10);
+    }
+}
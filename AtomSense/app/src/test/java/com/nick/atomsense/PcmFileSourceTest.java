@@ -0,0 +1,55 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PcmFileSourceTest {
+
+    private static byte[] wav(int sampleRate, short[] samples) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("RIFF");
+        out.writeInt(Integer.reverseBytes(36 + samples.length * 2));
+        out.writeBytes("WAVE");
+        out.writeBytes("fmt ");
+        out.writeInt(Integer.reverseBytes(16));
+        out.writeShort(Short.reverseBytes((short) 1));
+        out.writeShort(Short.reverseBytes((short) 1));
+        out.writeInt(Integer.reverseBytes(sampleRate));
+        out.writeInt(Integer.reverseBytes(sampleRate * 2));
+        out.writeShort(Short.reverseBytes((short) 2));
+        out.writeShort(Short.reverseBytes((short) 16));
+        out.writeBytes("data");
+        out.writeInt(Integer.reverseBytes(samples.length * 2));
+        for(short sample : samples){
+            out.writeShort(Short.reverseBytes(sample));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void replaysWavSamples() throws IOException {
+        short[] samples = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 1234};
+        PcmFileSource source = PcmFileSource.fromWav(new ByteArrayInputStream(wav(44100, samples)), 4);
+        assertEquals(44100, source.getSampleRate());
+        source.start();
+        short[] buf = new short[4];
+        assertEquals(4, source.read(buf, 0, buf.length));
+        assertArrayEquals(new short[]{0, 1, -1, Short.MAX_VALUE}, buf);
+        assertEquals(2, source.read(buf, 0, buf.length));
+        assertEquals(Short.MIN_VALUE, buf[0]);
+        assertEquals(1234, buf[1]);
+        assertEquals(-1, source.read(buf, 0, buf.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNonWavInput() throws IOException {
+        PcmFileSource.fromWav(new ByteArrayInputStream(new byte[64]), 4);
+    }
+}
@@ -0,0 +1,296 @@
+package com.nick.atomsense;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class PulseLogTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("pulselog").toFile();
+    }
+
+    @After
+    public void tearDown(){
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static long[] readAll(File directory) throws IOException {
+        PulseLogReader reader = new PulseLogReader(directory);
+        long[] timestamps = new long[16];
+        int count = 0;
+        while(reader.next()){
+            if(count == timestamps.length){
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+            }
+            timestamps[count++] = reader.getTimestamp();
+        }
+        reader.close();
+        return Arrays.copyOf(timestamps, count);
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        PulseLog log = new PulseLog(directory, 64, PulseLog.SyncPolicy.ALWAYS, 0);
+        log.open();
+        log.startSession(5000000000L, 1600000000000L);
+        // gaps from 0 to 2 hours
+        long[] timestamps = {5000001000L, 5000001000L, 5000250000L, 5000250000L + 7200000000000L, 5000250000L + 7200000001000L};
+        for(int i = 0; i < 40; i++){
+            for(long timestamp : timestamps){
+                log.append(timestamp + i * 7200000002000L);
+            }
+            log.commit();
+        }
+        log.close();
+
+        long[] read = readAll(directory);
+        assertEquals(200, read.length);
+        for(int i = 0; i < 40; i++){
+            for(int k = 0; k < timestamps.length; k++){
+                assertEquals(timestamps[k] + i * 7200000002000L, read[i * timestamps.length + k]);
+            }
+        }
+        // 64 byte segments had to roll over
+        assertTrue(PulseLog.listSegments(directory).length > 5);
+        assertEquals(0, log.getDroppedPulses());
+    }
+
+    @Test
+    public void convertsToWallClock() throws Exception {
+        PulseLog log = new PulseLog(directory);
+        log.open();
+        log.startSession(1000000000L, 1600000000000L);
+        log.append(1250000000L);
+        log.commit();
+        log.startSession(9000000000L, 1600000100000L);
+        log.append(9000500000L);
+        log.commit();
+        log.close();
+
+        PulseLogReader reader = new PulseLogReader(directory);
+        assertTrue(reader.next());
+        assertTrue(reader.isNewSession());
+        assertEquals(1600000000250L, reader.getWallClockMillis());
+        assertTrue(reader.next());
+        assertTrue(reader.isNewSession());
+        assertEquals(1600000100000500L, reader.getWallClockMicros());
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void recoversCommittedPulsesOfUnsealedSegment() throws Exception {
+        // a segment as a killed writer leaves it: preallocated, unsealed,
+        // with records beyond the committed length and none pending
+        File file = new File(directory, PulseLog.segmentName(3));
+        ByteBuffer segment = ByteBuffer.allocate(PulseLog.HEADER_BYTES + 1024).order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(PulseLog.OFFSET_MAGIC, PulseLog.MAGIC);
+        segment.putInt(PulseLog.OFFSET_VERSION, PulseLog.VERSION);
+        segment.putLong(PulseLog.OFFSET_BASE_MICROS, 100);
+        segment.position(PulseLog.HEADER_BYTES);
+        PulseTimeCodec.Encoder encoder = new PulseTimeCodec.Encoder(100);
+        encoder.encode(segment, 110);
+        encoder.encode(segment, 130);
+        int committed = segment.position() - PulseLog.HEADER_BYTES;
+        encoder.encode(segment, 160);
+        segment.putLong(PulseLog.OFFSET_COMMITTED_BYTES, committed);
+        segment.putLong(PulseLog.OFFSET_COMMITTED_PULSES, 2);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(segment.array());
+        raf.close();
+
+        PulseLog log = new PulseLog(directory);
+        log.open();
+        assertEquals(PulseLog.HEADER_BYTES + committed, file.length());
+        log.startSession(0, 0);
+        log.append(500000);
+        log.commit();
+        log.close();
+
+        assertArrayEquals(new long[]{110000, 130000, 500000}, readAll(directory));
+        File[] segments = PulseLog.listSegments(directory);
+        assertEquals(2, segments.length);
+        assertEquals(4, PulseLog.segmentIndex(segments[1]));
+    }
+
+    // an unsealed segment: 2 pulses committed, then 2 pending
+    // whose checksum is in the header; writtenRecords false leaves the
+    // pending records zero, as after a power loss that kept the header page
+    private File pendingSegment(boolean writtenRecords) throws IOException {
+        File file = new File(directory, PulseLog.segmentName(0));
+        ByteBuffer segment = ByteBuffer.allocate(PulseLog.HEADER_BYTES + 1024).order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(PulseLog.OFFSET_MAGIC, PulseLog.MAGIC);
+        segment.putInt(PulseLog.OFFSET_VERSION, PulseLog.VERSION);
+        segment.position(PulseLog.HEADER_BYTES);
+        PulseTimeCodec.Encoder encoder = new PulseTimeCodec.Encoder(0);
+        encoder.encode(segment, 1000);
+        encoder.encode(segment, 2000);
+        int committed = segment.position() - PulseLog.HEADER_BYTES;
+        encoder.encode(segment, 300000);
+        encoder.encode(segment, 300001);
+        int pending = segment.position() - PulseLog.HEADER_BYTES;
+        CRC32 checksum = new CRC32();
+        checksum.update(segment.array(), PulseLog.HEADER_BYTES + committed, pending - committed);
+        if(!writtenRecords){
+            Arrays.fill(segment.array(), PulseLog.HEADER_BYTES + committed, PulseLog.HEADER_BYTES + pending, (byte) 0);
+        }
+        segment.putLong(PulseLog.OFFSET_COMMITTED_BYTES, committed);
+        segment.putLong(PulseLog.OFFSET_COMMITTED_PULSES, 2);
+        segment.putInt(PulseLog.OFFSET_PENDING_CHECKSUM, (int) checksum.getValue());
+        segment.putLong(PulseLog.OFFSET_PENDING_BYTES, pending);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(segment.array());
+        raf.close();
+        return file;
+    }
+
+    @Test
+    public void recoversPendingRecordsWhichReachedTheFile() throws Exception {
+        pendingSegment(true);
+        PulseLog.recover(new File(directory, PulseLog.segmentName(0)));
+        assertArrayEquals(new long[]{1000000, 2000000, 300000000, 300001000}, readAll(directory));
+    }
+
+    @Test
+    public void dropsPendingRecordsLostWithPower() throws Exception {
+        File file = pendingSegment(false);
+        PulseLog.recover(file);
+        // not zero deltas at the last timestamp
+        assertArrayEquals(new long[]{1000000, 2000000}, readAll(directory));
+    }
+
+    @Test
+    public void findsTheSegmentOfATime() throws Exception {
+        PulseLog log = new PulseLog(directory, 64, PulseLog.SyncPolicy.NEVER, 0);
+        log.open();
+        log.startSession(0, 1600000000000L);
+        for(int i = 0; i < 300; i++){
+            log.append(i * 1000000000L);
+        }
+        log.commit();
+        log.close();
+        assertTrue(PulseLog.listSegments(directory).length > 10);
+
+        assertEquals(0, PulseLogReader.segmentAt(directory, 1599999999000L));
+        int segment = PulseLogReader.segmentAt(directory, 1600000100500L);
+        assertTrue(segment > 0);
+        // the segment starts at or before 100.5 s, the next one after it
+        PulseLogReader reader = new PulseLogReader(directory, segment);
+        assertTrue(reader.next());
+        assertTrue(reader.getWallClockMillis() <= 1600000100500L);
+        reader.close();
+        reader = new PulseLogReader(directory, segment + 1);
+        assertTrue(reader.next());
+        assertTrue(reader.getWallClockMillis() > 1600000100500L);
+        reader.close();
+    }
+
+    @Test
+    public void keepsRollupIndexAcrossRuns() throws Exception {
+        PulseLog log = new PulseLog(directory);
+        log.open();
+        log.startSession(0, 1600000000000L);
+        for(int i = 0; i < 3000; i++){
+            log.append(i * 100000000L);
+        }
+        log.commit();
+        log.close();
+        assertEquals(3000, log.getRollupIndex().getTotalCount());
+        assertEquals(10, log.getRollupIndex().count(1600000000000L, 1600000001000L));
+        assertTrue(new File(directory, PulseLog.ROLLUP_FILE).exists());
+
+        // loaded from the file and continued
+        log = new PulseLog(directory);
+        log.open();
+        log.startSession(0, 1600001000000L);
+        log.append(0);
+        log.commit();
+        log.close();
+        assertEquals(3001, log.getRollupIndex().getTotalCount());
+
+        // rebuilt from the segments
+        assertTrue(new File(directory, PulseLog.ROLLUP_FILE).delete());
+        log = new PulseLog(directory);
+        log.open();
+        log.close();
+        assertEquals(3001, log.getRollupIndex().getTotalCount());
+        assertEquals(1, log.getRollupIndex().count(1600001000000L, 1600001001000L));
+    }
+
+    @Test
+    public void keepsGapsAcrossRuns() throws Exception {
+        PulseLog log = new PulseLog(directory);
+        log.open();
+        log.startSession(0, 1600000000000L);
+        // 30 s at 2 CPS, a 90 s sleep, 30 s more
+        for(int i = 0; i < 60; i++){
+            log.append(i * 500000000L);
+        }
+        log.addGap(30000000000L, 120000000000L);
+        for(int i = 0; i < 60; i++){
+            log.append(120000000000L + i * 500000000L);
+        }
+        log.commit();
+        log.close();
+        RollupIndex index = log.getRollupIndex();
+        assertEquals(2.0, index.getAverageCps(1600000000000L, 1600000150000L), 1e-9);
+
+        log = new PulseLog(directory);
+        log.open();
+        log.close();
+        index = log.getRollupIndex();
+        assertEquals(60, index.getRecordedSeconds(1600000000000L, 1600000150000L), 1e-9);
+        assertEquals(2.0, index.getCps(RollupIndex.MINUTES, 1), 1e-9);
+    }
+
+    @Test
+    public void journalsTheIndexBetweenFullSaves() throws Exception {
+        // a seal every few dozen pulses
+        PulseLog log = new PulseLog(directory, 64, PulseLog.SyncPolicy.NEVER, 0);
+        log.open();
+        log.startSession(0, 1600000000000L);
+        for(int i = 0; i < 2000; i++){
+            log.append(i * 1000000000L);
+        }
+        log.commit();
+        log.close();
+        File journal = new File(directory, PulseLog.ROLLUP_JOURNAL);
+        long journalLength = journal.length();
+        assertTrue(journalLength > 0);
+        // the full copy was written once, while it was still small
+        assertTrue(new File(directory, PulseLog.ROLLUP_FILE).length() < journalLength);
+
+        // a record torn by a crash is cut off
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        raf.seek(journalLength);
+        raf.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        raf.close();
+        log = new PulseLog(directory, 64, PulseLog.SyncPolicy.NEVER, 0);
+        log.open();
+        log.close();
+        assertEquals(2000, log.getRollupIndex().getTotalCount());
+        assertEquals(1, log.getRollupIndex().getMaxCps(1600000000000L, 1600002000000L));
+        assertEquals(journalLength, journal.length());
+    }
+}
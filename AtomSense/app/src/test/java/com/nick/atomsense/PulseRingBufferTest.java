@@ -0,0 +1,67 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PulseRingBufferTest {
+
+    @Test
+    public void keepsTotalCountAfterOverwrite() {
+        PulseRingBuffer buffer = new PulseRingBuffer(8);
+        for(long t = 100; t < 120; t++){
+            buffer.add(t);
+        }
+        assertEquals(20, buffer.getTotalCount());
+        assertEquals(12, buffer.getOverflowCount());
+        assertEquals(8, buffer.size());
+        assertEquals(100, buffer.getFirstTimestamp());
+        assertEquals(119, buffer.getLastTimestamp());
+    }
+
+    @Test
+    public void readsLatestWindowOldestFirst() {
+        PulseRingBuffer buffer = new PulseRingBuffer(8);
+        for(long t = 0; t < 10; t++){
+            buffer.add(t);
+        }
+        long[] window = new long[4];
+        assertEquals(4, buffer.readLatest(window));
+        assertArrayEquals(new long[]{6, 7, 8, 9}, window);
+
+        long[] all = new long[16];
+        assertEquals(8, buffer.readLatest(all));
+        assertEquals(2, all[0]);
+        assertEquals(9, all[7]);
+    }
+
+    @Test
+    public void countsPulsesSince() {
+        PulseRingBuffer buffer = new PulseRingBuffer(16);
+        for(long t = 0; t < 10; t++){
+            buffer.add(t * 10);
+        }
+        assertEquals(10, buffer.countSince(0));
+        assertEquals(5, buffer.countSince(50));
+        assertEquals(4, buffer.countSince(51));
+        assertEquals(0, buffer.countSince(1000));
+    }
+
+    @Test
+    public void clearIsAppliedByProducer() {
+        PulseRingBuffer buffer = new PulseRingBuffer(8);
+        buffer.add(1);
+        buffer.add(2);
+        buffer.clear();
+        assertEquals(0, buffer.getTotalCount());
+        assertEquals(0, buffer.readLatest(new long[8]));
+        buffer.add(5);
+        assertEquals(1, buffer.getTotalCount());
+        assertEquals(5, buffer.getFirstTimestamp());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityThatIsNotPowerOfTwo() {
+        new PulseRingBuffer(10);
+    }
+}
@@ -0,0 +1,124 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PulseShapeAnalyzerTest {
+
+    @Test
+    public void histogramCountsBinsAndOutliers(){
+        Histogram histogram = new Histogram(4, 10, 5);
+        for(double value : new double[]{9.9, 10, 14.9, 15, 29.9, 30}){
+            histogram.add(value);
+        }
+        assertEquals(6, histogram.getTotal());
+        assertEquals(1, histogram.getUnderflow());
+        assertEquals(1, histogram.getOverflow());
+        int[] counts = new int[4];
+        assertEquals(6, histogram.copyTo(counts));
+        assertArrayEquals(new int[]{2, 1, 0, 1}, counts);
+        assertEquals(12.5, histogram.getBinCenter(0), 1e-9);
+
+        histogram.requestClear();
+        // empty to readers before the writer gets to it
+        assertEquals(0, histogram.getTotal());
+        assertEquals(0, histogram.copyTo(counts));
+        assertArrayEquals(new int[]{0, 0, 0, 0}, counts);
+        histogram.add(11);
+        assertEquals(1, histogram.getClears());
+        assertEquals(1, histogram.getTotal());
+        assertEquals(0, histogram.getUnderflow());
+        histogram.copyTo(counts);
+        assertArrayEquals(new int[]{1, 0, 0, 0}, counts);
+    }
+
+    @Test
+    public void measuresPeakRiseAndWidth(){
+        PulseShapeAnalyzer analyzer = new PulseShapeAnalyzer();
+        short[] buf = {0, 0, 500, 4000, 8000, 10000, 7000, 4000, 2000, 500, 0, 0};
+        // triggered at 3 with a level of 3000
+        analyzer.analyze(buf, 3, buf.length, (short) 3000);
+        // its window runs past the block, it is measured with the next one
+        analyzer.endBlock(buf, buf.length);
+        analyzer.endBlock(new short[8], 8);
+        assertEquals(10000, analyzer.getPeak());
+        // from the last sample at or below 1000, 2, to the peak at 5
+        assertEquals(3, analyzer.getRiseSamples());
+        // above 5000: 4 to 6
+        assertEquals(3, analyzer.getWidthSamples());
+        assertEquals(1, analyzer.getHistogram(PulseShapeAnalyzer.AMPLITUDE).getTotal());
+        assertEquals(1, analyzer.getHistogram(PulseShapeAnalyzer.WIDTH).getCount(3));
+    }
+
+    @Test
+    public void measuresPulsesAcrossBlocks(){
+        PulseShapeAnalyzer analyzer = new PulseShapeAnalyzer();
+        short[] pulse = {0, 0, 500, 4000, 8000, 10000, 7000, 4000, 2000, 500, 0, 0};
+        // the pulse starts at the end of a block, triggered at its last sample
+        short[] first = new short[1000];
+        short[] second = new short[1000];
+        System.arraycopy(pulse, 0, first, first.length - 4, 4);
+        System.arraycopy(pulse, 4, second, 0, pulse.length - 4);
+        analyzer.analyze(first, first.length - 1, first.length, (short) 3000);
+        analyzer.endBlock(first, first.length);
+        assertEquals(0, analyzer.getHistogram(PulseShapeAnalyzer.AMPLITUDE).getTotal());
+        analyzer.endBlock(second, second.length);
+        assertEquals(1, analyzer.getHistogram(PulseShapeAnalyzer.AMPLITUDE).getTotal());
+        assertEquals(10000, analyzer.getPeak());
+        assertEquals(3, analyzer.getRiseSamples());
+        assertEquals(3, analyzer.getWidthSamples());
+
+        // triggered at the start of a block, its foot is in the previous one
+        short[] third = new short[1000];
+        System.arraycopy(pulse, 0, second, second.length - 2, 2);
+        second[second.length - 1] = 500;
+        System.arraycopy(pulse, 3, third, 0, pulse.length - 3);
+        analyzer.endBlock(second, second.length);
+        analyzer.analyze(third, 0, third.length, (short) 3000);
+        assertEquals(3, analyzer.getRiseSamples());
+        assertEquals(3, analyzer.getWidthSamples());
+
+        // waiting across dropped blocks, it is left out
+        analyzer.analyze(third, third.length - 1, third.length, (short) 3000);
+        analyzer.endBlock(third, third.length);
+        analyzer.skip();
+        assertEquals(1, analyzer.getCutPulses());
+        assertEquals(2, analyzer.getHistogram(PulseShapeAnalyzer.AMPLITUDE).getTotal());
+    }
+
+    @Test
+    public void amplitudeSpectrumPeaksAtPulseHeight(){
+        SyntheticPulseSource source = new SyntheticPulseSource(48000, 4800, 11);
+        source.setCps(200);
+        source.setAmplitude(16000, 0.05);
+        // slow enough that the peak is sampled
+        source.setPulseShape(50e-6, 300e-6);
+        source.start();
+        final PulseShapeAnalyzer analyzer = new PulseShapeAnalyzer();
+        final ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 4000);
+        detector.setDeadTimeSamples(50);
+        final short[] buf = new short[4800];
+        PulseSink sink = new PulseSink() {
+            @Override
+            public void onPulse(long sampleIndex, int offset) {
+                analyzer.analyze(buf, offset, buf.length, detector.getTriggerLevel());
+            }
+        };
+        for(int i = 0; i < 50; i++){
+            source.read(buf, 0, buf.length);
+            detector.process(buf, buf.length, sink);
+            analyzer.endBlock(buf, buf.length);
+        }
+        Histogram amplitudes = analyzer.getHistogram(PulseShapeAnalyzer.AMPLITUDE);
+        assertTrue(amplitudes.getTotal() > 500);
+        int mode = 0;
+        for(int bin = 1; bin < amplitudes.getBins(); bin++){
+            if(amplitudes.getCount(bin) > amplitudes.getCount(mode)){
+                mode = bin;
+            }
+        }
+        assertEquals(16000, amplitudes.getBinCenter(mode), 1200);
+    }
+}
@@ -0,0 +1,77 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PulseTimeCodecTest {
+
+    // µs pulse times of a Poisson stream
+    private static long[] pulses(int count, double cps, long seed){
+        Random random = new Random(seed);
+        long[] times = new long[count];
+        double t = 1e9;
+        for(int i = 0; i < count; i++){
+            t -= Math.log(1 - random.nextDouble()) / cps * 1e6;
+            times[i] = (long) t;
+        }
+        return times;
+    }
+
+    @Test
+    public void zigZagRoundTrips(){
+        long[] values = {0, 1, -1, 63, -64, Long.MAX_VALUE, Long.MIN_VALUE};
+        for(long value : values){
+            assertEquals(value, PulseTimeCodec.unZigZag(PulseTimeCodec.zigZag(value)));
+        }
+        assertEquals(1, PulseTimeCodec.zigZag(-1));
+        assertEquals(2, PulseTimeCodec.zigZag(1));
+    }
+
+    @Test
+    public void varintStreamRoundTripsWithFewBytesPerPulse(){
+        long[] times = pulses(100000, 50, 1);
+        ByteBuffer buffer = ByteBuffer.allocate(times.length * PulseTimeCodec.MAX_VARINT_BYTES);
+        PulseTimeCodec.Encoder encoder = new PulseTimeCodec.Encoder(1000000000L);
+        for(long time : times){
+            encoder.encode(buffer, time);
+        }
+        // a new session may start earlier
+        encoder.encode(buffer, 5);
+        assertTrue(buffer.position() / (double) times.length < 3);
+
+        buffer.flip();
+        PulseTimeCodec.Decoder decoder = new PulseTimeCodec.Decoder(1000000000L);
+        for(long time : times){
+            assertEquals(time, decoder.decode(buffer));
+        }
+        assertEquals(5, decoder.decode(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void blocksRoundTrip(){
+        long[] times = pulses(1000, 1000, 2);
+        // a jump too wide to be packed
+        times[500] = times[499] + (1L << 60);
+        for(int i = 501; i < times.length; i++){
+            times[i] += 1L << 60;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PulseTimeCodec.maxBlockBytes(PulseTimeCodec.BLOCK_SIZE) * 8);
+        long base = 0;
+        for(int offset = 0; offset < times.length; offset += PulseTimeCodec.BLOCK_SIZE){
+            int count = Math.min(PulseTimeCodec.BLOCK_SIZE, times.length - offset);
+            base = PulseTimeCodec.encodeBlock(buffer, base, times, offset, count);
+        }
+        buffer.flip();
+        PulseTimeCodec.BlockDecoder decoder = new PulseTimeCodec.BlockDecoder(0);
+        for(long time : times){
+            assertTrue(decoder.hasNext(buffer));
+            assertEquals(time, decoder.next(buffer));
+        }
+        assertFalse(decoder.hasNext(buffer));
+    }
+}
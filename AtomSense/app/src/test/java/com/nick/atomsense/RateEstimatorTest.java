@@ -0,0 +1,102 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RateEstimatorTest {
+
+    @Test
+    public void sessionRateAndError() {
+        RateEstimator estimator = new RateEstimator();
+        // 101 pulses, 100 ms apart
+        for(int i = 0; i <= 100; i++){
+            estimator.onPulse(millis(i * 100L));
+        }
+        estimator.publish(millis(10000));
+        RateSnapshot snapshot = estimator.getSnapshot();
+        assertEquals(101, snapshot.getTotalCount());
+        assertEquals(10.1f, snapshot.getCps(), 0.001f);
+        assertEquals(1.96 / Math.sqrt(101) * 100, snapshot.getErrorPercent(), 1e-9);
+    }
+
+    @Test
+    public void slidingWindowsDropOldPulses() {
+        RateEstimator estimator = new RateEstimator();
+        // 5 cps for 30 s, then nothing for 20 s
+        for(int i = 0; i < 150; i++){
+            estimator.onPulse(millis(i * 200L));
+        }
+        estimator.publish(millis(29999));
+        assertEquals(50, estimator.getSnapshot().getShortWindowCount());
+        assertEquals(5f, estimator.getSnapshot().getShortWindowCps(), 0.01f);
+        assertEquals(150, estimator.getSnapshot().getLongWindowCount());
+        assertEquals(5f, estimator.getSnapshot().getLongWindowCps(), 0.01f);
+
+        estimator.publish(millis(50000));
+        RateSnapshot snapshot = estimator.getSnapshot();
+        assertEquals(0, snapshot.getShortWindowCount());
+        assertEquals(150, snapshot.getLongWindowCount());
+        assertEquals(150, snapshot.getTotalCount());
+
+        estimator.publish(millis(200000));
+        assertEquals(0, estimator.getSnapshot().getLongWindowCount());
+    }
+
+    @Test
+    public void resetDropsState() {
+        RateEstimator estimator = new RateEstimator();
+        estimator.onPulse(millis(1000));
+        estimator.onPulse(millis(2000));
+        estimator.reset();
+        assertSame(RateSnapshot.EMPTY, estimator.getSnapshot());
+        estimator.onPulse(millis(5000));
+        estimator.publish(millis(5000));
+        assertEquals(1, estimator.getSnapshot().getTotalCount());
+        assertEquals(millis(5000), estimator.getSnapshot().getFirstTimestamp());
+    }
+
+    @Test
+    public void adaptiveWindowFollowsRateStep() {
+        RateEstimator estimator = new RateEstimator();
+        Random random = new Random(3);
+        // an hour of Poisson background at 0.5 cps
+        long now = poisson(estimator, random, 0, 0.5, 3600);
+        estimator.publish(now);
+        RateSnapshot background = estimator.getSnapshot();
+        assertEquals(0.5, background.getAdaptiveCps(), 0.05);
+        assertTrue(background.getAdaptiveWindowSeconds() > 600);
+
+        // 20 cps from here on: the window restarts within a few seconds
+        long stepAt = now;
+        now = poisson(estimator, random, now, 20, 5);
+        estimator.publish(now);
+        RateSnapshot source = estimator.getSnapshot();
+        assertEquals(20, source.getAdaptiveCps(), 4);
+        assertTrue(source.getAdaptiveWindowSeconds() <= (now - stepAt) / 1e9 + 1);
+        // while the session average still is near the background
+        assertTrue(source.getCps() < 1);
+
+        // the source taken away shows before the next pulse
+        estimator.publish(now + millis(2000));
+        assertTrue(estimator.getSnapshot().getAdaptiveCps() < 5);
+    }
+
+    private static long poisson(RateEstimator estimator, Random random, long start, double cps, int seconds) {
+        long end = start + millis(seconds * 1000L);
+        long t = start;
+        while(true){
+            t += (long) (-Math.log(1 - random.nextDouble()) / cps * 1e9);
+            if(t >= end){
+                return end;
+            }
+            estimator.onPulse(t);
+        }
+    }
+
+    private static long millis(long millis) {
+        return millis * 1000000L;
+    }
+}
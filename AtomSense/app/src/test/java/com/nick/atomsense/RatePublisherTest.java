@@ -0,0 +1,84 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class RatePublisherTest {
+
+    // a UI thread which runs queued work only when told to
+    private static class QueueExecutor implements Executor {
+        final List<Runnable> queue = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+
+        void runAll(){
+            List<Runnable> pending = new ArrayList<>(queue);
+            queue.clear();
+            for(Runnable runnable : pending){
+                runnable.run();
+            }
+        }
+    }
+
+    private static RateSnapshot snapshot(long timestamp){
+        RateEstimator estimator = new RateEstimator();
+        estimator.onPulse(timestamp);
+        estimator.publish(timestamp);
+        return estimator.getSnapshot();
+    }
+
+    @Test
+    public void conflatesUpdatesIntoOneDispatch(){
+        QueueExecutor ui = new QueueExecutor();
+        RatePublisher publisher = new RatePublisher(ui, 1000);
+        final List<RateSnapshot> shown = new ArrayList<>();
+        publisher.setListener(new RatePublisher.Listener() {
+            @Override
+            public void onRate(RateSnapshot snapshot) {
+                shown.add(snapshot);
+            }
+        });
+        RateSnapshot first = snapshot(1);
+        RateSnapshot last = snapshot(2);
+        publisher.publish(first, 0);
+        publisher.publish(snapshot(3), 5000);
+        publisher.publish(last, 10000);
+        // one dispatch queued, it shows the newest
+        assertEquals(1, ui.queue.size());
+        ui.runAll();
+        assertEquals(1, shown.size());
+        assertSame(last, shown.get(0));
+    }
+
+    @Test
+    public void capsDispatchRate(){
+        QueueExecutor ui = new QueueExecutor();
+        RatePublisher publisher = new RatePublisher(ui, 1000);
+        final int[] dispatches = {0};
+        publisher.setListener(new RatePublisher.Listener() {
+            @Override
+            public void onRate(RateSnapshot snapshot) {
+                dispatches[0]++;
+            }
+        });
+        RateSnapshot snapshot = snapshot(1);
+        for(long now = 0; now < 10000; now += 100){
+            publisher.publish(snapshot, now);
+            ui.runAll();
+        }
+        assertEquals(10, dispatches[0]);
+
+        // nothing is queued without a listener
+        publisher.setListener(null);
+        publisher.publish(snapshot, 20000);
+        assertTrue(ui.queue.isEmpty());
+    }
+}
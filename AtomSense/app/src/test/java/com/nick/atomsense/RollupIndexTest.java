@@ -0,0 +1,215 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RollupIndexTest {
+
+    // 2020-09-13 12:00:00 UTC, on an hour boundary
+    private static final long START = 1600000000000L - 1600000000000L % 3600000;
+
+    // rate cps from START for the given number of seconds, evenly spread
+    private static void fill(RollupIndex index, long from, int seconds, int cps){
+        for(int s = 0; s < seconds; s++){
+            for(int k = 0; k < cps; k++){
+                index.add(from + s * 1000L + k * (1000L / cps));
+            }
+        }
+    }
+
+    @Test
+    public void countsArbitraryWindows(){
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 7200, 2);
+        fill(index, START + 7200000, 600, 10);
+
+        assertEquals(7200 * 2 + 600 * 10, index.getTotalCount());
+        assertEquals(7200 * 2, index.count(START, START + 7200000));
+        assertEquals(90 * 2 + 30 * 10, index.count(START + 7110000, START + 7230000));
+        // seconds starting inside [x.5 s, y.5 s)
+        assertEquals(10 * 2, index.count(START + 500, START + 10500));
+        assertEquals(2.0, index.getAverageCps(START + 3600000, START + 7200000), 1e-9);
+        assertEquals(0, index.count(START - 100000, START));
+    }
+
+    @Test
+    public void keepsBucketsPerLevel(){
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 7200, 2);
+        assertEquals(7200, index.size(RollupIndex.SECONDS));
+        assertEquals(120, index.size(RollupIndex.MINUTES));
+        assertEquals(2, index.size(RollupIndex.HOURS));
+        assertEquals(START + 3600000, index.getBucketStartMillis(RollupIndex.HOURS, 1));
+        assertEquals(7200, index.getCount(RollupIndex.HOURS, 1));
+        assertEquals(2.0, index.getCps(RollupIndex.MINUTES, 5), 1e-9);
+        assertEquals(60, index.indexOf(RollupIndex.MINUTES, START + 3599999));
+    }
+
+    @Test
+    public void findsMinAndMaxRates(){
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 3600, 3);
+        fill(index, START + 3600000, 1, 50);
+        fill(index, START + 3601000, 3599, 4);
+        // one silent second
+        fill(index, START + 7201000, 100, 4);
+
+        assertEquals(50, index.getMaxCps(START, START + 7200000));
+        assertEquals(3, index.getMinCps(START, START + 7200000));
+        assertEquals(4, index.getMaxCps(START + 3601000, START + 7200000));
+        assertEquals(0, index.getMinCps(START + 7000000, START + 7300000));
+        assertEquals(4, index.getMinCps(START + 7201000, START + 7300000));
+    }
+
+    @Test
+    public void readsBucketsByTime(){
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 120, 2);
+        long[] row = new long[3];
+        assertTrue(index.readBucket(RollupIndex.MINUTES, START - 59999, row));
+        assertArrayEquals(new long[]{START, 120, 60000}, row);
+        // the next one after it, whatever its index is by then
+        index.add(START - 3600000);
+        assertTrue(index.readBucket(RollupIndex.MINUTES, row[0] + 1, row));
+        assertArrayEquals(new long[]{START + 60000, 120, 60000}, row);
+        assertFalse(index.readBucket(RollupIndex.MINUTES, row[0] + 1, row));
+    }
+
+    @Test
+    public void countsPulsesFromTheClockSetBack(){
+        RollupIndex index = new RollupIndex();
+        fill(index, START + 60000, 10, 1);
+        fill(index, START, 10, 1);
+        assertEquals(20, index.getTotalCount());
+        assertEquals(10, index.count(START, START + 30000));
+        assertEquals(START, index.getBucketStartMillis(RollupIndex.SECONDS, 0));
+    }
+
+    @Test
+    public void survivesSerialization() throws IOException {
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 4000, 3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+        RollupIndex read = RollupIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(index.getTotalCount(), read.getTotalCount());
+        assertEquals(index.count(START + 1000, START + 3700000), read.count(START + 1000, START + 3700000));
+        assertEquals(3, read.getMinCps(START, START + 3600000));
+        read.add(START + 4000000);
+        assertEquals(4000 * 3 + 1, read.getTotalCount());
+    }
+
+    @Test
+    public void leavesGapsOutOfRates(){
+        RollupIndex index = new RollupIndex();
+        // a survey: 20 s of 3 CPS, asleep for 70 s, 30 s of 3 CPS
+        fill(index, START, 20, 3);
+        index.addGap(START + 20000, START + 90000);
+        fill(index, START + 90000, 30, 3);
+
+        assertEquals(50, index.getRecordedSeconds(START, START + 120000), 1e-9);
+        assertEquals(3.0, index.getAverageCps(START, START + 120000), 1e-9);
+        // 20 of the first minute's seconds were recorded
+        assertEquals(20000, index.getRecordedMillis(RollupIndex.MINUTES, 0));
+        assertEquals(3.0, index.getCps(RollupIndex.MINUTES, 0), 1e-9);
+        assertEquals(3.0, index.getCps(RollupIndex.MINUTES, 1), 1e-9);
+        // the sleep is not a 0 rate, a recorded second without pulses is;
+        // the last second is still open
+        assertEquals(3, index.getMinCps(START, START + 119000));
+        assertEquals(0, index.getMinCps(START, START + 121000));
+        // a gap going back before the last one is cut to [90 s, 130 s)
+        index.addGap(START + 60000, START + 130000);
+        assertEquals(130 - 70 - 40, index.getRecordedSeconds(START, START + 130000), 1e-9);
+    }
+
+    @Test
+    public void expiresOldSecondsIntoMinutes(){
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 10, 2);
+        fill(index, START + 20000, 1, 7);
+        assertEquals(11, index.size(RollupIndex.SECONDS));
+        // a day and two hours later
+        index.add(START + (RollupIndex.KEEP_SECONDS + 7200) * 1000);
+        assertEquals(1, index.size(RollupIndex.SECONDS));
+
+        // the minute still has the counts and rates, and is counted when it
+        // starts in the window
+        assertEquals(27, index.count(START, START + 60000));
+        assertEquals(27, index.count(START - 30000, START + 30000));
+        assertEquals(0, index.count(START + 5000, START + 60000));
+        assertEquals(7, index.getMaxCps(START - 30000, START + 30000));
+        assertEquals(0, index.getMinCps(START, START + 60000));
+        assertEquals(28, index.getTotalCount());
+    }
+
+    @Test
+    public void appliesSavedChanges() throws IOException {
+        RollupIndex index = new RollupIndex();
+        fill(index, START, 4000, 3);
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(full));
+        fill(index, START + 4000000, 100, 5);
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        index.writeChangesTo(new DataOutputStream(changes));
+        assertTrue(changes.size() < full.size() / 10);
+
+        RollupIndex read = RollupIndex.readFrom(new DataInputStream(new ByteArrayInputStream(full.toByteArray())));
+        read.readChangesFrom(new DataInputStream(new ByteArrayInputStream(changes.toByteArray())));
+        assertEquals(index.getTotalCount(), read.getTotalCount());
+        assertEquals(index.size(RollupIndex.SECONDS), read.size(RollupIndex.SECONDS));
+        assertEquals(100 * 5, read.count(START + 4000000, START + 4100000));
+        assertEquals(5, read.getMaxCps(START, START + 4100000));
+        assertEquals(3, read.getMinCps(START, START + 4099000));
+    }
+
+    @Test
+    public void findsTheSameRatesAsAScanOfTheSeconds(){
+        Random random = new Random(13);
+        int seconds = 3 * 3600;
+        int[] counts = new int[seconds];
+        boolean[] off = new boolean[seconds];
+        RollupIndex index = new RollupIndex();
+        int second = 0;
+        while(second < seconds){
+            if(random.nextInt(200) == 0){
+                // asleep for up to 15 min
+                int end = Math.min(seconds, second + 30 + random.nextInt(870));
+                index.addGap(START + second * 1000L, START + end * 1000L);
+                for(; second < end; second++){
+                    off[second] = true;
+                }
+                continue;
+            }
+            counts[second] = random.nextInt(50) == 0 ? 0 : 1 + random.nextInt(20);
+            fill(index, START + second * 1000L, 1, counts[second]);
+            second++;
+        }
+        // closes the last second
+        index.add(START + seconds * 1000L);
+
+        for(int i = 0; i < 200; i++){
+            int from = random.nextInt(seconds);
+            int to = from + 1 + random.nextInt(seconds - from);
+            int max = 0;
+            int min = Integer.MAX_VALUE;
+            for(int s = from; s < to; s++){
+                if(!off[s]){
+                    max = Math.max(max, counts[s]);
+                    min = Math.min(min, counts[s]);
+                }
+            }
+            min = min == Integer.MAX_VALUE ? 0 : min;
+            assertEquals(max, index.getMaxCps(START + from * 1000L, START + to * 1000L));
+            assertEquals(min, index.getMinCps(START + from * 1000L, START + to * 1000L));
+        }
+    }
+}
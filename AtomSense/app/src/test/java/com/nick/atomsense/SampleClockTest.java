@@ -0,0 +1,29 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleClockTest {
+
+    @Test
+    public void mapsSampleIndexToAnchoredNanos() {
+        SampleClock clock = new SampleClock(8000);
+        clock.start(5000000000L);
+        assertEquals(5000000000L, clock.toNanos(0));
+        // one sample at 8 kHz is 125 us
+        assertEquals(5000125000L, clock.toNanos(1));
+        clock.advance(8000);
+        assertEquals(8000, clock.getFramesRead());
+        assertEquals(6000000000L, clock.nowNanos());
+    }
+
+    @Test
+    public void doesNotOverflowOnLongRuns() {
+        SampleClock clock = new SampleClock(192000);
+        clock.start(0);
+        // thirty days of samples
+        long samples = 192000L * 86400 * 30;
+        assertEquals(86400L * 30 * SampleClock.NANOS_PER_SECOND, clock.toNanos(samples));
+    }
+}
@@ -0,0 +1,119 @@
+package com.nick.atomsense;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class SessionExporterTest {
+
+    // 2020-09-13 12:00:00 UTC
+    private static final long START = 1599998400000L;
+
+    private File directory;
+    private PulseLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("export").toFile();
+        log = new PulseLog(directory);
+        log.open();
+        // 2 pulses per second for 2 minutes
+        log.startSession(0, START);
+        for(int i = 0; i < 240; i++){
+            log.append(i * 500000000L + 250000000L);
+        }
+        log.commit();
+        log.close();
+    }
+
+    @After
+    public void tearDown(){
+        File[] files = directory.listFiles();
+        if(files != null){
+            for(File file : files){
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private String export(SessionExporter exporter, SessionExporter.Format format, SessionExporter.Content content,
+                          long from, long to, ByteArrayOutputStream bytes) throws IOException {
+        exporter.export(Channels.newChannel(bytes), format, content, RollupIndex.MINUTES, from, to);
+        return new String(bytes.toByteArray(), "US-ASCII");
+    }
+
+    @Test
+    public void exportsPulsesAsCsv() throws IOException {
+        SessionExporter exporter = new SessionExporter(directory, log.getRollupIndex(), 0, 0, 0);
+        String csv = export(exporter, SessionExporter.Format.CSV, SessionExporter.Content.PULSES,
+                START + 1000, START + 2000, new ByteArrayOutputStream());
+        assertEquals("time_us,session\n" + (START + 1250) * 1000 + ",1\n" + (START + 1750) * 1000 + ",1\n", csv);
+    }
+
+    @Test
+    public void exportsRatesAsCsv() throws IOException {
+        SessionExporter exporter = new SessionExporter(directory, log.getRollupIndex(), 0.5f, 2, 1);
+        String csv = export(exporter, SessionExporter.Format.CSV, SessionExporter.Content.RATES,
+                START + 30000, START + 600000, new ByteArrayOutputStream());
+        // 0.5 * 2^2 + 2 * 2 + 1
+        assertEquals("start_ms,seconds,count,cps,cpm,uR_h\n"
+                + START + ",60,120,2.000,120.0,7.00\n"
+                + (START + 60000) + ",60,120,2.000,120.0,7.00\n", csv);
+    }
+
+    @Test
+    public void correctsDeadTimeBeforeTheCalibration() throws IOException {
+        SessionExporter exporter = new SessionExporter(directory, log.getRollupIndex(),
+                new CalibrationTable(Calibration.polynomial(0.5f, 2, 1)),
+                new DeadTimeCorrection(DeadTimeCorrection.Model.NON_PARALYZABLE, 0.25));
+        String csv = export(exporter, SessionExporter.Format.CSV, SessionExporter.Content.RATES,
+                START, START + 60000, new ByteArrayOutputStream());
+        // 2 CPS measured, half the time dead, 4 CPS: 0.5 * 4^2 + 2 * 4 + 1
+        assertEquals("start_ms,seconds,count,cps,cpm,uR_h\n"
+                + START + ",60,120,2.000,120.0,17.00\n", csv);
+    }
+
+    @Test
+    public void exportsPulsesAsBinary() throws IOException {
+        SessionExporter exporter = new SessionExporter(directory, log.getRollupIndex(), 0, 0, 0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(240, exporter.export(Channels.newChannel(bytes), SessionExporter.Format.BINARY,
+                SessionExporter.Content.PULSES, RollupIndex.SECONDS, START, START + 120000));
+
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(SessionExporter.MAGIC, in.getInt());
+        assertEquals(SessionExporter.VERSION, in.getInt());
+        assertEquals(SessionExporter.Content.PULSES.ordinal(), in.getInt());
+        PulseTimeCodec.BlockDecoder decoder = new PulseTimeCodec.BlockDecoder(in.getLong());
+        for(int i = 0; i < 240; i++){
+            assertEquals((START + 250 + i * 500L) * 1000, decoder.next(in));
+        }
+        assertFalse(decoder.hasNext(in));
+        // 20 bit gaps of 0.5 s
+        assertTrue(bytes.size() < 20 + 240 * 3);
+    }
+
+    @Test
+    public void exportsRatesOverTheRecordedTime() throws IOException {
+        RollupIndex index = log.getRollupIndex();
+        // slept through the second half of the second minute
+        index.addGap(START + 90000, START + 120000);
+        SessionExporter exporter = new SessionExporter(directory, index, 0, 0, 0);
+        String csv = export(exporter, SessionExporter.Format.CSV, SessionExporter.Content.RATES,
+                START + 60000, START + 120000, new ByteArrayOutputStream());
+        // the log has pulses there anyway, all 120 count over 30 recorded seconds
+        assertEquals("start_ms,seconds,count,cps,cpm,uR_h\n"
+                + (START + 60000) + ",30,120,4.000,240.0,\n", csv);
+    }
+}
@@ -0,0 +1,81 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SyntheticPulseSourceTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int BUFFER_SIZE = 4096;
+
+    private static class CountingSink implements PulseSink {
+        long count;
+
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            count++;
+        }
+    }
+
+    private static long detect(AudioSource source, ThresholdPulseDetector detector, int seconds) {
+        CountingSink sink = new CountingSink();
+        short[] buf = new short[source.getBufferSize()];
+        long samples = (long) seconds * source.getSampleRate();
+        source.start();
+        for(long done = 0; done < samples;){
+            int read = source.read(buf, 0, buf.length);
+            detector.process(buf, read, sink);
+            done += read;
+        }
+        return sink.count;
+    }
+
+    private static ThresholdPulseDetector detector(int deadTimeSamples) {
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 8000);
+        detector.setDeadTimeSamples(deadTimeSamples);
+        return detector;
+    }
+
+    @Test
+    public void countsEveryPulseAtLowRate() {
+        SyntheticPulseSource source = new SyntheticPulseSource(SAMPLE_RATE, BUFFER_SIZE, 1);
+        source.setCps(20);
+        // 0.5 ms impulse width
+        long counted = detect(source, detector(SAMPLE_RATE / 2000), 60);
+        assertEquals(source.getPulseCount(), counted, source.getPulseCount() * 0.01);
+        assertEquals(1200, source.getEventCount(), 4 * Math.sqrt(1200));
+    }
+
+    @Test
+    public void impulseWidthLosesCountsLikeNonParalyzableDeadTime() {
+        double cps = 500;
+        int deadTimeSamples = SAMPLE_RATE / 1000;
+        SyntheticPulseSource source = new SyntheticPulseSource(SAMPLE_RATE, BUFFER_SIZE, 2);
+        source.setCps(cps);
+        long counted = detect(source, detector(deadTimeSamples), 20);
+
+        double deadTime = (deadTimeSamples + 1) / (double) SAMPLE_RATE;
+        double expected = source.getEventCount() / (1 + cps * deadTime);
+        assertEquals(expected, counted, expected * 0.03);
+        assertTrue(counted < source.getEventCount() * 0.7);
+    }
+
+    @Test
+    public void sameSeedGivesSameStream() {
+        SyntheticPulseSource a = new SyntheticPulseSource(8000, 1024, 7);
+        SyntheticPulseSource b = new SyntheticPulseSource(8000, 1024, 7);
+        a.setCps(300);
+        b.setCps(300);
+        a.start();
+        b.start();
+        short[] bufA = new short[1024];
+        short[] bufB = new short[1024];
+        for(int i = 0; i < 10; i++){
+            a.read(bufA, 0, bufA.length);
+            b.read(bufB, 0, bufB.length);
+            assertArrayEquals(bufA, bufB);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.nick.atomsense;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ThresholdPulseDetectorTest {
+
+    private static class CollectingSink implements PulseSink {
+        final List<Long> pulses = new ArrayList<>();
+
+        @Override
+        public void onPulse(long sampleIndex, int offset) {
+            pulses.add(sampleIndex);
+        }
+    }
+
+    @Test
+    public void skipsDeadTimeAfterTrigger() {
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 100);
+        detector.setDeadTimeSamples(3);
+        short[] buf = {0, 200, 200, 200, 200, 200, 0, 0};
+        CollectingSink sink = new CollectingSink();
+        detector.process(buf, buf.length, sink);
+        // 1 triggers, 2..4 are dead, 5 triggers again
+        assertEquals(2, sink.pulses.size());
+        assertEquals(1L, (long) sink.pulses.get(0));
+        assertEquals(5L, (long) sink.pulses.get(1));
+    }
+
+    @Test
+    public void carriesDeadTimeAcrossBuffers() {
+        short[] stream = new short[64];
+        for(int i = 0; i < stream.length; i += 5){
+            stream[i] = 1000;
+            stream[i + 1] = 1000;
+        }
+        CollectingSink whole = new CollectingSink();
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 500);
+        detector.setDeadTimeSamples(7);
+        detector.process(stream, stream.length, whole);
+
+        CollectingSink split = new CollectingSink();
+        detector.reset();
+        short[] buf = new short[3];
+        for(int start = 0; start < stream.length; start += buf.length){
+            int len = Math.min(buf.length, stream.length - start);
+            System.arraycopy(stream, start, buf, 0, len);
+            detector.process(buf, len, split);
+        }
+        assertEquals(whole.pulses, split.pulses);
+        assertEquals(7, whole.pulses.size());
+    }
+
+    @Test
+    public void blockScanFindsSamePulsesAsScalarScan() {
+        for(double cps : new double[]{0.5, 100, 5000}){
+            SyntheticPulseSource source = new SyntheticPulseSource(48000, 3000, 3);
+            source.setCps(cps);
+            source.start();
+            ThresholdPulseDetector scalar = new ThresholdPulseDetector();
+            ThresholdPulseDetector blocks = new ThresholdPulseDetector();
+            blocks.setBlockScan(true);
+            for(ThresholdPulseDetector detector : new ThresholdPulseDetector[]{scalar, blocks}){
+                detector.setTriggerLevel((short) 8000);
+                detector.setDeadTimeSamples(20);
+            }
+            CollectingSink scalarSink = new CollectingSink();
+            CollectingSink blockSink = new CollectingSink();
+            // odd buffer size, so blocks do not line up with buffers
+            short[] buf = new short[3000];
+            for(int i = 0; i < 100; i++){
+                source.read(buf, 0, buf.length);
+                scalar.process(buf, buf.length, scalarSink);
+                blocks.process(buf, buf.length, blockSink);
+            }
+            assertEquals(scalarSink.pulses, blockSink.pulses);
+        }
+    }
+
+    @Test
+    public void adaptiveLevelFollowsNoiseFloor() {
+        SyntheticPulseSource source = new SyntheticPulseSource(48000, 4800, 5);
+        source.setCps(50);
+        source.start();
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 2000);
+        detector.setDeadTimeSamples(4);
+        detector.setAdaptive(true, 6, 2, 48000);
+        CollectingSink sink = new CollectingSink();
+        short[] buf = new short[4800];
+        for(int i = 0; i < 50; i++){
+            source.read(buf, 0, buf.length);
+            detector.process(buf, buf.length, sink);
+        }
+        // 6 sigma of 300
+        assertEquals(1800, detector.getTriggerLevel(), 200);
+        assertEquals(source.getPulseCount(), sink.pulses.size(), 3);
+
+        // the gain goes up, the fixed 2000 would now count noise
+        source.setNoiseRms(1500);
+        for(int i = 0; i < 100; i++){
+            source.read(buf, 0, buf.length);
+            detector.process(buf, buf.length, sink);
+        }
+        assertEquals(9000, detector.getTriggerLevel(), 600);
+        long pulses = source.getPulseCount();
+        int counted = sink.pulses.size();
+        for(int i = 0; i < 100; i++){
+            source.read(buf, 0, buf.length);
+            detector.process(buf, buf.length, sink);
+        }
+        // no noise counts; a few pulses sampled off their peak are missed
+        long expected = source.getPulseCount() - pulses;
+        assertTrue(sink.pulses.size() - counted <= expected);
+        assertEquals(expected, sink.pulses.size() - counted, expected / 20);
+    }
+
+    @Test
+    public void adaptiveTriggerRearmsBelowHysteresis() {
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setDeadTimeSamples(1);
+        // silence: the level is 1 above the baseline of 0, re-arm at 0
+        detector.setAdaptive(true, 6, 2, 1 << 20);
+        CollectingSink sink = new CollectingSink();
+        detector.process(new short[64], 64, sink);
+        assertEquals(1, detector.getTriggerLevel());
+
+        short[] buf = new short[64];
+        short[] signal = {100, 100, 50, 50, 50, 0, 100, 0};
+        System.arraycopy(signal, 0, buf, 10, signal.length);
+        detector.process(buf, buf.length, sink);
+        // the tail at 50 stays above the re-arm level
+        assertEquals(2, sink.pulses.size());
+        assertEquals(64 + 10L, (long) sink.pulses.get(0));
+        assertEquals(64 + 16L, (long) sink.pulses.get(1));
+    }
+
+    @Test
+    public void negativePolarityFindsInvertedPulses() {
+        SyntheticPulseSource source = new SyntheticPulseSource(48000, 1000, 7);
+        source.setCps(500);
+        source.start();
+        ThresholdPulseDetector positive = new ThresholdPulseDetector();
+        ThresholdPulseDetector negative = new ThresholdPulseDetector();
+        negative.setPolarity(ThresholdPulseDetector.Polarity.NEGATIVE);
+        for(ThresholdPulseDetector detector : new ThresholdPulseDetector[]{positive, negative}){
+            detector.setTriggerLevel((short) 8000);
+            detector.setDeadTimeSamples(30);
+        }
+        CollectingSink positiveSink = new CollectingSink();
+        CollectingSink negativeSink = new CollectingSink();
+        short[] buf = new short[1000];
+        short[] inverted = new short[1000];
+        for(int i = 0; i < 100; i++){
+            source.read(buf, 0, buf.length);
+            for(int k = 0; k < buf.length; k++){
+                inverted[k] = (short) -buf[k];
+            }
+            positive.process(buf, buf.length, positiveSink);
+            negative.process(inverted, inverted.length, negativeSink);
+            // conditioned in place
+            assertArrayEquals(buf, inverted);
+        }
+        assertTrue(positiveSink.pulses.size() > 10);
+        assertEquals(positiveSink.pulses, negativeSink.pulses);
+    }
+
+    @Test
+    public void bipolarFindsPulsesOfBothSigns() {
+        ThresholdPulseDetector detector = new ThresholdPulseDetector();
+        detector.setPolarity(ThresholdPulseDetector.Polarity.BIPOLAR);
+        detector.setTriggerLevel((short) 100);
+        detector.setDeadTimeSamples(2);
+        short[] buf = {0, 200, 0, 0, 0, -200, -200, 0, -50, 300};
+        CollectingSink sink = new CollectingSink();
+        detector.process(buf, buf.length, sink);
+        assertEquals(3, sink.pulses.size());
+        assertEquals(1L, (long) sink.pulses.get(0));
+        assertEquals(5L, (long) sink.pulses.get(1));
+        assertEquals(9L, (long) sink.pulses.get(2));
+    }
+
+    @Test
+    public void dcBlockRemovesOffset() {
+        SyntheticPulseSource source = new SyntheticPulseSource(48000, 4800, 9);
+        source.setCps(100);
+        source.start();
+        ThresholdPulseDetector clean = new ThresholdPulseDetector();
+        ThresholdPulseDetector biased = new ThresholdPulseDetector();
+        biased.setDcBlock(true, (float) Math.exp(-2 * Math.PI * 10 / 48000));
+        for(ThresholdPulseDetector detector : new ThresholdPulseDetector[]{clean, biased}){
+            detector.setTriggerLevel((short) 8000);
+            detector.setDeadTimeSamples(10);
+        }
+        CollectingSink cleanSink = new CollectingSink();
+        CollectingSink biasedSink = new CollectingSink();
+        short[] buf = new short[4800];
+        for(int i = 0; i < 50; i++){
+            source.read(buf, 0, buf.length);
+            clean.process(buf, buf.length, cleanSink);
+            for(int k = 0; k < buf.length; k++){
+                // a bias above the level
+                buf[k] = (short) Math.min(Short.MAX_VALUE, buf[k] + 9000);
+            }
+            biased.process(buf, buf.length, biasedSink);
+        }
+        assertTrue(cleanSink.pulses.size() > 100);
+        assertEquals(cleanSink.pulses, biasedSink.pulses);
+    }
+}
@@ -0,0 +1,94 @@
+package com.nick.atomsense;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Cost of the detection loop per audio sample, see the score in ns/op.
+@State(Scope.Thread)
+public class PulseDetectorBenchmark {
+
+    // 2^16 samples per buffer, every op is one sample
+    static final int BUFFER_SAMPLES = 1 << 16;
+
+    @Param({"8000", "44100", "48000", "96000"})
+    public int sampleRate;
+
+    // from background up to a hot source
+    @Param({"0.5", "100", "1000", "10000"})
+    public double cps;
+
+    // per-sample scan or the blocked max reduction
+    @Param({"false", "true"})
+    public boolean blockScan;
+
+    private short[] buffer;
+    private short[] scratch;
+    private ThresholdPulseDetector detector;
+    private ThresholdPulseDetector conditioned;
+    private CountingSink sink;
+
+    static final class CountingSink implements PulseSink {
+        long count;
+
+        @Override
+        public void onPulse(long sampleIndex, int offset){
+            count++;
+        }
+    }
+
+    @Setup
+    public void setUp(){
+        buffer = new short[BUFFER_SAMPLES];
+        SyntheticPulseSource source = new SyntheticPulseSource(sampleRate, BUFFER_SAMPLES, 42);
+        source.setCps(cps);
+        source.start();
+        source.read(buffer, 0, buffer.length);
+        detector = new ThresholdPulseDetector();
+        detector.setTriggerLevel((short) 10000);
+        // 100 us impulse width
+        detector.setDeadTimeSamples(sampleRate / 10000);
+        detector.setBlockScan(blockScan);
+        scratch = new short[BUFFER_SAMPLES];
+        conditioned = new ThresholdPulseDetector();
+        conditioned.setTriggerLevel((short) 10000);
+        conditioned.setDeadTimeSamples(sampleRate / 10000);
+        conditioned.setPolarity(ThresholdPulseDetector.Polarity.BIPOLAR);
+        conditioned.setDcBlock(true, (float) Math.exp(-2 * Math.PI * 10 / sampleRate));
+        sink = new CountingSink();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BUFFER_SAMPLES)
+    public long process(){
+        detector.process(buffer, buffer.length, sink);
+        return sink.count;
+    }
+
+    // DC blocker and bipolar trigger in the fused loop; the buffer is
+    // conditioned in place, so each op includes copying one sample back
+    @Benchmark
+    @OperationsPerInvocation(BUFFER_SAMPLES)
+    public long processConditioned(){
+        System.arraycopy(buffer, 0, scratch, 0, buffer.length);
+        conditioned.process(scratch, scratch.length, sink);
+        return sink.count;
+    }
+
+    // what the old inline loop did before the engine was extracted
+    @Benchmark
+    @OperationsPerInvocation(BUFFER_SAMPLES)
+    public void scalarReference(Blackhole blackhole){
+        short level = detector.getTriggerLevel();
+        int deadTime = detector.getDeadTimeSamples();
+        int count = 0;
+        for(int i = 0; i < buffer.length;){
+            short audioLevel = buffer[i];
+            i++;
+            if(audioLevel > level){
+                count++;
+                i = i + deadTime;
+            }
+        }
+        blackhole.consume(count);
+    }
+}
@@ -0,0 +1,122 @@
+package com.nick.atomsense;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Encoding and decoding of stored pulse times per pulse, see the score in
+// ns/op; the encode benchmarks report the bytes per pulse of their format as
+// the bytesPerPulse counter next to it.
+@State(Scope.Thread)
+public class PulseTimeCodecBenchmark {
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Size {
+        // set, not added up, by each invocation
+        public double bytesPerPulse;
+    }
+
+    static final int PULSES = 1 << 20;
+
+    // background, a check source, a hot source
+    @Param({"0.5", "50", "1000"})
+    public double cps;
+
+    private long[] micros;
+    private ByteBuffer naive;
+    private ByteBuffer varint;
+    private ByteBuffer blocks;
+
+    @Setup
+    public void setUp(){
+        Random random = new Random(42);
+        micros = new long[PULSES];
+        double t = 1.6e15;
+        for(int i = 0; i < PULSES; i++){
+            t -= Math.log(1 - random.nextDouble()) / cps * 1e6;
+            micros[i] = (long) t;
+        }
+        naive = ByteBuffer.allocate(PULSES * 8);
+        varint = ByteBuffer.allocate(PULSES * PulseTimeCodec.MAX_VARINT_BYTES);
+        blocks = ByteBuffer.allocate(PULSES / PulseTimeCodec.BLOCK_SIZE
+                * PulseTimeCodec.maxBlockBytes(PulseTimeCodec.BLOCK_SIZE));
+        // the decode benchmarks read these
+        Size size = new Size();
+        encodeNaive(size);
+        encodeVarint(size);
+        encodeBlocks(size);
+    }
+
+    // raw long milliseconds, what a LinkedList<Long> dump would store
+    @Benchmark
+    @OperationsPerInvocation(PULSES)
+    public int encodeNaive(Size size){
+        naive.clear();
+        for(long time : micros){
+            naive.putLong(time / 1000);
+        }
+        size.bytesPerPulse = naive.position() / (double) PULSES;
+        return naive.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSES)
+    public int encodeVarint(Size size){
+        varint.clear();
+        PulseTimeCodec.Encoder encoder = new PulseTimeCodec.Encoder(0);
+        for(long time : micros){
+            encoder.encode(varint, time);
+        }
+        size.bytesPerPulse = varint.position() / (double) PULSES;
+        return varint.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSES)
+    public int encodeBlocks(Size size){
+        blocks.clear();
+        long base = 0;
+        for(int offset = 0; offset < PULSES; offset += PulseTimeCodec.BLOCK_SIZE){
+            base = PulseTimeCodec.encodeBlock(blocks, base, micros, offset, PulseTimeCodec.BLOCK_SIZE);
+        }
+        size.bytesPerPulse = blocks.position() / (double) PULSES;
+        return blocks.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSES)
+    public long decodeNaive(){
+        ByteBuffer in = (ByteBuffer) naive.duplicate().flip();
+        long sum = 0;
+        while(in.hasRemaining()){
+            sum += in.getLong();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSES)
+    public long decodeVarint(){
+        ByteBuffer in = (ByteBuffer) varint.duplicate().flip();
+        PulseTimeCodec.Decoder decoder = new PulseTimeCodec.Decoder(0);
+        long sum = 0;
+        while(in.hasRemaining()){
+            sum += decoder.decode(in);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PULSES)
+    public long decodeBlocks(){
+        ByteBuffer in = (ByteBuffer) blocks.duplicate().flip();
+        PulseTimeCodec.BlockDecoder decoder = new PulseTimeCodec.BlockDecoder(0);
+        long sum = 0;
+        while(decoder.hasNext(in)){
+            sum += decoder.next(in);
+        }
+        return sum;
+    }
+}
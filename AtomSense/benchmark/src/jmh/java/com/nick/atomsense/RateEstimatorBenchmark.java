@@ -0,0 +1,59 @@
+package com.nick.atomsense;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// CPS and error computation as a function of the pulses seen since start.
+@State(Scope.Thread)
+public class RateEstimatorBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int pulses;
+
+    // 100 cps
+    private static final long INTERVAL_NANOS = SampleClock.NANOS_PER_SECOND / 100;
+
+    private RateEstimator estimator;
+    private long now;
+    private ConcurrentLinkedQueue<Long> legacyQueue;
+
+    @Setup
+    public void setUp(){
+        estimator = new RateEstimator();
+        legacyQueue = new ConcurrentLinkedQueue<>();
+        for(int i = 0; i < pulses; i++){
+            now = i * INTERVAL_NANOS;
+            estimator.onPulse(now);
+            legacyQueue.add(now);
+        }
+    }
+
+    // one UI tick of the estimator: publish and read the snapshot
+    @Benchmark
+    public double snapshot(){
+        estimator.publish(now);
+        RateSnapshot snapshot = estimator.getSnapshot();
+        return snapshot.getCps() + snapshot.getErrorPercent();
+    }
+
+    // cost per pulse on the detector thread
+    @Benchmark
+    public RateEstimator onPulse(){
+        now += INTERVAL_NANOS;
+        estimator.onPulse(now);
+        return estimator;
+    }
+
+    // one UI tick as MeasureActivity did it with getImpulseData()
+    @Benchmark
+    public double legacyListCopy(){
+        LinkedList<Long> impulseData = new LinkedList<>(legacyQueue);
+        int totalCounts = impulseData.size();
+        double errVal = (1.96 / Math.sqrt(totalCounts)) * 100;
+        float remainNanos = (float) (impulseData.get(totalCounts - 1) - impulseData.get(0));
+        float cps = totalCounts / (remainNanos / SampleClock.NANOS_PER_SECOND);
+        return cps + errVal;
+    }
+}